@@ -17,11 +17,14 @@
 package io.helium;
 
 import io.helium.persistence.Persistence;
+import io.helium.persistence.mapdb.CompactionScheduler;
 import io.helium.persistence.mapdb.MapDbService;
 import io.helium.persistence.mapdb.PersistenceExecutor;
 import io.helium.server.http.HttpServer;
 import io.helium.server.mqtt.MqttServer;
 import org.vertx.java.core.Future;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.platform.Verticle;
 
 import java.io.File;
@@ -35,19 +38,26 @@ public class Helium extends Verticle {
     @Override
     public void start(Future<Void> startedResult) {
         try {
-            // Init data store
-            if(new File("helium").mkdirs())
-                MapDbService.get();
+            // Init data store, which is opened by the first worker accessing it
+            MapDbService.configure(container.config().getObject("mapdb", new JsonObject()));
+            new File("helium").mkdirs();
+
+            CompactionScheduler.get().configure(container.config().getObject("compaction", new JsonObject()));
+            CompactionScheduler.get().start();
+            vertx.eventBus().registerHandler(CompactionScheduler.ADMIN,
+                    (Message<JsonObject> message) -> CompactionScheduler.get().handleAdmin(message));
 
             // Workers
             container.deployWorkerVerticle(Persistence.class.getName());
-            container.deployWorkerVerticle(PersistenceExecutor.class.getName());
+            container.deployWorkerVerticle(PersistenceExecutor.class.getName(),
+                    container.config().getObject("journal", new JsonObject()));
 
             // Channels
-            container.deployVerticle(HttpServer.class.getName());
-            container.deployVerticle(MqttServer.class.getName());
+            container.deployVerticle(HttpServer.class.getName(),
+                    container.config().getObject("http", new JsonObject()));
+            container.deployVerticle(MqttServer.class.getName(),
+                    container.config().getObject("mqtt", new JsonObject()));
             startedResult.complete();
-            vertx.setPeriodic(1000, event -> MapDbService.get().commitAndCompact());
         } catch (Exception e) {
             container.logger().error("Failed starting Helium", e);
             startedResult.setFailure(e);
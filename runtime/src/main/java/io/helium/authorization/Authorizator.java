@@ -20,6 +20,7 @@ import com.google.common.collect.Maps;
 import io.helium.common.Path;
 import io.helium.common.SandBoxedScriptingEnvironment;
 import io.helium.persistence.mapdb.MapDbService;
+import io.helium.persistence.mapdb.ReadView;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vertx.java.core.Handler;
@@ -47,44 +48,57 @@ public class Authorizator {
         return instance;
     }
 
+    /**
+     * Rules are read from the version of /rules published last, which is released before the handler
+     * is called
+     */
     public void check(Operation operation, Optional<JsonObject> auth, Path path, Object value, Handler<Boolean> handler) {
         JsonObject localAuth = auth.orElse(ANONYMOUS);
-        try {
-            RuleBasedAuthorizator globalRules = new RuleBasedAuthorizator(MapDbService.get().of(Path.of("/rules")));
+        boolean allowed;
+        try (ReadView view = MapDbService.get().read()) {
             if (localAuth.containsField("rules")) {
                 RuleBasedAuthorizator userRules = new RuleBasedAuthorizator(localAuth.getObject("rules"));
-                handler.handle(evaluateRules(operation, path, value, localAuth, userRules));
+                allowed = evaluateRules(operation, path, value, localAuth, userRules);
             }
             else {
-                handler.handle(evaluateRules(operation, path, value, localAuth, globalRules));
+                allowed = evaluateRules(operation, path, value, localAuth, globalRules(view));
             }
         } catch (NoSuchMethodException | ScriptException e) {
-            handler.handle(Boolean.FALSE);
+            allowed = false;
         }
+        handler.handle(allowed);
     }
 
     public void validate(Optional<JsonObject> auth, Path path, Object value, Handler<Object> handler) {
         JsonObject localAuth = auth.orElse(ANONYMOUS);
-        try {
-            RuleBasedAuthorizator globalRules = new RuleBasedAuthorizator(MapDbService.get().of(Path.of("/rules")));
+        Object validated;
+        try (ReadView view = MapDbService.get().read()) {
             if (localAuth.containsField("rules")) {
                 RuleBasedAuthorizator userRules = new RuleBasedAuthorizator(localAuth.getObject("rules"));
-                handler.handle(evaluateValidation(Operation.VALIDATE, path, value, localAuth, userRules));
+                validated = evaluateValidation(Operation.VALIDATE, path, value, localAuth, userRules);
             }
             else {
-                handler.handle(evaluateValidation(Operation.VALIDATE, path, value, localAuth, globalRules));
+                validated = evaluateValidation(Operation.VALIDATE, path, value, localAuth, globalRules(view));
             }
         } catch (NoSuchMethodException | ScriptException e) {
-            handler.handle(value);
+            validated = value;
         }
+        handler.handle(validated);
     }
 
     public void filter(Optional<JsonObject> auth, Path path, Object payload, Handler<Object> handler) {
-        try {
-            handler.handle(filterContent(auth, path, payload));
+        Object filtered;
+        try (ReadView view = MapDbService.get().read()) {
+            filtered = filterContent(auth, path, payload, globalRules(view));
         } catch (NoSuchMethodException | ScriptException e) {
             logger.error("failed filtering", e);
+            return;
         }
+        handler.handle(filtered);
+    }
+
+    private static RuleBasedAuthorizator globalRules(ReadView view) {
+        return new RuleBasedAuthorizator(view.of(Path.of("/rules")));
     }
 
     private boolean evaluateRules(Operation op, Path path, Object data, JsonObject localAuth, RuleBasedAuthorizator rules) throws ScriptException, NoSuchMethodException {
@@ -132,7 +146,7 @@ public class Authorizator {
         return scriptingEnvironment.invokeFunction(functionName, evaledAuth, path, new DataSnapshot(data));
     }
 
-    private Object filterContent(Optional<JsonObject> auth, Path path, Object content) throws ScriptException, NoSuchMethodException {
+    private Object filterContent(Optional<JsonObject> auth, Path path, Object content, RuleBasedAuthorizator globalRules) throws ScriptException, NoSuchMethodException {
         if (content instanceof JsonObject) {
             JsonObject org = (JsonObject) content;
             JsonObject node = new JsonObject();
@@ -141,14 +155,13 @@ public class Authorizator {
                 Operation operation = Operation.READ;
                 JsonObject localAuth = auth.orElse(ANONYMOUS);
 
-                RuleBasedAuthorizator globalRules = new RuleBasedAuthorizator(MapDbService.get().of(Path.of("/rules")));
                 if (localAuth.containsField("rules")) {
                     RuleBasedAuthorizator userRules = new RuleBasedAuthorizator(localAuth.getObject("rules"));
                     if (evaluateRules(operation, path, value, localAuth, userRules)) {
-                        node.putValue(key, filterContent(auth, path.append(key), value));
+                        node.putValue(key, filterContent(auth, path.append(key), value, globalRules));
                     }
                 } else if (evaluateRules(operation, path, value, localAuth, globalRules)) {
-                    node.putValue(key, filterContent(auth, path.append(key), value));
+                    node.putValue(key, filterContent(auth, path.append(key), value, globalRules));
                 }
             }
             return node;
@@ -156,7 +169,6 @@ public class Authorizator {
             Operation operation = Operation.READ;
             JsonObject localAuth = auth.orElse(ANONYMOUS);
 
-            RuleBasedAuthorizator globalRules = new RuleBasedAuthorizator(MapDbService.get().of(Path.of("/rules")));
             if (localAuth.containsField("rules")) {
                 RuleBasedAuthorizator userRules = new RuleBasedAuthorizator(localAuth.getObject("rules"));
                 if (evaluateRules(operation, path, content, localAuth, userRules)) {
@@ -0,0 +1,274 @@
+package io.helium.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ *
+ * Streaming JSON writer, which encodes straight into a Netty buffer as UTF-8. Strings are escaped
+ * and encoded in one pass and integral numbers are written digit by digit, so writing a document
+ * allocates nothing but the buffer itself. Commas are inserted automatically, an indentFactor above 0
+ * pretty prints objects.
+ */
+public class JsonWriter {
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+
+    private final ByteBuf buffer;
+    private final int indentFactor;
+    private final int indent;
+    private int depth = 0;
+    private boolean commanate = false;
+
+    public JsonWriter() {
+        this(0);
+    }
+
+    public JsonWriter(int indentFactor) {
+        this(indentFactor, 0);
+    }
+
+    /**
+     * @param indent number of spaces every line starts with, when pretty printing
+     */
+    public JsonWriter(int indentFactor, int indent) {
+        this.buffer = Unpooled.buffer(256);
+        this.indentFactor = indentFactor;
+        this.indent = indent;
+    }
+
+    /**
+     * @return value encoded as JSON, value may be a JsonObject, JsonArray, Map, Iterable or a primitive
+     */
+    public static Buffer encode(Object value) {
+        return new JsonWriter().value(value).toBuffer();
+    }
+
+    public JsonWriter beginObject() {
+        buffer.writeByte('{');
+        depth++;
+        commanate = false;
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        depth--;
+        if (commanate && indentFactor > 0) {
+            newLine();
+        }
+        buffer.writeByte('}');
+        commanate = true;
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+        if (commanate) {
+            buffer.writeByte(',');
+        }
+        if (indentFactor > 0) {
+            newLine();
+        }
+        string(name);
+        buffer.writeByte(':');
+        if (indentFactor > 0) {
+            buffer.writeByte(' ');
+        }
+        commanate = false;
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    public JsonWriter value(Object value) {
+        if (value == null) {
+            buffer.writeBytes(NULL);
+        } else if (value instanceof String) {
+            string((String) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            integral(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            ascii(numberToString((Number) value));
+        } else if (value instanceof Boolean) {
+            buffer.writeBytes((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof JsonObject) {
+            object((JsonObject) value);
+        } else if (value instanceof Map) {
+            object(new JsonObject((Map<String, Object>) value));
+        } else if (value instanceof Iterable) {
+            array((Iterable<Object>) value);
+        } else {
+            string(value.toString());
+        }
+        commanate = true;
+        return this;
+    }
+
+    public Buffer toBuffer() {
+        return new Buffer(buffer);
+    }
+
+    /**
+     * Moves everything written so far to out, so the writer can be reused for the next document
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        buffer.readBytes(out, buffer.readableBytes());
+        buffer.clear();
+    }
+
+    private void object(JsonObject object) {
+        beginObject();
+        for (String name : object.getFieldNames()) {
+            name(name);
+            value(object.getValue(name));
+        }
+        endObject();
+    }
+
+    private void array(Iterable<Object> array) {
+        buffer.writeByte('[');
+        boolean first = true;
+        for (Object element : array) {
+            if (!first) {
+                buffer.writeByte(',');
+            }
+            value(element);
+            first = false;
+        }
+        buffer.writeByte(']');
+    }
+
+    private void newLine() {
+        buffer.writeByte('\n');
+        for (int i = indent + depth * indentFactor; i > 0; i--) {
+            buffer.writeByte(' ');
+        }
+    }
+
+    private void ascii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            buffer.writeByte(value.charAt(i));
+        }
+    }
+
+    private void integral(long value) {
+        if (value == Long.MIN_VALUE) {
+            buffer.writeBytes(MIN_LONG);
+            return;
+        }
+        if (value < 0) {
+            buffer.writeByte('-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.writeByte('0' + (int) (value / divisor % 10));
+        }
+    }
+
+    /**
+     * Same escaping as {@link io.helium.persistence.mapdb.Node#quote(String)}
+     */
+    private void string(String value) {
+        buffer.ensureWritable(value.length() + 2);
+        buffer.writeByte('"');
+        char previous;
+        char c = 0;
+        for (int i = 0; i < value.length(); i++) {
+            previous = c;
+            c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                case '"':
+                    buffer.writeByte('\\');
+                    buffer.writeByte(c);
+                    break;
+                case '/':
+                    if (previous == '<') {
+                        buffer.writeByte('\\');
+                    }
+                    buffer.writeByte(c);
+                    break;
+                case '\b':
+                    escape('b');
+                    break;
+                case '\t':
+                    escape('t');
+                    break;
+                case '\n':
+                    escape('n');
+                    break;
+                case '\f':
+                    escape('f');
+                    break;
+                case '\r':
+                    escape('r');
+                    break;
+                default:
+                    if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+                        escape('u');
+                        buffer.writeByte(HEX[c >> 12 & 0xF]);
+                        buffer.writeByte(HEX[c >> 8 & 0xF]);
+                        buffer.writeByte(HEX[c >> 4 & 0xF]);
+                        buffer.writeByte(HEX[c & 0xF]);
+                    } else if (c < 0x80) {
+                        buffer.writeByte(c);
+                    } else if (c < 0x800) {
+                        buffer.writeByte(0xC0 | c >> 6);
+                        buffer.writeByte(0x80 | c & 0x3F);
+                    } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                            && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                        buffer.writeByte(0xF0 | codePoint >> 18);
+                        buffer.writeByte(0x80 | codePoint >> 12 & 0x3F);
+                        buffer.writeByte(0x80 | codePoint >> 6 & 0x3F);
+                        buffer.writeByte(0x80 | codePoint & 0x3F);
+                    } else if (Character.isSurrogate(c)) {
+                        buffer.writeByte('?');
+                    } else {
+                        buffer.writeByte(0xE0 | c >> 12);
+                        buffer.writeByte(0x80 | c >> 6 & 0x3F);
+                        buffer.writeByte(0x80 | c & 0x3F);
+                    }
+            }
+        }
+        buffer.writeByte('"');
+    }
+
+    private void escape(char c) {
+        buffer.writeByte('\\');
+        buffer.writeByte(c);
+    }
+
+    /**
+     * Shaves off trailing zeros and the decimal point, if possible
+     */
+    private static String numberToString(Number number) {
+        if ((number instanceof Double && (((Double) number).isInfinite() || ((Double) number).isNaN()))
+                || (number instanceof Float && (((Float) number).isInfinite() || ((Float) number).isNaN()))) {
+            throw new RuntimeException("JSON does not allow non-finite numbers.");
+        }
+        String string = number.toString();
+        if (string.indexOf('.') > 0 && string.indexOf('e') < 0 && string.indexOf('E') < 0) {
+            int end = string.length();
+            while (string.charAt(end - 1) == '0') {
+                end--;
+            }
+            if (string.charAt(end - 1) == '.') {
+                end--;
+            }
+            string = string.substring(0, end);
+        }
+        return string;
+    }
+}
@@ -17,58 +17,99 @@
 package io.helium.common;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 
-import java.util.Objects;
+import java.util.Arrays;
 
 /**
  * Representation of a Java based Helium Path Path scheme: /<element1>/<element2>
+ * <p>
+ * Paths are immutable. A path references its parent path and its last element, so paths built by
+ * appending share their prefixes, and parent, append and lastElement don't copy anything. Elements are
+ * interned, the string form, the hash and the array of elements are computed once, when first needed.
  *
  * @author Christoph Grotz
  */
 public final class Path {
+    private static final Interner<String> ELEMENTS = Interners.newWeakInterner();
+    private static final Path EMPTY = new Path();
 
-    private String[] elements;
+    private final Path parent;
+    private final String element;
+    private final int depth;
+    // whether the elements are non empty and contain no separator, so the path needs no parsing
+    private final boolean clean;
 
-    public Path(String[] elements) {
-        this.elements = elements;
+    private volatile String[] elements;
+    private String string;
+    private int hash;
+
+    private Path() {
+        this.parent = null;
+        this.element = null;
+        this.depth = 0;
+        this.clean = true;
+        this.elements = new String[]{};
+        this.string = "";
+    }
 
+    private Path(Path parent, String element) {
+        this.parent = parent;
+        this.element = intern(element);
+        this.depth = parent.depth + 1;
+        this.clean = parent.clean && isClean(element);
+    }
+
+    public Path(String[] elements) {
+        Path path = EMPTY;
+        for (int i = 0; i < elements.length - 1; i++) {
+            path = new Path(path, elements[i]);
+        }
+        this.parent = path;
+        this.element = elements.length > 0 ? intern(elements[elements.length - 1]) : null;
+        this.depth = elements.length;
+        this.clean = path.clean && (elements.length == 0 || isClean(element));
+        this.elements = elements.clone();
     }
 
     /**
      * @param path {@link String} Path as String
      */
     public Path(String path) {
-        String workPath = path.replaceAll("//", "/");
-        if (!Strings.isNullOrEmpty(workPath)) {
-            this.elements = getPathElements(workPath);
-        }
-        if (elements == null) {
-            this.elements = new String[]{};
-        }
+        this(getPathElements(path.contains("//") ? path.replaceAll("//", "/") : path));
     }
 
-    private String[] getPathElements(String path) {
+    private static String[] getPathElements(String path) {
+        if (Strings.isNullOrEmpty(path)) {
+            return new String[]{};
+        }
         return path.startsWith("/") ? path.substring(1).split("/") : path.split("/");
     }
 
+    private static String intern(String element) {
+        return element != null ? ELEMENTS.intern(element) : null;
+    }
+
+    private static boolean isClean(String element) {
+        return !Strings.isNullOrEmpty(element) && element.indexOf('/') < 0;
+    }
+
     /**
      * @return the first element of the path
      */
     public String firstElement() {
-        if (elements == null || elements.length == 0) {
+        if (depth == 0) {
             return null;
         }
-        return elements[0];
+        return toArray()[0];
     }
 
     /**
      * @return the last element of the path
      */
     public String lastElement() {
-        if (elements.length == 0) {
-            return null;
-        }
-        return elements[elements.length - 1];
+        return element;
     }
 
     /**
@@ -80,11 +121,11 @@ public final class Path {
      * @return returns the sub at the offset
      */
     public Path sub(int offset) {
-        String output = "";
-        for (int i = offset; i < elements.length; i++) {
-            output += "/" + elements[i];
+        if (offset >= depth) {
+            return EMPTY;
         }
-        return new Path(output);
+        String[] sub = Arrays.copyOfRange(toArray(), offset, depth);
+        return clean ? new Path(sub) : new Path(join(sub));
     }
 
     /**
@@ -96,18 +137,24 @@ public final class Path {
      * @return returns the sub at the offset
      */
     public Path prefix(int offset) {
-        String output = "";
-        for (int i = 0; i < offset; i++) {
-            output += "/" + elements[i];
+        if (offset <= 0) {
+            return EMPTY;
+        }
+        if (offset > depth) {
+            throw new ArrayIndexOutOfBoundsException(offset - 1);
+        }
+        Path prefix = this;
+        while (prefix.depth > offset) {
+            prefix = prefix.parent;
         }
-        return new Path(output);
+        return prefix.clean ? prefix : new Path(prefix.toString());
     }
 
     /**
      * @return true if path consists of only one element
      */
     public boolean isSimple() {
-        return elements.length == 1;
+        return depth == 1;
     }
 
     /**
@@ -118,11 +165,10 @@ public final class Path {
      * @return returns the parent path
      */
     public Path parent() {
-        String output = "";
-        for (int i = 0; i < elements.length - 1; i++) {
-            output += "/" + elements[i];
+        if (depth == 0) {
+            return EMPTY;
         }
-        return new Path(output);
+        return parent.clean ? parent : new Path(parent.toString());
     }
 
     /**
@@ -132,37 +178,98 @@ public final class Path {
      * @return new Path with appended element
      */
     public Path append(String element) {
+        if (clean && isClean(element)) {
+            return new Path(this, element);
+        }
+        if (isSlash() && isClean(element)) {
+            return new Path(EMPTY, element);
+        }
         return new Path(toString() + "/" + element);
     }
 
     public Path append(Path path) {
-        return new Path(toString() + path.toString());
+        if (path.depth == 0) {
+            return clean ? this : new Path(toString());
+        }
+        if (!path.clean || !(clean || isSlash())) {
+            return new Path(toString() + path.toString());
+        }
+        Path appended = clean ? this : EMPTY;
+        for (String element : path.toArray()) {
+            appended = new Path(appended, element);
+        }
+        return appended;
+    }
+
+    /**
+     * @return whether the path is "/", the only path with an empty element which needs no parsing
+     */
+    private boolean isSlash() {
+        return depth == 1 && "".equals(element);
     }
 
     /**
      * @return Path has no elements
      */
     public boolean isEmtpy() {
-
-        return elements.length <= 0 || (elements.length == 1 && Strings.isNullOrEmpty(elements[0]));
+        return depth == 0 || (depth == 1 && Strings.isNullOrEmpty(element));
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(toString());
+        int h = hash;
+        if (h == 0 && depth > 0) {
+            h = toString().hashCode();
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof Path)) {
+            return false;
+        }
+        Path path = (Path) other;
+        return depth == path.depth && hashCode() == path.hashCode() && toString().equals(path.toString());
     }
 
     @Override
     public String toString() {
-        String output = "";
+        String s = string;
+        if (s == null) {
+            s = join(toArray());
+            string = s;
+        }
+        return s;
+    }
+
+    private static String join(String[] elements) {
+        StringBuilder output = new StringBuilder();
         for (String element : elements) {
-            output += "/" + element;
+            output.append('/').append(element);
         }
-        return output;
+        return output.toString();
     }
 
+    /**
+     * @return the elements of the path, shared by all callers, so they must not be modified
+     */
     public String[] toArray() {
-        return this.elements;
+        String[] array = elements;
+        if (array == null) {
+            array = new String[depth];
+            Path path = this;
+            for (int i = depth - 1; i >= 0; i--) {
+                array[i] = path.element;
+                path = path.parent;
+            }
+            elements = array;
+        }
+        return array;
     }
 
     public static Path of(String key) {
@@ -170,10 +277,10 @@ public final class Path {
     }
 
     public static Path copy(Path path) {
-        return new Path(path.toString());
+        return path;
     }
 
     public boolean root() {
-        return "/".equals(toString());
+        return isSlash();
     }
 }
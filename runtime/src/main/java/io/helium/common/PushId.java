@@ -0,0 +1,91 @@
+package io.helium.common;
+
+import java.security.SecureRandom;
+import java.util.Random;
+
+/**
+ *
+ * Names for pushed children. A name starts with the time of the push in 8 characters, so names sort in
+ * the order they were created and new children are appended behind the existing ones, followed by 12
+ * random characters which keep the names of different servers and clients apart. Names created within
+ * the same millisecond increment the random part of the previous name instead, so they keep their order.
+ *
+ * The alphabet is in ASCII order, so names compare like their timestamps.
+ */
+public class PushId {
+    static final String CHARS = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+
+    private static final int TIME_LENGTH = 8;
+    private static final int RANDOM_LENGTH = 12;
+
+    // shared by all threads, so names created in the same millisecond keep their order
+    private static final PushId INSTANCE = new PushId();
+
+    public static PushId get() {
+        return INSTANCE;
+    }
+
+    private final Random random = new SecureRandom();
+    private final int[] lastRandom = new int[RANDOM_LENGTH];
+    private long lastTime = -1;
+
+    private PushId() {
+    }
+
+    public String next() {
+        return next(System.currentTimeMillis());
+    }
+
+    synchronized String next(long time) {
+        if (time <= lastTime) {
+            // same millisecond or the clock went back, stay behind the previous name
+            time = lastTime;
+            increment();
+        } else {
+            lastTime = time;
+            for (int i = 0; i < RANDOM_LENGTH; i++) {
+                lastRandom[i] = random.nextInt(CHARS.length());
+            }
+        }
+        char[] id = new char[TIME_LENGTH + RANDOM_LENGTH];
+        for (int i = TIME_LENGTH - 1; i >= 0; i--) {
+            id[i] = CHARS.charAt((int) (time % CHARS.length()));
+            time /= CHARS.length();
+        }
+        for (int i = 0; i < RANDOM_LENGTH; i++) {
+            id[TIME_LENGTH + i] = CHARS.charAt(lastRandom[i]);
+        }
+        return new String(id);
+    }
+
+    private void increment() {
+        int i = RANDOM_LENGTH - 1;
+        while (i >= 0 && lastRandom[i] == CHARS.length() - 1) {
+            lastRandom[i--] = 0;
+        }
+        if (i >= 0) {
+            lastRandom[i]++;
+        } else {
+            // 64^12 names in one millisecond, borrow the next one
+            lastTime++;
+        }
+    }
+
+    /**
+     * @return milliseconds since the epoch at which id was created, -1 if id is no push id
+     */
+    public static long timestamp(String id) {
+        if (id == null || id.length() != TIME_LENGTH + RANDOM_LENGTH) {
+            return -1;
+        }
+        long time = 0;
+        for (int i = 0; i < TIME_LENGTH; i++) {
+            int digit = CHARS.indexOf(id.charAt(i));
+            if (digit < 0) {
+                return -1;
+            }
+            time = time * CHARS.length() + digit;
+        }
+        return time;
+    }
+}
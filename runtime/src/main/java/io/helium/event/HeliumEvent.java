@@ -57,6 +57,11 @@ public class HeliumEvent extends JsonObject {
      */
     public static final String NAME = "name";
 
+    /**
+     * Milliseconds after which the written node expires and is deleted, 0 to keep it
+     */
+    public static final String TTL = "ttl";
+
     public HeliumEvent(JsonObject body) {
         this.map = body.toMap();
     }
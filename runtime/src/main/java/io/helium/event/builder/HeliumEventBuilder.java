@@ -69,6 +69,13 @@ public class HeliumEventBuilder {
         return this;
     }
 
+    public HeliumEventBuilder withTtl(Number ttl) {
+        if (ttl != null) {
+            underConstruction.putNumber(HeliumEvent.TTL, ttl);
+        }
+        return this;
+    }
+
     public HeliumEventBuilder name(String name) {
         underConstruction.putString(HeliumEvent.NAME, name);
         return this;
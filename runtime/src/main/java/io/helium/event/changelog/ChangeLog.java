@@ -18,6 +18,7 @@ package io.helium.event.changelog;
 
 import io.helium.common.Path;
 import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
 
 public class ChangeLog extends JsonArray{
 
@@ -40,10 +41,40 @@ public class ChangeLog extends JsonArray{
             add(new ValueChanged(name, path, parent, value));
     }
 
+    /**
+     * Adds the change of an ancestor of a written node, with only the change below it as delta, see
+     * {@link ChangeLogEvent#DELTA}
+     */
+    public void addChildChangedDeltaLogEntry(String name, Path path, Path parent, Object delta, long numChildren) {
+        if (name != null) {
+            add(new ChildChanged(name, path, parent, delta, numChildren).putBoolean(ChangeLogEvent.DELTA, true));
+        }
+    }
+
+    public void addValueChangedDeltaLogEntry(String name, Path path, Path parent, Object delta) {
+        add(new ValueChanged(name, path, parent, delta).putBoolean(ChangeLogEvent.DELTA, true));
+    }
+
     public void addChildDeletedLogEntry(Path path, String name, Object value) {
         add(new ChildDeleted(path, name, value));
     }
 
+    public void addExpiryChangedLogEntry(Path path, long expiresAt) {
+        add(new ExpiryChanged(path, expiresAt));
+    }
+
+    /**
+     * Numbers the delta events with sequence, the number the change log was accepted with, see
+     * {@link ChangeLogEvent#SEQUENCE}
+     */
+    public void sequenced(long sequence) {
+        for (Object event : this) {
+            if (((JsonObject) event).getBoolean(ChangeLogEvent.DELTA, false)) {
+                ((JsonObject) event).putNumber(ChangeLogEvent.SEQUENCE, sequence);
+            }
+        }
+    }
+
     public static ChangeLog of(JsonArray body) {
         return new ChangeLog(body);
     }
@@ -38,24 +38,20 @@ public class ChangeLogBuilder {
     }
 
     public void addChange(String name, Object value) {
-        log.addChildChangedLogEntry(name, path, parentPath, value, childCount(value));
+        log.addChildChangedLogEntry(name, path, parentPath, value, Node.childCount(value));
         log.addValueChangedLogEntry(name, path.append(name), path, value);
     }
 
     public void addNew(String name, Object value) {
-        log.addChildAddedLogEntry(name, path, parentPath, value, childCount(value));
+        log.addChildAddedLogEntry(name, path, parentPath, value, Node.childCount(value));
     }
 
     public void addChangedNode(String name, Node value) {
-        log.addChildChangedLogEntry(name, path, parentPath, value, childCount(value));
+        log.addChildChangedLogEntry(name, path, parentPath, value, Node.childCount(value));
     }
 
     public void addDeleted(String name, Object value) {
         log.addChildDeletedLogEntry(path, name, value);
     }
 
-    private long childCount(Object node) {
-        return (node instanceof Node) ? ((Node) node).getChildren().size() : 0;
-    }
-
 }
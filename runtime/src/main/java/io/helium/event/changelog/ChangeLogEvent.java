@@ -22,6 +22,17 @@ import org.vertx.java.core.json.JsonObject;
 import java.util.Map;
 
 public abstract class ChangeLogEvent extends JsonObject {
+    /**
+     * Marks an event whose value is only the change below its node, which other events of the change
+     * log write, instead of the whole value of the node
+     */
+    public static final String DELTA = "delta";
+
+    /**
+     * Sequence number of the change log of a delta event, given when it is accepted, the whole value of
+     * the node is read as of that change log
+     */
+    public static final String SEQUENCE = "sequence";
 
     public ChangeLogEvent(Map<String, Object> stringObjectMap) {
         super(stringObjectMap);
@@ -34,4 +45,12 @@ public abstract class ChangeLogEvent extends JsonObject {
     public abstract Path path();
 
     public abstract Object value();
+
+    public boolean isDelta() {
+        return getBoolean(DELTA, false);
+    }
+
+    public long sequence() {
+        return getLong(SEQUENCE);
+    }
 }
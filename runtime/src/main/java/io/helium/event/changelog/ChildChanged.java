@@ -60,6 +60,13 @@ public class ChildChanged extends ChangeLogEvent {
         return getValue("value");
     }
 
+    /**
+     * @return path of the child which changed
+     */
+    public Path changedPath() {
+        return Path.of(getString("path")).append(name());
+    }
+
     public int numChildren() {
         return getInteger("numChildren");
     }
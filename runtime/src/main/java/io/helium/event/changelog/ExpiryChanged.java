@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 The Helium Project
+ *
+ * The Helium Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.helium.event.changelog;
+
+import io.helium.common.Path;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Map;
+
+/**
+ * The node at path expires at expiresAt, in milliseconds since the epoch, or no longer expires if it is 0.
+ * Clients aren't notified, they see the {@link ChildDeleted} events of the expired node.
+ */
+public class ExpiryChanged extends ChangeLogEvent {
+    private static final long serialVersionUID = 1L;
+
+    public ExpiryChanged(Path path, long expiresAt) {
+        putString("type", getClass().getSimpleName());
+        putString("path", path.toString());
+        putNumber("expiresAt", expiresAt);
+    }
+
+    public ExpiryChanged(Map<String, Object> stringObjectMap) {
+        super(stringObjectMap);
+    }
+
+    public static ExpiryChanged of(JsonObject logE) {
+        return new ExpiryChanged(logE.toMap());
+    }
+
+    public Path path() {
+        return Path.of(getString("path"));
+    }
+
+    public long expiresAt() {
+        return getLong("expiresAt");
+    }
+
+    public Object value() {
+        return null;
+    }
+}
@@ -60,4 +60,11 @@ public class ValueChanged extends ChangeLogEvent {
     public Object value() {
         return getValue("value");
     }
+
+    /**
+     * @return path of the node which changed
+     */
+    public Path changedPath() {
+        return path();
+    }
 }
@@ -3,6 +3,7 @@ package io.helium.persistence.actions;
 import io.helium.authorization.Authorizator;
 import io.helium.authorization.Operation;
 import io.helium.common.Path;
+import io.helium.event.HeliumEvent;
 import io.helium.event.changelog.ChangeLog;
 import io.helium.event.changelog.ChangeLogBuilder;
 import io.helium.persistence.mapdb.MapDbService;
@@ -29,10 +30,23 @@ public abstract class CommonPersistenceVerticle implements Handler<Message<JsonO
         } else if ( path.isEmtpy()) {
             return MapDbService.get().of(path);
         } else {
-            return MapDbService.get().of(path.parent()).getObjectForPath(path);
+            return MapDbService.get().root().getObjectForPath(path);
         }
     }
 
+    /**
+     * Adds the expiry time of the node at path to changeLog, if event was sent with a TTL
+     *
+     * @return changeLog
+     */
+    protected ChangeLog withExpiry(HeliumEvent event, Path path, ChangeLog changeLog) {
+        if (event.containsField(HeliumEvent.TTL)) {
+            long ttl = ((Number) event.getValue(HeliumEvent.TTL)).longValue();
+            changeLog.addExpiryChangedLogEntry(path, ttl > 0 ? System.currentTimeMillis() + ttl : 0);
+        }
+        return changeLog;
+    }
+
     protected void applyNewValue( Optional<JsonObject> auth,
                                  Path path,
                                  Object payload,
@@ -55,20 +69,15 @@ public abstract class CommonPersistenceVerticle implements Handler<Message<JsonO
                                     (JsonObject) payload);
                         }
 
+                        boolean changed = !payload.equals(parent.get(path.lastElement()));
                         if (!exists(path)) {
                             changeLog.addChildAddedLogEntry(path.lastElement(),
                                     path.parent(), path.parent().parent(), payload, 0);
-                        } else if(!payload.equals(parent.get(path.lastElement()))) {
-                            addChangeEvent(changeLog, path);
+                        } else if (changed) {
+                            addChangeEvent(changeLog, path, payload);
                         }
-
-                        Path currentPath = path;
-                        while (!currentPath.isSimple()) {
-                            if(!payload.equals(parent.get(path.lastElement()))) {
-                                changeLog.addValueChangedLogEntry(currentPath.lastElement(), currentPath,
-                                        currentPath.parent(), getObjectForPath(currentPath));
-                            }
-                            currentPath = currentPath.parent();
+                        if (changed) {
+                            addValueChangeEvents(changeLog, path, payload);
                         }
                         handler.handle(changeLog);
                     }
@@ -128,24 +137,40 @@ public abstract class CommonPersistenceVerticle implements Handler<Message<JsonO
         }
     }
 
-    private void addChangeEvent(ChangeLog log, Path path) {
-        Object payload = getObjectForPath(path);
-        if(payload instanceof Node) {
-            log.addChildChangedLogEntry(path.lastElement(), path.parent(), path.parent()
-                    .parent(), ((Node) payload).toJsonObject(), Node.childCount(payload));
-
-            log.addValueChangedLogEntry(path.lastElement(), path.parent(), path.parent()
-                    .parent(), ((Node)payload).toJsonObject());
+    /**
+     * Adds the change of the node at path to payload, and the change of every ancestor but the root. An
+     * object payload is merged into the node by the events of its fields, so it is a delta as well. The
+     * ancestors only carry the change below them as delta, their whole values are read by the endpoints
+     * which have listeners for them.
+     */
+    private void addChangeEvent(ChangeLog log, Path path, Object payload) {
+        Object delta = payload;
+        for (Path current = path; !current.isEmtpy(); current = current.parent()) {
+            long children = Node.childCount(getObjectForPath(current));
+            if (current.equals(path) && !(payload instanceof JsonObject)) {
+                log.addChildChangedLogEntry(current.lastElement(), current.parent(), current.parent().parent(),
+                        payload, children);
+            } else {
+                log.addChildChangedDeltaLogEntry(current.lastElement(), current.parent(), current.parent().parent(),
+                        delta, children);
+            }
+            delta = new JsonObject().putValue(current.lastElement(), delta);
         }
-        else {
-            log.addChildChangedLogEntry(path.lastElement(), path.parent(), path.parent()
-                    .parent(), payload, Node.childCount(payload));
+    }
 
-            log.addValueChangedLogEntry(path.lastElement(), path.parent(), path.parent()
-                    .parent(), payload);
-        }
-        if (!path.isEmtpy()) {
-            addChangeEvent(log, path.parent());
+    /**
+     * Adds the value change of the node at path and of its ancestors but the root, as deltas like
+     * {@link #addChangeEvent(ChangeLog, Path, Object)}
+     */
+    private void addValueChangeEvents(ChangeLog log, Path path, Object payload) {
+        Object delta = payload;
+        for (Path current = path; !current.isEmtpy(); current = current.parent()) {
+            if (current.equals(path) && !(payload instanceof JsonObject)) {
+                log.addValueChangedLogEntry(current.lastElement(), current, current.parent(), payload);
+            } else {
+                log.addValueChangedDeltaLogEntry(current.lastElement(), current, current.parent(), delta);
+            }
+            delta = new JsonObject().putValue(current.lastElement(), delta);
         }
     }
 
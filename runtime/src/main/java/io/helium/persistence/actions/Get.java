@@ -3,6 +3,8 @@ package io.helium.persistence.actions;
 import io.helium.common.Path;
 import io.helium.persistence.mapdb.MapDbService;
 import io.helium.persistence.mapdb.Node;
+import io.helium.persistence.mapdb.ReadView;
+import io.helium.persistence.queries.RangeQuery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vertx.java.core.eventbus.Message;
@@ -16,24 +18,37 @@ import org.vertx.java.core.json.JsonObject;
 public class Get extends CommonPersistenceVerticle{
     private static final Logger LOGGER = LoggerFactory.getLogger(Get.class);
 
+    /**
+     * Reads from the version of the store published last, so a change log being applied is never seen
+     * half done
+     */
     public void handle(Message<JsonObject> event) {
         long start = System.currentTimeMillis();
-        if (MapDbService.get().exists(Path.of(event.body().getString("path")))) {
-            event.reply(MapDbService.get().of(Path.of(event.body().getString("path"))).toJsonObject());
-            LOGGER.info("Get Action took: "+(System.currentTimeMillis()-start)+"ms");
-        } else {
-            Object value = get(Path.of(event.body().getString("path")));
-            if (value instanceof Node) {
-                event.reply(((Node) value).toJsonObject());
-                LOGGER.info("Get Action took: "+(System.currentTimeMillis()-start)+"ms");
+        Path path = Path.of(event.body().getString("path"));
+        try (ReadView view = MapDbService.get().read()) {
+            if (view.exists(path)) {
+                RangeQuery query = RangeQuery.of(event.body().getObject("query"));
+                event.reply(view.of(path).toJsonObject(query));
             } else {
-                event.reply(value);
-                LOGGER.info("Get Action took: "+(System.currentTimeMillis()-start)+"ms");
+                Object value = view.root().getObjectForPath(path);
+                if (value instanceof Node) {
+                    event.reply(((Node) value).toJsonObject());
+                } else {
+                    event.reply(value);
+                }
             }
         }
+        LOGGER.info("Get Action took: "+(System.currentTimeMillis()-start)+"ms");
     }
 
     public static JsonObject request(Path path) {
         return new JsonObject().putString("path", path.toString());
     }
+
+    /**
+     * Request for the children of path within query only
+     */
+    public static JsonObject request(Path path, RangeQuery query) {
+        return request(path).putObject("query", query.toJson());
+    }
 }
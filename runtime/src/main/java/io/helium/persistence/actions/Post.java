@@ -17,14 +17,13 @@
 package io.helium.persistence.actions;
 
 import io.helium.common.Path;
+import io.helium.common.PushId;
 import io.helium.event.HeliumEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.json.JsonObject;
 
-import java.util.UUID;
-
 public class Post extends CommonPersistenceVerticle {
     private static final Logger LOGGER = LoggerFactory.getLogger(Post.class);
 
@@ -43,16 +42,16 @@ public class Post extends CommonPersistenceVerticle {
         if (event.containsField("name")) {
             nodeName = event.getString("name");
         } else {
-            nodeName = UUID.randomUUID().toString().replaceAll("-", "");
+            nodeName = PushId.get().next();
         }
         if (path.isEmtpy()) {
             applyNewValue(event.getAuth(), new Path(nodeName), payload, changeLog -> {
-                msg.reply(changeLog);
+                msg.reply(withExpiry(event, new Path(nodeName), changeLog));
                 LOGGER.info("Post Action took: " + (System.currentTimeMillis() - start) + "ms");
             });
         } else {
             applyNewValue(event.getAuth(), path, payload, changeLog -> {
-                msg.reply(changeLog);
+                msg.reply(withExpiry(event, path, changeLog));
                 LOGGER.info("Post Action took: " + (System.currentTimeMillis() - start) + "ms");
             });
         }
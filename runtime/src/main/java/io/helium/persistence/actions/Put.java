@@ -39,7 +39,7 @@ public class Put extends CommonPersistenceVerticle {
                 });
             } else {
                 applyNewValue(event.getAuth(), path, payload, changeLog -> {
-                    msg.reply(changeLog);
+                    msg.reply(withExpiry(event, path, changeLog));
                     LOGGER.info("Put Action took: " + (System.currentTimeMillis() - start) + "ms");
                 });
             }
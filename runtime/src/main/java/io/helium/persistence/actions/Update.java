@@ -43,7 +43,7 @@ public class Update extends CommonPersistenceVerticle {
         if (event.containsField(HeliumEvent.PAYLOAD)) {
             Object obj = event.getValue(HeliumEvent.PAYLOAD);
             updateValue(event.getAuth(), path, obj, changeLog -> {
-                msg.reply(changeLog);
+                msg.reply(withExpiry(event, path, changeLog));
                 LOGGER.info("Update Action took: " + (System.currentTimeMillis() - start) + "ms");
             });
         } else {
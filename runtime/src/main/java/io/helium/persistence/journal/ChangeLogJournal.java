@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 The Helium Project
+ *
+ * The Helium Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.helium.persistence.journal;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import io.helium.event.changelog.ChangeLog;
+import journal.io.api.Journal;
+import journal.io.api.Location;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Sequential write-ahead journal of {@link ChangeLog}s.
+ *
+ * Change logs are appended asynchronously and become durable with the next {@link #sync()}, so many
+ * appends share one fsync. Once the store has committed everything appended so far, the journaled
+ * records are dropped with {@link #checkpointed()}. Replaying the remaining records on startup is
+ * idempotent, because every change log entry writes or deletes an absolute value.
+ */
+public class ChangeLogJournal {
+    private static final int COMPACT_AFTER_DELETES = 10000;
+
+    private final Journal journal = new Journal();
+    private final List<Location> uncheckpointed = Lists.newArrayList();
+    private long deletedSinceCompaction = 0;
+
+    public ChangeLogJournal(File directory) {
+        journal.setDirectory(directory);
+        journal.setPhysicalSync(true);
+    }
+
+    public void open() throws IOException {
+        journal.getDirectory().mkdirs();
+        journal.open();
+    }
+
+    public void close() throws IOException {
+        journal.close();
+    }
+
+    public void append(JsonArray changeLog) throws IOException {
+        uncheckpointed.add(journal.write(changeLog.encode().getBytes(Charsets.UTF_8), Journal.WriteType.ASYNC));
+    }
+
+    /**
+     * Blocks until every appended change log is written and synced to disk
+     */
+    public void sync() throws IOException {
+        journal.sync();
+    }
+
+    /**
+     * Hands every change log, which wasn't checkpointed before, to the handler in append order.
+     *
+     * @return number of replayed change logs
+     */
+    public int replay(Handler<ChangeLog> handler) throws IOException {
+        int replayed = 0;
+        for (Location location : journal.redo()) {
+            byte[] data = journal.read(location, Journal.ReadType.ASYNC);
+            handler.handle(ChangeLog.of(new JsonArray(new String(data, Charsets.UTF_8))));
+            uncheckpointed.add(location);
+            replayed++;
+        }
+        return replayed;
+    }
+
+    public boolean hasUncheckpointed() {
+        return !uncheckpointed.isEmpty();
+    }
+
+    /**
+     * @return number of change logs appended or replayed, which weren't checkpointed yet
+     */
+    public int uncheckpointed() {
+        return uncheckpointed.size();
+    }
+
+    /**
+     * Drops all change logs appended so far. Must only be called after the store committed them.
+     */
+    public void checkpointed() throws IOException {
+        checkpointed(uncheckpointed.size());
+    }
+
+    /**
+     * Drops the first count change logs which weren't checkpointed yet, once a snapshot of the store
+     * holds them
+     */
+    public void checkpointed(int count) throws IOException {
+        List<Location> checkpointed = uncheckpointed.subList(0, Math.min(count, uncheckpointed.size()));
+        for (Location location : checkpointed) {
+            journal.delete(location);
+        }
+        deletedSinceCompaction += checkpointed.size();
+        checkpointed.clear();
+        if (deletedSinceCompaction >= COMPACT_AFTER_DELETES) {
+            journal.compact();
+            deletedSinceCompaction = 0;
+        }
+    }
+}
@@ -0,0 +1,588 @@
+package io.helium.persistence.mapdb;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.base.Charsets;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.collect.Queues;
+import com.google.common.io.Files;
+import io.helium.common.Path;
+import org.mapdb.Fun;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ *
+ * Bulk import of large JSON documents or NDJSON files into the node store. The file is stream parsed
+ * into (key, value) entries, which are sorted in runs of runSize entries and spilled to temporary
+ * files. The runs are merged with the part of the store outside of the imported path into one valid
+ * tree, which is spilled once more in descending order and pumped into a new B-tree. The B-tree is
+ * built bottom up and replaces the store in one commit.
+ *
+ * The import replaces the subtree at the target path. A JSON document is the new content of the target
+ * path, every line of an NDJSON file sets the value of one path relative to the target path,
+ * {"path": "/a/b", "value": ...}, and replaces whatever earlier lines wrote at or below that path.
+ * NDJSON lines are parsed in parallel. Binary snapshots of {@link SnapshotExporter} are already sorted
+ * and merged without spilling runs.
+ */
+public class BulkLoader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkLoader.class);
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    /**
+     * Ascending by key and, for the same key, the entry written last first
+     */
+    private static final Comparator<Entry> ORDER = (a, b) -> {
+        int compared = a.key.compareTo(b.key);
+        return compared != 0 ? compared : Long.compare(b.sequence, a.sequence);
+    };
+
+    private static final int END = 0;
+    private static final int VALUE = 1;
+    private static final int ANCESTOR = 2;
+
+    public enum Format {
+        JSON, NDJSON, BINARY;
+
+        /**
+         * @return the format of the given name, guessed from the file extension if there is none
+         */
+        public static Format of(String name, File file) {
+            if (name != null) {
+                return valueOf(name.toUpperCase());
+            }
+            if (file.getName().endsWith(".ndjson")) {
+                return NDJSON;
+            }
+            return file.getName().endsWith(SnapshotExporter.EXTENSION) ? BINARY : JSON;
+        }
+    }
+
+    private final int runSize;
+    private final int parallelism;
+
+    public BulkLoader(int runSize, int parallelism) {
+        this.runSize = runSize;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @return statistics of the import
+     */
+    public JsonObject load(File file, Path path, Format format) throws IOException {
+        long start = System.currentTimeMillis();
+        String target = NodeKey.of(path);
+        File runDirectory = Files.createTempDir();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<File> runs = Lists.newArrayList();
+            List<Iterator<Entry>> sources = Lists.newArrayList();
+            if (format == Format.BINARY) {
+                sources.add(readSnapshot(file, target));
+            } else {
+                runs = format == Format.NDJSON
+                        ? parseLines(file, target, runDirectory, executor)
+                        : parseDocument(file, target, runDirectory, executor);
+                for (File run : runs) {
+                    sources.add(new RunReader(run));
+                }
+            }
+            sources.add(existingEntries(target));
+            TreeShaper shaper = new TreeShaper(Iterators.mergeSorted(sources, ORDER));
+            List<File> chunks = reverse(shaper, runDirectory);
+            // chunks are opened one after another, only the runs have to be open at the same time, and
+            // read once by every partition holding part of the target
+            MapDbService.get().replaceNodes(target, () -> Iterators.concat(
+                    Iterators.transform(Lists.reverse(chunks).iterator(), ChunkReader::new)));
+
+            long duration = Math.max(1, System.currentTimeMillis() - start);
+            double megabytes = file.length() / (1024d * 1024d);
+            JsonObject result = new JsonObject()
+                    .putNumber("entries", shaper.entries)
+                    .putNumber("runs", runs.size())
+                    .putNumber("replaced", shaper.replaced)
+                    .putNumber("bytes", file.length())
+                    .putNumber("duration", duration)
+                    .putNumber("mbPerSecond", megabytes * 1000 / duration);
+            LOGGER.info("Imported {} entries from {} ({} MB) in {}ms, {} MB/s", shaper.entries, file,
+                    String.format("%.1f", megabytes), duration, String.format("%.1f", megabytes * 1000 / duration));
+            return result;
+        } finally {
+            executor.shutdownNow();
+            File[] files = runDirectory.listFiles();
+            if (files != null) {
+                for (File run : files) {
+                    run.delete();
+                }
+            }
+            runDirectory.delete();
+        }
+    }
+
+    private List<File> parseDocument(File file, String target, File runDirectory, ExecutorService executor)
+            throws IOException {
+        Semaphore inFlight = new Semaphore(parallelism);
+        List<Future<List<File>>> runs = Lists.newArrayList();
+        RunBuilder builder = new RunBuilder(0, entries -> {
+            inFlight.acquireUninterruptibly();
+            runs.add(executor.submit(() -> {
+                try {
+                    return Collections.singletonList(spill(entries, runDirectory));
+                } finally {
+                    inFlight.release();
+                }
+            }));
+        });
+        try (JsonParser parser = JSON.createParser(file)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object in " + file);
+            }
+            addAncestors(target, builder);
+            if (!target.isEmpty()) {
+                builder.add(target, Node.OBJECT, VALUE);
+            }
+            parseObject(parser, target, builder);
+        }
+        builder.flush();
+        return await(runs);
+    }
+
+    private List<File> parseLines(File file, String target, File runDirectory, ExecutorService executor)
+            throws IOException {
+        Semaphore inFlight = new Semaphore(parallelism * 2);
+        List<Future<List<File>>> runs = Lists.newArrayList();
+        // a batch of lines should about fill one run, otherwise the merge has to open too many runs
+        int linesPerBatch = Math.max(1024, runSize / 8);
+        try (BufferedReader reader = Files.newReader(file, Charsets.UTF_8)) {
+            long batch = 0;
+            List<String> lines = Lists.newArrayListWithCapacity(linesPerBatch);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    lines.add(line);
+                }
+                if (lines.size() == linesPerBatch) {
+                    runs.add(submitLines(lines, batch++, target, runDirectory, executor, inFlight));
+                    lines = Lists.newArrayListWithCapacity(linesPerBatch);
+                }
+            }
+            if (!lines.isEmpty()) {
+                runs.add(submitLines(lines, batch, target, runDirectory, executor, inFlight));
+            }
+        }
+        return await(runs);
+    }
+
+    private Future<List<File>> submitLines(List<String> lines, long batch, String target, File runDirectory,
+                                           ExecutorService executor, Semaphore inFlight) {
+        inFlight.acquireUninterruptibly();
+        return executor.submit(() -> {
+            try {
+                List<File> files = Lists.newArrayList();
+                // batches are numbered in file order, so later lines get higher sequences
+                RunBuilder builder = new RunBuilder(batch << 40, entries -> files.add(spill(entries, runDirectory)));
+                for (String line : lines) {
+                    parseLine(line, target, builder);
+                }
+                builder.flush();
+                return files;
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private void parseLine(String line, String target, RunBuilder builder) throws IOException {
+        try (JsonParser parser = JSON.createParser(line)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object in line " + line);
+            }
+            String key = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("path".equals(field)) {
+                    key = target + NodeKey.of(Path.of(parser.getText()));
+                } else if ("value".equals(field)) {
+                    if (key == null) {
+                        throw new IOException("\"path\" has to precede \"value\" in line " + line);
+                    }
+                    addAncestors(key, builder);
+                    parseValue(parser, token, key, builder);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the target path and its ancestors, followed by the entries of the snapshot below the
+     * target path, in ascending order
+     */
+    private static Iterator<Entry> readSnapshot(File file, String target) throws IOException {
+        List<Entry> head = Lists.newArrayList();
+        for (String parent = NodeKey.parent(target); !parent.isEmpty(); parent = NodeKey.parent(parent)) {
+            head.add(0, new Entry(parent, 0, Node.OBJECT, ANCESTOR));
+        }
+        if (!target.isEmpty()) {
+            head.add(new Entry(target, 0, Node.OBJECT, VALUE));
+        }
+        return Iterators.concat(head.iterator(), new SnapshotReader(file, target));
+    }
+
+    private static void addAncestors(String key, RunBuilder builder) throws IOException {
+        for (String parent = NodeKey.parent(key); !parent.isEmpty(); parent = NodeKey.parent(parent)) {
+            builder.add(parent, Node.OBJECT, ANCESTOR);
+        }
+    }
+
+    private static void parseObject(JsonParser parser, String key, RunBuilder builder) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String childKey = NodeKey.child(key, parser.getCurrentName());
+            parseValue(parser, parser.nextToken(), childKey, builder);
+        }
+    }
+
+    private static void parseValue(JsonParser parser, JsonToken token, String key, RunBuilder builder)
+            throws IOException {
+        if (token == JsonToken.START_OBJECT) {
+            if (!key.isEmpty()) {
+                builder.add(key, Node.OBJECT, VALUE);
+            }
+            parseObject(parser, key, builder);
+        } else if (token == JsonToken.VALUE_NULL) {
+            // null values are not stored
+        } else if (key.isEmpty()) {
+            throw new IOException("The root node has to be an object");
+        } else {
+            builder.add(key, readValue(parser, token), VALUE);
+        }
+    }
+
+    /**
+     * @return the value, arrays and objects within arrays as plain lists and maps, which the value
+     * serializer writes directly
+     */
+    private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case START_ARRAY:
+                List<Object> array = Lists.newArrayList();
+                for (JsonToken element = parser.nextToken(); element != JsonToken.END_ARRAY; element = parser.nextToken()) {
+                    array.add(readValue(parser, element));
+                }
+                return array;
+            case START_OBJECT:
+                Map<String, Object> object = Maps.newLinkedHashMap();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    object.put(name, readValue(parser, parser.nextToken()));
+                }
+                return object;
+            default:
+                return null;
+        }
+    }
+
+    private static File spill(List<Entry> entries, File runDirectory) throws IOException {
+        Collections.sort(entries, ORDER);
+        File run = File.createTempFile("run", ".bin", runDirectory);
+        try (DataOutputStream out = output(run)) {
+            for (Entry entry : entries) {
+                out.writeByte(entry.kind);
+                out.writeUTF(entry.key);
+                out.writeLong(entry.sequence);
+                NodeValueSerializer.INSTANCE.serialize(out, entry.value);
+            }
+            out.writeByte(END);
+        }
+        return run;
+    }
+
+    /**
+     * Spills the ascending tree in chunks of runSize entries, each of them in descending order, so
+     * reading the chunks backwards yields the whole tree in descending order
+     */
+    private List<File> reverse(Iterator<Fun.Tuple2<String, Object>> tree, File runDirectory) throws IOException {
+        List<File> chunks = Lists.newArrayList();
+        List<Fun.Tuple2<String, Object>> chunk = Lists.newArrayList();
+        while (tree.hasNext()) {
+            chunk.add(tree.next());
+            if (chunk.size() >= runSize || !tree.hasNext()) {
+                File file = File.createTempFile("chunk", ".bin", runDirectory);
+                try (DataOutputStream out = output(file)) {
+                    for (Fun.Tuple2<String, Object> entry : Lists.reverse(chunk)) {
+                        out.writeByte(VALUE);
+                        out.writeUTF(entry.a);
+                        NodeValueSerializer.INSTANCE.serialize(out, entry.b);
+                    }
+                    out.writeByte(END);
+                }
+                chunks.add(file);
+                chunk.clear();
+            }
+        }
+        return chunks;
+    }
+
+    private static DataOutputStream output(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    }
+
+    private static DataInputStream input(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    }
+
+    private static List<File> await(List<Future<List<File>>> runs) throws IOException {
+        List<File> files = Lists.newArrayList();
+        try {
+            for (Future<List<File>> run : runs) {
+                files.addAll(run.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Failed parsing import", e.getCause() != null ? e.getCause() : e);
+        }
+        return files;
+    }
+
+    /**
+     * All entries of the partitions holding the target subtree outside of it, in ascending order
+     */
+    private static Iterator<Entry> existingEntries(String target) {
+        List<Iterator<Map.Entry<String, Object>>> existing = Lists.newArrayList();
+        for (NodeStore store : MapDbService.get().stores(target)) {
+            StorageEngine nodes = store.nodes();
+            existing.add(store.tombstones().visible(Iterators.concat(
+                    nodes.range(null, target), nodes.range(NodeKey.subTreeEnd(target), null))));
+        }
+        return Iterators.transform(Iterators.mergeSorted(existing, Map.Entry.<String, Object>comparingByKey()),
+                entry -> new Entry(entry.getKey(), -1, entry.getValue(), VALUE));
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final long sequence;
+        private final Object value;
+        /**
+         * VALUE replaces everything written before at or below key, ANCESTOR only makes sure that
+         * key is an object
+         */
+        private final int kind;
+
+        private Entry(String key, long sequence, Object value, int kind) {
+            this.key = key;
+            this.sequence = sequence;
+            this.value = value;
+            this.kind = kind;
+        }
+    }
+
+    private interface Spiller {
+        void spill(List<Entry> entries) throws IOException;
+    }
+
+    private final class RunBuilder {
+        private final Spiller spiller;
+        private long sequence;
+        private List<Entry> entries = Lists.newArrayList();
+
+        private RunBuilder(long sequence, Spiller spiller) {
+            this.sequence = sequence;
+            this.spiller = spiller;
+        }
+
+        private void add(String key, Object value, int kind) throws IOException {
+            entries.add(new Entry(key, sequence++, value, kind));
+            if (entries.size() >= runSize) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (!entries.isEmpty()) {
+                spiller.spill(entries);
+                entries = Lists.newArrayList();
+            }
+        }
+    }
+
+    private static final class RunReader extends AbstractIterator<Entry> {
+        private final DataInputStream in;
+
+        private RunReader(File run) throws IOException {
+            this.in = input(run);
+        }
+
+        @Override
+        protected Entry computeNext() {
+            try {
+                int kind = in.readByte();
+                if (kind == END) {
+                    in.close();
+                    return endOfData();
+                }
+                String key = in.readUTF();
+                long sequence = in.readLong();
+                return new Entry(key, sequence, NodeValueSerializer.INSTANCE.deserialize(in, -1), kind);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Reads a binary snapshot, its entries replace the target marker, so they are written after it
+     */
+    private static final class SnapshotReader extends AbstractIterator<Entry> {
+        private final DataInputStream in;
+        private final String target;
+
+        private SnapshotReader(File snapshot, String target) throws IOException {
+            this.in = input(snapshot);
+            this.target = target;
+            try {
+                SnapshotExporter.readHeader(in);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        @Override
+        protected Entry computeNext() {
+            try {
+                if (!in.readBoolean()) {
+                    in.close();
+                    return endOfData();
+                }
+                String key = target + in.readUTF();
+                return new Entry(key, 1, NodeValueSerializer.INSTANCE.deserialize(in, -1), VALUE);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static final class ChunkReader extends AbstractIterator<Fun.Tuple2<String, Object>> {
+        private final DataInputStream in;
+
+        private ChunkReader(File chunk) {
+            try {
+                this.in = input(chunk);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        protected Fun.Tuple2<String, Object> computeNext() {
+            try {
+                if (in.readByte() == END) {
+                    in.close();
+                    return endOfData();
+                }
+                String key = in.readUTF();
+                return Fun.t2(key, NodeValueSerializer.INSTANCE.deserialize(in, -1));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Turns the merged entries into a valid tree. Of every key only the last written entry survives and
+     * an entry is dropped, if a VALUE written later at one of its ancestors replaced it. A key, whose
+     * last entry only marks it as the ancestor of later writes, becomes an object node.
+     */
+    private static final class TreeShaper extends AbstractIterator<Fun.Tuple2<String, Object>> {
+        private final PeekingIterator<Entry> source;
+        /**
+         * Keys of the ancestors of the current entry and the sequence below which their descendants
+         * are replaced. Existing entries all have the same sequence, so only lower sequences are.
+         */
+        private final Deque<String> ancestors = Queues.newArrayDeque();
+        private final Deque<Long> replacedBelow = Queues.newArrayDeque();
+        private long entries = 0;
+        private long replaced = 0;
+
+        private TreeShaper(Iterator<Entry> source) {
+            this.source = Iterators.peekingIterator(source);
+        }
+
+        @Override
+        protected Fun.Tuple2<String, Object> computeNext() {
+            while (source.hasNext()) {
+                String key = source.peek().key;
+                while (!ancestors.isEmpty() && !key.startsWith(NodeKey.subTreeStart(ancestors.peek()))) {
+                    ancestors.pop();
+                    replacedBelow.pop();
+                }
+                long shadow = replacedBelow.isEmpty() ? Long.MIN_VALUE : replacedBelow.peek();
+                Entry last = null;
+                long lastValue = Long.MIN_VALUE;
+                // entries of the same key are ordered from the last written to the first
+                while (source.hasNext() && source.peek().key.equals(key)) {
+                    Entry entry = source.next();
+                    if (entry.sequence < shadow) {
+                        replaced++;
+                        continue;
+                    }
+                    if (last == null) {
+                        last = entry;
+                    }
+                    if (entry.kind == VALUE) {
+                        lastValue = Math.max(lastValue, entry.sequence);
+                    }
+                }
+                if (last == null || key.isEmpty()) {
+                    continue;
+                }
+                Object value = last.kind == ANCESTOR ? Node.OBJECT : last.value;
+                ancestors.push(key);
+                // descendants of a value can't be written later, otherwise they would have marked it as their ancestor
+                replacedBelow.push(Node.isObject(value) ? Math.max(shadow, lastValue) : Long.MAX_VALUE);
+                entries++;
+                return Fun.t2(key, value);
+            }
+            return endOfData();
+        }
+    }
+}
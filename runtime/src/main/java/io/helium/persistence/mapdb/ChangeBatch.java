@@ -0,0 +1,212 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import io.helium.common.Path;
+import io.helium.event.changelog.ChangeLog;
+import io.helium.event.changelog.ChangeLogEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ *
+ * The writes of a batch of change logs, reduced to the ones which still matter for the outcome. A write
+ * replacing a node, with a plain value or by deleting it, makes all earlier writes to the node and its
+ * descendants obsolete, so only the last of them is applied. A delete keeps an empty object merged into
+ * the parent in place of dropped puts, as these made the parent an object. Merging an object into a node
+ * leaves the earlier writes in place. Expiry times are set in order with the writes and never dropped, a
+ * delete drops the times of the deleted nodes anyway.
+ *
+ * The remaining writes keep their order and are applied in one pass per partition, by its writer thread.
+ */
+final class ChangeBatch {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeBatch.class);
+
+    private final List<Write> writes = Lists.newArrayList();
+    // writes which are not superseded yet, by the key of their node
+    private final NavigableMap<String, List<Write>> pending = Maps.newTreeMap();
+    private int changeLogs = 0;
+    private int dropped = 0;
+
+    /**
+     * Adds the events of changeLog, after those of the change logs added before
+     */
+    void add(ChangeLog changeLog) {
+        List<Write> added = Lists.newArrayListWithCapacity(changeLog.size());
+        for (Object event : changeLog) {
+            Write write = Write.of((JsonObject) event);
+            if (write != null) {
+                added.add(write);
+            }
+        }
+        added.forEach(this::add);
+        changeLogs++;
+    }
+
+    private void add(Write write) {
+        if (write.key.isEmpty()) {
+            LOGGER.warn("Ignoring write to the root node");
+            return;
+        }
+        if (write.expiresAt != null) {
+            writes.add(write);
+            return;
+        }
+        if (write.replaces()) {
+            NavigableMap<String, List<Write>> superseded =
+                    pending.subMap(write.key, true, NodeKey.subTreeEnd(write.key), false);
+            boolean putsDropped = false;
+            for (List<Write> obsolete : superseded.values()) {
+                for (Write previous : obsolete) {
+                    previous.obsolete = true;
+                    putsDropped |= previous.value != null;
+                    dropped++;
+                }
+            }
+            superseded.clear();
+            String parent = NodeKey.parent(write.key);
+            if (putsDropped && write.value == null && !parent.isEmpty()) {
+                // the dropped writes turned the parent into an object, which a delete alone leaves as it is
+                add(new Write(parent, new JsonObject()));
+            }
+        }
+        writes.add(write);
+        pending.computeIfAbsent(write.key, key -> Lists.newArrayListWithCapacity(1)).add(write);
+    }
+
+    boolean isEmpty() {
+        return changeLogs == 0;
+    }
+
+    int changeLogs() {
+        return changeLogs;
+    }
+
+    /**
+     * @return number of writes which are applied
+     */
+    int size() {
+        return writes.size() - dropped;
+    }
+
+    /**
+     * Applies the remaining writes on the writer threads of the partitions holding their nodes and waits
+     * for them. The partitions are written to in parallel.
+     *
+     * @return the partitions written to, which have to be published
+     */
+    Set<NodePartition> apply(MapDbService service) {
+        ListMultimap<NodePartition, Write> byPartition = ArrayListMultimap.create();
+        for (Write write : writes) {
+            if (!write.obsolete) {
+                byPartition.put(service.partition(write.key), write);
+            }
+        }
+        List<Future<?>> applying = Lists.newArrayListWithCapacity(byPartition.keySet().size());
+        for (NodePartition partition : byPartition.keySet()) {
+            List<Write> partitionWrites = byPartition.get(partition);
+            applying.add(partition.submit(() -> {
+                partitionWrites.forEach(write -> write.apply(service));
+                partition.applied(partitionWrites.size());
+            }));
+        }
+        applying.forEach(Futures::getUnchecked);
+        LOGGER.debug("Applied {} change logs with {} writes, {} superseded writes dropped", changeLogs, size(), dropped);
+        return byPartition.keySet();
+    }
+
+    /**
+     * Change log event reduced to the node it changes, with the new value or null for a delete, or the
+     * new expiry time of the node
+     */
+    static final class Write {
+        private final String key;
+        private final Object value;
+        private final Long expiresAt;
+        private boolean obsolete = false;
+
+        private Write(String key, Object value) {
+            this(key, value, null);
+        }
+
+        private Write(String key, Object value, Long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return null for events of an unknown type and for deltas, whose change other events write
+         */
+        static Write of(JsonObject event) {
+            if (event.getBoolean(ChangeLogEvent.DELTA, false)) {
+                return null;
+            }
+            String type = event.getString("type");
+            Path path = Path.of(event.getString("path"));
+            switch (type) {
+                case "ChildAdded":
+                case "ChildChanged":
+                    return new Write(NodeKey.child(NodeKey.of(path), event.getString("name")), event.getValue("value"));
+                case "ValueChanged":
+                    return new Write(NodeKey.child(NodeKey.of(path.parent()), event.getString("name")), event.getValue("value"));
+                case "ChildDeleted":
+                    String name = event.getString("name");
+                    return new Write(name != null ? NodeKey.child(NodeKey.of(path), name) : NodeKey.of(path), null);
+                case "ExpiryChanged":
+                    return new Write(NodeKey.of(path), null, event.getLong("expiresAt"));
+                default:
+                    LOGGER.warn("Ignoring change log event of unknown type {}", type);
+                    return null;
+            }
+        }
+
+        String key() {
+            return key;
+        }
+
+        /**
+         * @return the value written, a JsonObject merged into the node, null for a delete
+         */
+        Object value() {
+            return value;
+        }
+
+        /**
+         * @return whether the write only sets the expiry time of the node
+         */
+        boolean isExpiry() {
+            return expiresAt != null;
+        }
+
+        /**
+         * @return whether the write replaces the node with all of its descendants
+         */
+        boolean replaces() {
+            return !(value instanceof JsonObject);
+        }
+
+        private void apply(MapDbService service) {
+            if (expiresAt != null) {
+                service.partition(key).expiries().expire(key, expiresAt);
+                return;
+            }
+            Node parent = service.node(NodeKey.parent(key));
+            if (value == null) {
+                parent.delete(NodeKey.name(key));
+            }
+            else {
+                parent.put(NodeKey.name(key), value);
+            }
+        }
+    }
+}
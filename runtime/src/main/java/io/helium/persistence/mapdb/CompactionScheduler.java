@@ -0,0 +1,222 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.Maps;
+import org.mapdb.DB;
+import org.mapdb.Store;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Compacts registered MapDB stores in the background, but only when they are fragmented enough to be
+ * worth it. A store is compacted once its free space exceeds minFreeSize bytes and threshold of its
+ * total size. Stores are checked one after another on a single daemon thread, never on the event loop,
+ * and compacted by the executor they are registered with, which runs the compaction when the store holds
+ * no uncommitted writes. After each compaction the scheduler pauses for at least minPause milliseconds
+ * before compacting again.
+ *
+ * The scheduler is controlled through {@link #ADMIN} on the event bus with {"action": "status"},
+ * {"action": "pause"} or {"action": "resume"}, optionally restricted to one "store".
+ */
+public class CompactionScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompactionScheduler.class);
+
+    public static final String ADMIN = "io.helium.admin.compaction";
+
+    private static Optional<CompactionScheduler> instance = Optional.empty();
+
+    public static synchronized CompactionScheduler get() {
+        instance = Optional.of(instance.orElseGet(CompactionScheduler::new));
+        return instance.get();
+    }
+
+    private final Map<String, CompactableStore> stores = Maps.newConcurrentMap();
+    private ScheduledExecutorService executor;
+
+    private long checkInterval = 60000;
+    private double threshold = 0.3;
+    private long minFreeSize = 64 * 1024 * 1024;
+    private long minPause = 300000;
+    private volatile long lastCompaction = 0;
+    private volatile boolean paused = false;
+
+    private CompactionScheduler() {
+    }
+
+    public void configure(JsonObject config) {
+        checkInterval = config.getLong("checkInterval", checkInterval);
+        if (config.containsField("threshold")) {
+            threshold = config.getNumber("threshold").doubleValue();
+        }
+        minFreeSize = config.getLong("minFreeSize", minFreeSize);
+        minPause = config.getLong("minPause", minPause);
+    }
+
+    /**
+     * Registers db, which compactor compacts once nothing is written to it without a commit, on the
+     * thread writing to it
+     */
+    public void register(String name, DB db, Executor compactor) {
+        stores.put(name, new CompactableStore(name, db, compactor));
+    }
+
+    public synchronized void start() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "helium-compaction");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(this::check, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public void pause() {
+        paused = true;
+    }
+
+    public void resume() {
+        paused = false;
+    }
+
+    public void handleAdmin(Message<JsonObject> message) {
+        JsonObject body = message.body();
+        String store = body.getString("store");
+        switch (body.getString("action", "status")) {
+            case "pause":
+                if (store == null) pause();
+                else if (stores.containsKey(store)) stores.get(store).paused = true;
+                break;
+            case "resume":
+                if (store == null) resume();
+                else if (stores.containsKey(store)) stores.get(store).paused = false;
+                break;
+            case "status":
+                break;
+            default:
+                message.fail(400, "Unknown action " + body.getString("action"));
+                return;
+        }
+        message.reply(status());
+    }
+
+    public JsonObject status() {
+        JsonObject status = new JsonObject();
+        status.putBoolean("paused", paused);
+        status.putNumber("threshold", threshold);
+        status.putNumber("minFreeSize", minFreeSize);
+        JsonObject storeStatus = new JsonObject();
+        stores.values().forEach(store -> storeStatus.putObject(store.name, store.status()));
+        status.putObject("stores", storeStatus);
+        return status;
+    }
+
+    private void check() {
+        if (paused || System.currentTimeMillis() - lastCompaction < minPause
+                || stores.values().stream().anyMatch(store -> store.scheduled)) {
+            // one store at a time
+            return;
+        }
+        for (CompactableStore store : stores.values()) {
+            if (store.needsCompaction()) {
+                store.scheduled = true;
+                store.compactor.execute(store::compact);
+                return;
+            }
+        }
+    }
+
+    private class CompactableStore {
+        private final String name;
+        private final DB db;
+        private final Executor compactor;
+        private volatile boolean paused = false;
+        // handed over to the compactor, which has not compacted the store yet
+        private volatile boolean scheduled = false;
+        private volatile boolean compacting = false;
+        private volatile long size = 0;
+        private volatile long freeSize = 0;
+        private volatile long compactions = 0;
+        private volatile long reclaimed = 0;
+        private volatile long lastDuration = 0;
+        private volatile long compactingSince = 0;
+
+        private CompactableStore(String name, DB db, Executor compactor) {
+            this.name = name;
+            this.db = db;
+            this.compactor = compactor;
+        }
+
+        private boolean needsCompaction() {
+            if (db.isClosed()) {
+                return false;
+            }
+            Store store = Store.forDB(db);
+            size = store.getCurrSize();
+            freeSize = store.getFreeSize();
+            return !paused && freeSize >= minFreeSize && fragmentation() >= threshold;
+        }
+
+        private double fragmentation() {
+            return size > 0 ? (double) freeSize / size : 0;
+        }
+
+        private void compact() {
+            long before = size;
+            compacting = true;
+            compactingSince = System.currentTimeMillis();
+            try {
+                db.compact();
+            }
+            catch (Exception e) {
+                LOGGER.warn("Compaction of store " + name + " failed, retrying with next check", e);
+                return;
+            }
+            finally {
+                compacting = false;
+                scheduled = false;
+                lastCompaction = System.currentTimeMillis();
+                lastDuration = lastCompaction - compactingSince;
+            }
+            size = Store.forDB(db).getCurrSize();
+            freeSize = Store.forDB(db).getFreeSize();
+            compactions++;
+            reclaimed += Math.max(0, before - size);
+            LOGGER.info("Compacted store {} from {} to {} bytes in {}ms", name, before, size, lastDuration);
+        }
+
+        private JsonObject status() {
+            JsonObject status = new JsonObject();
+            status.putBoolean("paused", paused);
+            status.putBoolean("scheduled", scheduled);
+            status.putBoolean("compacting", compacting);
+            if (compacting) {
+                status.putNumber("compactingFor", System.currentTimeMillis() - compactingSince);
+            }
+            status.putNumber("size", size);
+            status.putNumber("freeSize", freeSize);
+            status.putNumber("fragmentation", fragmentation());
+            status.putNumber("compactions", compactions);
+            status.putNumber("reclaimed", reclaimed);
+            status.putNumber("lastDuration", lastDuration);
+            return status;
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * In memory copies of the subtrees of a partition read most often, in front of its MapDB store. The
+ * subtrees held are those rooted at a fixed depth, /users/ada at depth 2, each copied as one sorted
+ * array of keys and values, so reading a node of a resident subtree is a binary search in memory and
+ * doesn't deserialize anything.
+ *
+ * Writes go to the store as before and mark the subtrees they touch, which are dropped when the
+ * partition publishes its next version. A resident subtree is tagged with the generation of the
+ * version it was copied from and only serves readers of that version or a later one, live readers
+ * only while no write marked it. Subtrees are copied on their second miss within the sampling period,
+ * evicted by CLOCK to stay below the memory budget, and only replace a victim accessed less often than
+ * themselves, judged by a sketch of the access frequencies like TinyLFU does.
+ */
+final class HotTier {
+    /**
+     * Generation of the readers of the live store
+     */
+    static final long LIVE = Long.MAX_VALUE;
+
+    private static final int SKETCH_SIZE = 1 << 16;
+    private static final int ENTRY_BYTES = 64;
+
+    private final int depth;
+    private final long budget;
+    private final int maxEntries;
+
+    private final ConcurrentSkipListMap<String, Subtree> resident = new ConcurrentSkipListMap<>();
+    // roots of the subtrees written to since the last publish, or shallower keys replacing whole subtrees
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+    // subtrees too large to be held, not counted again for a while
+    private final Cache<String, Boolean> oversized = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build();
+    private final List<Subtree> clock = Lists.newArrayList();
+    private int hand = 0;
+    private volatile long generation = 0;
+    private long used = 0;
+
+    // access frequencies of the subtrees, halved after every sampling period
+    private final byte[] sketch = new byte[SKETCH_SIZE];
+    private int samples = 0;
+
+    private final ConcurrentMap<String, Residency> residencies = new ConcurrentSkipListMap<>();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param config budget, the bytes the copies of the subtrees may take, 0 to turn the tier off, depth
+     *               of their roots and maxEntries, the number of nodes of the largest subtree held
+     */
+    HotTier(JsonObject config) {
+        this.budget = config.getLong("budget", 64 * 1024 * 1024);
+        this.depth = Math.max(1, config.getInteger("depth", 2));
+        this.maxEntries = config.getInteger("maxEntries", 4096);
+    }
+
+    /**
+     * @return the resident subtree holding key, copied from source on a miss if the subtree is read
+     * often enough, null if the tier doesn't hold key and source has to be read instead
+     */
+    Subtree subtree(String key, NodeStore source) {
+        if (budget <= 0) {
+            return null;
+        }
+        String root = root(key);
+        if (root == null) {
+            return null;
+        }
+        long readerGeneration = source.generation();
+        Subtree subtree = resident.get(root);
+        if (subtree != null && subtree.generation <= readerGeneration
+                && (readerGeneration != LIVE || !isChanged(root))) {
+            subtree.referenced = true;
+            subtree.residency.hits.increment();
+            record(root);
+            return subtree;
+        }
+        Residency residency = residency(root);
+        residency.misses.increment();
+        if (record(root) < 1 || oversized.getIfPresent(root) != null) {
+            return null;
+        }
+        long loadedAt = generation;
+        subtree = load(root, source, readerGeneration == LIVE ? loadedAt : readerGeneration, residency);
+        if (subtree == null) {
+            oversized.put(root, Boolean.TRUE);
+            return null;
+        }
+        admit(subtree, readerGeneration == LIVE ? loadedAt : readerGeneration, readerGeneration == LIVE);
+        return subtree;
+    }
+
+    /**
+     * @return key of the root of the subtree holding key, null if key is above the depth of the roots
+     */
+    private String root(String key) {
+        int end = 0;
+        for (int level = 1; level <= depth; level++) {
+            end = key.indexOf(NodeKey.SEPARATOR, end + 1);
+            if (end < 0) {
+                return level == depth ? key : null;
+            }
+        }
+        return key.substring(0, end);
+    }
+
+    /**
+     * @return copy of the subtree, null if it has more than maxEntries nodes
+     */
+    private Subtree load(String root, NodeStore source, long generation, Residency residency) {
+        List<String> keys = Lists.newArrayList();
+        List<Object> values = Lists.newArrayList();
+        NodeTombstones tombstones = source.tombstones();
+        Object rootValue = tombstones.hides(root) ? null : source.nodes().get(root);
+        if (rootValue != null) {
+            keys.add(root);
+            values.add(rootValue);
+        }
+        long bytes = 0;
+        Iterator<Map.Entry<String, Object>> entries = tombstones.visible(source.nodes()
+                .range(NodeKey.subTreeStart(root), NodeKey.subTreeEnd(root)));
+        while (entries.hasNext()) {
+            Map.Entry<String, Object> entry = entries.next();
+            if (keys.size() == maxEntries) {
+                return null;
+            }
+            keys.add(entry.getKey());
+            values.add(entry.getValue());
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            bytes += bytes(keys.get(i), values.get(i));
+        }
+        return new Subtree(root, keys.toArray(new String[keys.size()]), values.toArray(), generation, bytes, residency);
+    }
+
+    private static long bytes(String key, Object value) {
+        long bytes = ENTRY_BYTES + 2L * key.length();
+        if (value instanceof String) {
+            bytes += ENTRY_BYTES + 2L * ((String) value).length();
+        }
+        else if (value instanceof Number) {
+            bytes += 24;
+        }
+        return bytes;
+    }
+
+    /**
+     * Makes subtree resident, unless a write marked it while it was copied or it is accessed less often
+     * than the subtrees it would have to evict
+     */
+    private synchronized void admit(Subtree subtree, long loadedAt, boolean live) {
+        if (loadedAt != generation || (live && isChanged(subtree.root)) || resident.containsKey(subtree.root)) {
+            return;
+        }
+        if (subtree.bytes > budget) {
+            rejections.increment();
+            return;
+        }
+        int frequency = frequency(subtree.root);
+        while (used + subtree.bytes > budget) {
+            Subtree victim = clock.get(hand);
+            if (victim.referenced) {
+                victim.referenced = false;
+                hand = (hand + 1) % clock.size();
+            }
+            else if (frequency(victim.root) >= frequency) {
+                rejections.increment();
+                return;
+            }
+            else {
+                evict(victim);
+                evictions.increment();
+            }
+        }
+        subtree.slot = clock.size();
+        clock.add(subtree);
+        resident.put(subtree.root, subtree);
+        used += subtree.bytes;
+        subtree.residency.resident(1, subtree.bytes);
+    }
+
+    private void evict(Subtree subtree) {
+        if (resident.remove(subtree.root, subtree)) {
+            Subtree last = clock.remove(clock.size() - 1);
+            if (last != subtree) {
+                clock.set(subtree.slot, last);
+                last.slot = subtree.slot;
+            }
+            if (hand >= clock.size()) {
+                hand = 0;
+            }
+            used -= subtree.bytes;
+            subtree.residency.resident(-1, -subtree.bytes);
+        }
+    }
+
+    /**
+     * Marks the subtrees key is part of, to be called before key or its descendants are written
+     */
+    void changing(String key) {
+        if (budget > 0) {
+            String root = root(key);
+            changed.add(root != null ? root : key);
+        }
+    }
+
+    private boolean isChanged(String root) {
+        if (changed.isEmpty()) {
+            return false;
+        }
+        for (String key = root; ; key = NodeKey.parent(key)) {
+            if (changed.contains(key)) {
+                return true;
+            }
+            if (key.isEmpty()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Drops the subtrees written to since the last call, to be called after the partition committed and
+     * before its new version is read from
+     *
+     * @return generation of the new version
+     */
+    synchronized long publish() {
+        for (Iterator<String> keys = changed.iterator(); keys.hasNext(); ) {
+            String key = keys.next();
+            keys.remove();
+            Subtree subtree = resident.get(key);
+            if (subtree != null) {
+                evict(subtree);
+            }
+            for (Subtree descendant : Lists.newArrayList(resident.subMap(NodeKey.subTreeStart(key), NodeKey.subTreeEnd(key)).values())) {
+                evict(descendant);
+            }
+        }
+        return ++generation;
+    }
+
+    /**
+     * Counts an access of the subtree rooted at root
+     *
+     * @return the accesses counted before, about
+     */
+    private int record(String root) {
+        int hash = root.hashCode();
+        int first = hash & (SKETCH_SIZE - 1);
+        int second = (hash >>> 16 ^ hash * 31) & (SKETCH_SIZE - 1);
+        int frequency = Math.min(sketch[first], sketch[second]);
+        if (sketch[first] < Byte.MAX_VALUE) {
+            sketch[first]++;
+        }
+        if (sketch[second] < Byte.MAX_VALUE) {
+            sketch[second]++;
+        }
+        if (++samples >= SKETCH_SIZE * 8) {
+            samples = 0;
+            for (int i = 0; i < SKETCH_SIZE; i++) {
+                sketch[i] >>= 1;
+            }
+        }
+        return frequency;
+    }
+
+    private int frequency(String root) {
+        int hash = root.hashCode();
+        return Math.min(sketch[hash & (SKETCH_SIZE - 1)], sketch[(hash >>> 16 ^ hash * 31) & (SKETCH_SIZE - 1)]);
+    }
+
+    private Residency residency(String root) {
+        int end = root.indexOf(NodeKey.SEPARATOR, 1);
+        String topLevel = end < 0 ? root.substring(1) : root.substring(1, end);
+        return residencies.computeIfAbsent(topLevel, name -> new Residency());
+    }
+
+    /**
+     * @return memory used and hit rate of the tier, and the residency of every top level subtree
+     */
+    synchronized JsonObject status() {
+        JsonObject subtrees = new JsonObject();
+        long hits = 0;
+        long misses = 0;
+        for (Map.Entry<String, Residency> residency : residencies.entrySet()) {
+            subtrees.putObject(residency.getKey(), residency.getValue().status());
+            hits += residency.getValue().hits.sum();
+            misses += residency.getValue().misses.sum();
+        }
+        return new JsonObject()
+                .putNumber("budget", budget)
+                .putNumber("used", used)
+                .putNumber("resident", resident.size())
+                .putNumber("hits", hits)
+                .putNumber("misses", misses)
+                .putNumber("hitRate", hits + misses == 0 ? 0 : (double) hits / (hits + misses))
+                .putNumber("evictions", evictions.sum())
+                .putNumber("rejections", rejections.sum())
+                .putObject("subtrees", subtrees);
+    }
+
+    /**
+     * Copy of one subtree, the root node first and then its descendants in key order
+     */
+    static final class Subtree {
+        private final String root;
+        private final String[] keys;
+        private final Object[] values;
+        private final long generation;
+        private final long bytes;
+        private final Residency residency;
+        private volatile boolean referenced = true;
+        private int slot;
+
+        private Subtree(String root, String[] keys, Object[] values, long generation, long bytes, Residency residency) {
+            this.root = root;
+            this.keys = keys;
+            this.values = values;
+            this.generation = generation;
+            this.bytes = bytes;
+            this.residency = residency;
+        }
+
+        Object get(String key) {
+            int index = Arrays.binarySearch(keys, key);
+            return index >= 0 ? values[index] : null;
+        }
+
+        boolean containsKey(String key) {
+            return Arrays.binarySearch(keys, key) >= 0;
+        }
+
+        /**
+         * @return the entries below key in key order
+         */
+        Iterator<Map.Entry<String, Object>> subTree(String key) {
+            int start = Arrays.binarySearch(keys, NodeKey.subTreeStart(key));
+            if (start < 0) {
+                start = -start - 1;
+            }
+            String end = NodeKey.subTreeEnd(key);
+            int stop = start;
+            while (stop < keys.length && keys[stop].compareTo(end) < 0) {
+                stop++;
+            }
+            final int from = start;
+            final int to = stop;
+            return new Iterator<Map.Entry<String, Object>>() {
+                private int index = from;
+
+                @Override
+                public boolean hasNext() {
+                    return index < to;
+                }
+
+                @Override
+                public Map.Entry<String, Object> next() {
+                    if (index >= to) {
+                        throw new NoSuchElementException();
+                    }
+                    Map.Entry<String, Object> entry = Maps.immutableEntry(keys[index], values[index]);
+                    index++;
+                    return entry;
+                }
+            };
+        }
+    }
+
+    /**
+     * Residency of the subtrees below one top level node
+     */
+    private static final class Residency {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private long subtrees = 0;
+        private long bytes = 0;
+
+        private void resident(long subtrees, long bytes) {
+            this.subtrees += subtrees;
+            this.bytes += bytes;
+        }
+
+        private JsonObject status() {
+            return new JsonObject()
+                    .putNumber("resident", subtrees)
+                    .putNumber("bytes", bytes)
+                    .putNumber("hits", hits.sum())
+                    .putNumber("misses", misses.sum());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.Lists;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Deque;
+import java.util.Map;
+
+/**
+ *
+ * Migration of stores written with one "&lt;path&gt;Attributes" and one "&lt;path&gt;Nodes" collection
+ * per node into the flat node store. Every legacy collection is dropped once its content is copied.
+ */
+final class LegacyNodeLayout {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LegacyNodeLayout.class);
+
+    private static final String ROOT = "root";
+    private static final String ATTRIBUTES = "Attributes";
+    private static final String NODES = "Nodes";
+
+    private LegacyNodeLayout() {
+    }
+
+    static boolean exists(DB db) {
+        return db.exists(ROOT + ATTRIBUTES) || db.exists(ROOT + NODES);
+    }
+
+    /**
+     * @return whether the collection named name holds the attributes or children of a legacy node
+     */
+    static boolean isLegacy(String name) {
+        return name.endsWith(ATTRIBUTES) || name.endsWith(NODES);
+    }
+
+    static void migrate(DB db, StorageEngine nodes) {
+        long start = System.currentTimeMillis();
+        long migrated = 0;
+        Deque<String[]> pending = Lists.newLinkedList();
+        pending.push(new String[]{ROOT, NodeKey.ROOT});
+        while (!pending.isEmpty()) {
+            String[] current = pending.pop();
+            String collection = current[0];
+            String key = current[1];
+            if (!key.isEmpty()) {
+                nodes.put(key, Node.OBJECT);
+            }
+            if (db.exists(collection + ATTRIBUTES)) {
+                BTreeMap<String, Object> attributes = db.getTreeMap(collection + ATTRIBUTES);
+                for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                    nodes.put(NodeKey.child(key, attribute.getKey()), attribute.getValue());
+                    migrated++;
+                }
+                db.delete(collection + ATTRIBUTES);
+            }
+            if (db.exists(collection + NODES)) {
+                BTreeMap<String, Object> children = db.getTreeMap(collection + NODES);
+                String prefix = ROOT.equals(collection) ? "" : collection;
+                for (String child : children.keySet()) {
+                    pending.push(new String[]{prefix + "/" + child, NodeKey.child(key, child)});
+                    migrated++;
+                }
+                db.delete(collection + NODES);
+            }
+        }
+        nodes.commit();
+        db.commit();
+        LOGGER.info("Migrated {} entries of the legacy node layout in {}ms", migrated,
+                (System.currentTimeMillis() - start));
+    }
+}
@@ -0,0 +1,318 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.CountingInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * The nodes in a {@link MemoryEngine}, with every write appended to a log file. Commits append a
+ * marker and sync the file, so a write costs a sequential append instead of B-tree pages. On start the
+ * log is replayed up to the last commit marker, anything after it is cut off. Commit markers are
+ * numbered, so the collections kept next to the nodes can tell whether they are as new as the log.
+ *
+ * Once the log holds more than twice as many records as there are entries, it is rewritten from the
+ * entries with the next commit.
+ */
+final class LogEngine implements StorageEngine {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LogEngine.class);
+
+    static final String EXTENSION = ".log";
+
+    private static final int PUT = 1;
+    private static final int REMOVE = 2;
+    private static final int REMOVE_RANGE = 3;
+    private static final int COMMIT = 4;
+
+    // records a log may hold beyond twice the entries before it is rewritten
+    private static final long COMPACTION_SLACK = 100000;
+
+    private final File file;
+    private final MemoryEngine index;
+    private FileOutputStream stream;
+    private DataOutputStream out;
+    // records in the log, including the ones of overwritten and removed entries
+    private long records = 0;
+    // number of the last commit marker
+    private long commits = 0;
+
+    private LogEngine(File file) throws IOException {
+        this.file = file;
+        this.index = new MemoryEngine();
+        if (file.exists()) {
+            replay();
+        }
+        index.commit();
+        openLog();
+    }
+
+    /**
+     * Replays the log in file, if there is one, and opens it for appending
+     */
+    static LogEngine open(File file) {
+        try {
+            long start = System.currentTimeMillis();
+            LogEngine engine = new LogEngine(file);
+            LOGGER.info("Replayed {} records of the node log {} in {}ms, {} entries", engine.records, file,
+                    System.currentTimeMillis() - start, engine.size());
+            return engine;
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't open the node log " + file, e);
+        }
+    }
+
+    /**
+     * Applies the records of every committed batch to the index, and cuts off an incomplete last batch
+     */
+    private void replay() throws IOException {
+        long committed = 0;
+        List<Runnable> batch = Lists.newArrayList();
+        try (CountingInputStream counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+             DataInputStream in = new DataInputStream(counting)) {
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+                if (type == COMMIT) {
+                    commits = in.readLong();
+                    batch.forEach(Runnable::run);
+                    records += batch.size() + 1;
+                    batch.clear();
+                    committed = counting.getCount();
+                    continue;
+                }
+                Runnable record = read(in, type);
+                if (record == null) {
+                    LOGGER.warn("Unknown record type {} in the node log {} at byte {}", type, file, counting.getCount() - 1);
+                    break;
+                }
+                batch.add(record);
+            }
+        } catch (EOFException e) {
+            // the last batch was cut off by a crash
+        }
+        if (committed < file.length()) {
+            LOGGER.warn("Cutting off {} bytes of uncommitted writes at the end of the node log {}",
+                    file.length() - committed, file);
+            try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+                truncated.setLength(committed);
+            }
+        }
+    }
+
+    private Runnable read(DataInputStream in, int type) throws IOException {
+        switch (type) {
+            case PUT: {
+                String key = in.readUTF();
+                Object value = NodeValueSerializer.INSTANCE.deserialize(in, -1);
+                return () -> index.put(key, value);
+            }
+            case REMOVE: {
+                String key = in.readUTF();
+                return () -> index.remove(key);
+            }
+            case REMOVE_RANGE: {
+                String from = in.readBoolean() ? in.readUTF() : null;
+                String to = in.readBoolean() ? in.readUTF() : null;
+                int limit = in.readInt();
+                return () -> index.removeRange(from, to, limit);
+            }
+            default:
+                return null;
+        }
+    }
+
+    private void openLog() throws IOException {
+        this.stream = new FileOutputStream(file, true);
+        this.out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    @Override
+    public Object get(String key) {
+        return index.get(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        try {
+            out.writeByte(PUT);
+            out.writeUTF(key);
+            NodeValueSerializer.INSTANCE.serialize(out, value);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't append to the node log " + file, e);
+        }
+        records++;
+        return index.put(key, value);
+    }
+
+    @Override
+    public Object remove(String key) {
+        Object previous = index.remove(key);
+        if (previous != null) {
+            try {
+                out.writeByte(REMOVE);
+                out.writeUTF(key);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't append to the node log " + file, e);
+            }
+            records++;
+        }
+        return previous;
+    }
+
+    @Override
+    public long commits() {
+        return commits;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, Object>> range(String from, String to) {
+        return index.range(from, to);
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, Object>> descendingRange(String from, String to) {
+        return index.descendingRange(from, to);
+    }
+
+    @Override
+    public String ceilingKey(String key) {
+        return index.ceilingKey(key);
+    }
+
+    @Override
+    public String lowerKey(String key) {
+        return index.lowerKey(key);
+    }
+
+    /**
+     * Logs the range rather than every key, replaying it removes the same entries again
+     */
+    @Override
+    public int removeRange(String from, String to, int limit) {
+        int removed = index.removeRange(from, to, limit);
+        if (removed > 0) {
+            try {
+                out.writeByte(REMOVE_RANGE);
+                out.writeBoolean(from != null);
+                if (from != null) {
+                    out.writeUTF(from);
+                }
+                out.writeBoolean(to != null);
+                if (to != null) {
+                    out.writeUTF(to);
+                }
+                out.writeInt(limit);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't append to the node log " + file, e);
+            }
+            records++;
+        }
+        return removed;
+    }
+
+    /**
+     * Replaces the entries and rewrites the log from them
+     */
+    @Override
+    public void replace(Iterator<Map.Entry<String, Object>> source) {
+        index.replace(source);
+        commits++;
+        rewrite();
+    }
+
+    @Override
+    public void commit() {
+        try {
+            out.writeByte(COMMIT);
+            out.writeLong(++commits);
+            out.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't sync the node log " + file, e);
+        }
+        records++;
+        index.commit();
+        if (records > 2 * index.size() + COMPACTION_SLACK) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Writes the entries to a new log next to the current one, which is then replaced by it
+     */
+    private void rewrite() {
+        long start = System.currentTimeMillis();
+        long before = records;
+        File rewritten = new File(file.getPath() + ".new");
+        try {
+            out.close();
+            long written = 0;
+            try (FileOutputStream rewrittenStream = new FileOutputStream(rewritten);
+                 DataOutputStream rewrittenOut = new DataOutputStream(new BufferedOutputStream(rewrittenStream, 1 << 16))) {
+                Iterator<Map.Entry<String, Object>> entries = index.range(null, null);
+                while (entries.hasNext()) {
+                    Map.Entry<String, Object> entry = entries.next();
+                    rewrittenOut.writeByte(PUT);
+                    rewrittenOut.writeUTF(entry.getKey());
+                    NodeValueSerializer.INSTANCE.serialize(rewrittenOut, entry.getValue());
+                    written++;
+                }
+                rewrittenOut.writeByte(COMMIT);
+                rewrittenOut.writeLong(commits);
+                rewrittenOut.flush();
+                rewrittenStream.getFD().sync();
+            }
+            Files.move(rewritten.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            records = written + 1;
+            openLog();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't rewrite the node log " + file, e);
+        }
+        LOGGER.info("Rewrote the node log {} from {} to {} records in {}ms", file, before, records,
+                System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public StorageEngine snapshot() {
+        return index.snapshot();
+    }
+
+    @Override
+    public long size() {
+        return index.size();
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOGGER.warn("Can't close the node log {}", file, e);
+        }
+        index.close();
+    }
+}
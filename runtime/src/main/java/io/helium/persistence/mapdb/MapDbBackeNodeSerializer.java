@@ -8,32 +8,26 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Serializable;
 
-public class MapDbBackeNodeSerializer implements Serializer<Node>, Serializable {
+/**
+ * Serializer of the child references in the legacy "&lt;path&gt;Nodes" collections. It is kept under its
+ * old name, because the MapDB catalog of legacy stores refers to it, and is only used to read those
+ * stores during the {@link LegacyNodeLayout} migration.
+ */
+public class MapDbBackeNodeSerializer implements Serializer<Path>, Serializable {
     private static final long serialVersionUID = 1L;
 
     @Override
-    public void serialize(DataOutput out, Node value) throws IOException {
-        out.writeUTF(value.getPathToNode().toString());
+    public void serialize(DataOutput out, Path value) throws IOException {
+        out.writeUTF(value.toString());
     }
 
     @Override
-    public Node deserialize(DataInput in, int available) throws IOException {
-        String pathToNode = in.readUTF();
-        try {
-            Path path = Path.of(pathToNode);
-            if (path.root()) {
-                return MapDbService.get().root();
-            } else {
-                return new Node(path);
-            }
-        } catch (java.lang.StackOverflowError e) {
-            System.out.println(pathToNode);
-            throw e;
-        }
+    public Path deserialize(DataInput in, int available) throws IOException {
+        return Path.of(in.readUTF());
     }
 
     @Override
     public int fixedSize() {
         return -1;
     }
-}
\ No newline at end of file
+}
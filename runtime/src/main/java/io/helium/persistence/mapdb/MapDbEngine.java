@@ -0,0 +1,215 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.Iterators;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.Engine;
+import org.mapdb.EngineWrapper;
+import org.mapdb.Fun;
+import org.mapdb.TxEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ *
+ * The nodes as a B-tree in the MapDB store of the partition, next to the counts, indexes and expiry
+ * times, so they are committed and snapshotted together with them.
+ */
+final class MapDbEngine implements StorageEngine {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MapDbEngine.class);
+
+    static final String NODES = "tree";
+
+    private static final String GENERIC_NODES = "nodes";
+    private static final String BULK_NODES = "tree.bulk";
+
+    private final DB db;
+    private final StoreProfile profile;
+    // replaced by a bulk load
+    private volatile BTreeMap<String, Object> nodes;
+    // whether db is a snapshot, which is closed with the engine
+    private final boolean snapshot;
+
+    private MapDbEngine(DB db, StoreProfile profile, BTreeMap<String, Object> nodes, boolean snapshot) {
+        this.db = db;
+        this.profile = profile;
+        this.nodes = nodes;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Opens the node store, after converting a node store of the generic serialization format, if there
+     * is one.
+     */
+    static MapDbEngine open(DB db, StoreProfile profile) {
+        return new MapDbEngine(db, profile, openNodes(db, profile), false);
+    }
+
+    /**
+     * @return read only nodes of snapshot, a snapshot of the store of a partition, which stays open
+     */
+    static MapDbEngine view(DB snapshot) {
+        return new MapDbEngine(snapshot, null, snapshot.getTreeMap(NODES), false);
+    }
+
+    private static BTreeMap<String, Object> openNodes(DB db, StoreProfile profile) {
+        if (db.exists(NODES)) {
+            return db.getTreeMap(NODES);
+        }
+        DB.BTreeMapMaker maker = maker(db, profile, NODES);
+        if (!db.exists(GENERIC_NODES)) {
+            return maker.make();
+        }
+        long start = System.currentTimeMillis();
+        BTreeMap<String, Object> generic = db.getTreeMap(GENERIC_NODES);
+        int size = generic.size();
+        if (size == 0) {
+            db.delete(GENERIC_NODES);
+            return maker.make();
+        }
+        BTreeMap<String, Object> nodes = maker
+                .pumpSource(Iterators.transform(generic.descendingMap().entrySet().iterator(),
+                        entry -> Fun.t2(entry.getKey(), entry.getValue())))
+                .make();
+        db.delete(GENERIC_NODES);
+        db.commit();
+        LOGGER.info("Converted {} nodes to the binary node format in {}ms", size, System.currentTimeMillis() - start);
+        return nodes;
+    }
+
+    private static DB.BTreeMapMaker maker(DB db, StoreProfile profile, String name) {
+        return db.createTreeMap(name)
+                .nodeSize(profile.nodeSize(NODES))
+                .keySerializer(NodeKeySerializer.INSTANCE)
+                .valueSerializer(NodeValueSerializer.INSTANCE);
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return profile == null || profile.isPersistent();
+    }
+
+    @Override
+    public Object get(String key) {
+        return nodes.get(key);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return nodes.containsKey(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        return nodes.put(key, value);
+    }
+
+    @Override
+    public Object remove(String key) {
+        return nodes.remove(key);
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, Object>> range(String from, String to) {
+        return subMap(nodes, from, to).entrySet().iterator();
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, Object>> descendingRange(String from, String to) {
+        return subMap(nodes, from, to).descendingMap().entrySet().iterator();
+    }
+
+    private static NavigableMap<String, Object> subMap(BTreeMap<String, Object> nodes, String from, String to) {
+        if (from == null) {
+            return to == null ? nodes : nodes.headMap(to, false);
+        }
+        return to == null ? nodes.tailMap(from, true) : nodes.subMap(from, true, to, false);
+    }
+
+    @Override
+    public String ceilingKey(String key) {
+        return nodes.ceilingKey(key);
+    }
+
+    @Override
+    public String lowerKey(String key) {
+        return nodes.lowerKey(key);
+    }
+
+    @Override
+    public int removeRange(String from, String to, int limit) {
+        int removed = 0;
+        Iterator<String> keys = subMap(nodes, from, to).keySet().iterator();
+        while (removed < limit && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Builds a new B-tree bottom up from source and swaps it in for the current one
+     */
+    @Override
+    public void replace(Iterator<Map.Entry<String, Object>> source) {
+        DB.BTreeMapMaker maker = maker(db, profile, BULK_NODES);
+        BTreeMap<String, Object> loaded = source.hasNext()
+                ? maker.pumpSource(Iterators.transform(source, entry -> Fun.t2(entry.getKey(), entry.getValue()))).make()
+                : maker.make();
+        db.delete(NODES);
+        db.rename(BULK_NODES, NODES);
+        this.nodes = loaded;
+    }
+
+    /**
+     * Commits the whole store of the partition
+     */
+    @Override
+    public void commit() {
+        db.commit();
+    }
+
+    @Override
+    public StorageEngine snapshot() {
+        DB snapshot = snapshot(db);
+        return new MapDbEngine(snapshot, null, snapshot.getTreeMap(NODES), true);
+    }
+
+    /**
+     * @return read only view of db as of the last commit, which has to be closed after use
+     */
+    static DB snapshot(DB db) {
+        return new DB(TxEngine.createSnapshotFor(txEngine(db)));
+    }
+
+    /**
+     * DB.snapshot() fails when the snapshot engine is wrapped, like it is to close on JVM shutdown
+     */
+    static TxEngine txEngine(DB db) {
+        Engine engine = db.getEngine();
+        while (!(engine instanceof TxEngine) && engine instanceof EngineWrapper) {
+            engine = ((EngineWrapper) engine).getWrappedEngine();
+        }
+        return (TxEngine) engine;
+    }
+
+    @Override
+    public long size() {
+        return nodes.sizeLong();
+    }
+
+    /**
+     * Closes the snapshot the engine reads from, the store of a partition is closed by the partition
+     */
+    @Override
+    public void close() {
+        if (snapshot) {
+            db.close();
+        }
+    }
+}
@@ -1,90 +1,400 @@
 package io.helium.persistence.mapdb;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
 import io.helium.common.Path;
-import org.mapdb.BTreeMap;
-import org.mapdb.DB;
-import org.mapdb.DBMaker;
+import io.helium.event.changelog.ChangeLogEvent;
+import org.mapdb.Fun;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
 
 import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
-public class MapDbService {
+/**
+ *
+ * The node store. The tree is split into partitions by the names of the top level nodes, see
+ * {@link NodePartition}, by default there is only the default partition.
+ */
+public class MapDbService implements NodeStores {
     private static final Logger LOGGER = LoggerFactory.getLogger(MapDbService.class);
 
-    private static Optional<MapDbService> instance = Optional.empty();
+    private static volatile Optional<MapDbService> instance = Optional.empty();
 
+    /**
+     * Opens the store on first access, callers on other threads wait until it is open
+     */
     public static MapDbService get() {
-        instance = Optional.of(instance.orElseGet(MapDbService::new));
-        return instance.get();
+        Optional<MapDbService> current = instance;
+        if (current.isPresent()) {
+            return current.get();
+        }
+        synchronized (MapDbService.class) {
+            instance = Optional.of(instance.orElseGet(MapDbService::new));
+            return instance.get();
+        }
+    }
+
+    private static JsonObject config = new JsonObject();
+
+    /**
+     * Sets the mapdb section of the configuration, which only takes effect before the store is opened
+     */
+    public static synchronized void configure(JsonObject config) {
+        if (instance.isPresent()) {
+            LOGGER.warn("Node store is already open, ignoring configuration " + config.encode());
+        }
+        MapDbService.config = config;
     }
 
-    private DB db;
+    private static final int NODE_CACHE_SIZE = 10000;
+    private static final String RULES = NodeKey.child(NodeKey.ROOT, "rules");
+
+    private final List<NodePartition> partitions = Lists.newArrayList();
+    // partitions by the top level names they hold, all others are held by the default partition
+    private final Map<String, Integer> prefixes = Maps.newHashMap();
+    private final NodePartition rules;
+    private final NodeCache nodeCache = new NodeCache(NODE_CACHE_SIZE);
+    private final PendingWrites pendingWrites = new PendingWrites(this);
 
     private MapDbService() {
-        this.db = createDb();
+        long start = System.currentTimeMillis();
+        File file = new File(config.getString("directory", "helium/nodes"));
+        List<Callable<NodePartition>> opening = Lists.newArrayList();
+        opening.add(() -> new NodePartition(NodePartition.DEFAULT, ImmutableSet.of(), file, partitionConfig(new JsonObject())));
+        for (Map.Entry<String, JsonObject> partition : partitionConfigs().entrySet()) {
+            JsonObject options = partition.getValue();
+            Set<String> names = Sets.newLinkedHashSet();
+            for (Object prefix : options.getArray("prefixes", new JsonArray().add(partition.getKey()))) {
+                names.add(prefix.toString());
+                if (prefixes.put(prefix.toString(), opening.size()) != null) {
+                    throw new IllegalArgumentException("/" + prefix + " is claimed by more than one partition");
+                }
+            }
+            opening.add(() -> new NodePartition(partition.getKey(), names, new File(file.getPath() + "." + partition.getKey()),
+                    partitionConfig(options)));
+        }
+        partitions.addAll(open(opening));
+        this.rules = partitions.get(partitionIndex(RULES));
+        // every partition reads the index definitions from the rules, which are read in the meantime
+        List<Future<?>> warming = Lists.newArrayList();
+        warming.add(rules.submit(() -> rules.warm(RULES)));
+        for (NodePartition partition : partitions) {
+            warming.add(partition.submit(() -> partition.openIndexes(rules::nodes, this::rulesChanged)));
+        }
+        warming.forEach(Futures::getUnchecked);
+        publish(0);
+        LOGGER.info("Opened {} partitions of the node store in {}ms", partitions.size(), System.currentTimeMillis() - start);
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
-                try {
-                    System.out.println("Shutdown MapDB Data Store");
-                    if(!db.isClosed()) {
-                        db.commit();
-                        db.compact();
-                        db.close();
+                System.out.println("Shutdown MapDB Data Store");
+                for (NodePartition partition : partitions) {
+                    try {
+                        partition.close();
+                    }
+                    catch (Exception e) {
+                        LOGGER.error("Failed to close partition " + partition, e);
                     }
-                }
-                catch( Exception e) {
-                    LOGGER.error("Failed to close DB", e);
                 }
             }
         });
     }
 
-    private DB createDb() {
-        return DBMaker.newFileDB(new File("helium/nodes"))
-                .closeOnJvmShutdown()
-                .cacheSize(10)
-                .mmapFileEnableIfSupported()
-                .make();
+    /**
+     * Opens the partitions in parallel, each of them reads files of its own and may have to rebuild its
+     * counts
+     */
+    private static List<NodePartition> open(List<Callable<NodePartition>> opening) {
+        ExecutorService executor = Executors.newFixedThreadPool(opening.size());
+        try {
+            List<NodePartition> opened = Lists.newArrayListWithCapacity(opening.size());
+            for (Future<NodePartition> partition : executor.invokeAll(opening)) {
+                opened.add(Futures.getUnchecked(partition));
+            }
+            return opened;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while opening the node store", e);
+        }
+        finally {
+            executor.shutdown();
+        }
     }
 
-    public void commit() {
-        //db.commit();
+    /**
+     * Partitions are configured by name, with the top level names they hold as "prefixes", by default
+     * just their name, and the options of the store profile, which default to those of the default
+     * partition: {"telemetry": {"prefixes": ["telemetry", "metrics"], "profile": "async", "publishInterval": 1000}}.
+     * ["telemetry"] is short for a partition holding /telemetry with the options of the default partition.
+     */
+    private static Map<String, JsonObject> partitionConfigs() {
+        Map<String, JsonObject> configs = Maps.newLinkedHashMap();
+        Object partitions = config.getValue("partitions");
+        if (partitions instanceof JsonArray) {
+            for (Object name : (JsonArray) partitions) {
+                configs.put(name.toString(), new JsonObject());
+            }
+        }
+        else if (partitions instanceof JsonObject) {
+            for (String name : ((JsonObject) partitions).getFieldNames()) {
+                configs.put(name, ((JsonObject) partitions).getObject(name));
+            }
+        }
+        if (configs.containsKey(NodePartition.DEFAULT)) {
+            throw new IllegalArgumentException("The partition " + NodePartition.DEFAULT + " can't be configured");
+        }
+        return configs;
+    }
+
+    private static JsonObject partitionConfig(JsonObject options) {
+        JsonObject merged = config.copy();
+        merged.removeField("partitions");
+        for (String option : options.getFieldNames()) {
+            merged.putValue(option, options.getValue(option));
+        }
+        return merged;
+    }
+
+    /**
+     * @return index of the partition holding key in {@link #partitions()}
+     */
+    int partitionIndex(String key) {
+        if (prefixes.isEmpty() || key.isEmpty()) {
+            return 0;
+        }
+        int end = key.indexOf(NodeKey.SEPARATOR, 1);
+        Integer partition = prefixes.get(end < 0 ? key.substring(1) : key.substring(1, end));
+        return partition != null ? partition : 0;
+    }
+
+    List<NodePartition> partitions() {
+        return partitions;
+    }
+
+    NodePartition partition(String key) {
+        return partitions.get(partitionIndex(key));
+    }
+
+    /**
+     * @return the partition holding path, whose writer thread applies changes to it
+     */
+    NodePartition partition(Path path) {
+        return partition(NodeKey.of(path));
+    }
+
+    /**
+     * Replaces the nodes of the partitions holding key and its descendants with the entries of source, which must deliver every entry of them in descending key order and is
+     * read once per partition. source may still read from the current store.
+     */
+    synchronized void replaceNodes(String key, Supplier<Iterator<Fun.Tuple2<String, Object>>> source) {
+        List<NodePartition> replaced = stores(key);
+        for (NodePartition partition : replaced) {
+            Iterator<Fun.Tuple2<String, Object>> entries = replaced.size() == 1 ? source.get()
+                    : Iterators.filter(source.get(), entry -> partition(entry.a) == partition);
+            partition.replaceNodes(Iterators.transform(entries, entry -> Maps.immutableEntry(entry.a, entry.b)));
+            // the loaded nodes don't expire
+            partition.expiries().removed(key);
+        }
+        for (NodePartition partition : replaced.contains(rules) ? partitions : replaced) {
+            partition.rebuildIndexes(rules::nodes, this::rulesChanged);
+        }
     }
 
-    public void commitAndCompact() {
-        db.commit();
-        db.compact();
+    /**
+     * @return version of the seed data loaded into the store, 0 if none was
+     */
+    public long seedVersion() {
+        return partitions.get(0).seedVersion();
+    }
+
+    /**
+     * Records that the seed data of version is loaded, which is committed with the next publish
+     */
+    public void seeded(long version) {
+        NodePartition partition = partitions.get(0);
+        Futures.getUnchecked(partition.submit(() -> partition.seeded(version)));
+    }
+
+    /**
+     * A write changed the rules, every partition reads the index definitions again
+     */
+    private void rulesChanged() {
+        for (NodePartition partition : partitions) {
+            if (partition.indexes() != null) {
+                partition.indexes().rulesChanged();
+            }
+        }
+    }
+
+    /**
+     * @return the version of the store published last, which has to be closed after use
+     */
+    public ReadView read() {
+        List<PartitionVersion> versions = acquire();
+        // every change log published to the versions was accepted before
+        return new ReadView(this, versions, pendingWrites.accepted());
+    }
+
+    /**
+     * @return the version of the subtree under key as of the change log with the given sequence number,
+     * which was accepted already, null if a partition holding the subtree published a later change log.
+     * The view has to be closed after use.
+     */
+    ReadView read(String key, long sequence) {
+        ReadView view = new ReadView(this, acquire(), sequence);
+        if (view.newest(key) > sequence) {
+            view.close();
+            return null;
+        }
+        return view;
+    }
+
+    private List<PartitionVersion> acquire() {
+        List<PartitionVersion> versions = Lists.newArrayListWithCapacity(partitions.size());
+        for (NodePartition partition : partitions) {
+            versions.add(partition.acquire());
+        }
+        return versions;
+    }
+
+    /**
+     * Commits every partition and makes it the version read from now on
+     *
+     * @param sequence number of the last change log applied to the store
+     */
+    public void publish(long sequence) {
+        publish(partitions, sequence);
+    }
+
+    /**
+     * Commits the partitions on their writer threads, after the changes submitted to them before, and
+     * waits until their new versions are read from.
+     */
+    void publish(Collection<NodePartition> published, long sequence) {
+        // the versions of the other partitions hold on to the version of the rules
+        if (published.contains(rules)) {
+            Futures.getUnchecked(rules.submit(() -> publish(rules, sequence)));
+        }
+        List<Future<?>> pending = Lists.newArrayListWithCapacity(published.size());
+        for (NodePartition partition : published) {
+            if (partition != rules) {
+                pending.add(partition.submit(() -> publish(partition, sequence)));
+            }
+        }
+        pending.forEach(Futures::getUnchecked);
+    }
+
+    /**
+     * Commits partition and makes it the version read from now on. The previous version is closed once
+     * its last reader is done with it.
+     */
+    private void publish(NodePartition partition, long sequence) {
+        partition.publish(sequence, partition == rules ? null : rules.acquire());
+        pendingWrites.published(partition, partition.oldestSequence());
+    }
+
+    /**
+     * Removes up to limit entries hidden by tombstones from every partition which has some, on their
+     * writer threads, and waits for them
+     *
+     * @return the partitions written to, which have to be published
+     */
+    Set<NodePartition> reclaim(int limit) {
+        Map<NodePartition, Future<Integer>> reclaiming = Maps.newLinkedHashMap();
+        for (NodePartition partition : partitions) {
+            if (partition.tombstones().size() > 0) {
+                reclaiming.put(partition, partition.submit(() -> partition.reclaim(limit)));
+            }
+        }
+        reclaiming.values().forEach(Futures::getUnchecked);
+        return reclaiming.keySet();
+    }
+
+    /**
+     * @return throughput of every partition
+     */
+    public JsonObject status() {
+        JsonArray status = new JsonArray();
+        partitions.forEach(partition -> status.addObject(partition.status()));
+        return new JsonObject().putArray("partitions", status).putNumber("pendingWrites", pendingWrites.size());
+    }
+
+    /**
+     * @return the whole value of the node at path changed by event, read as of its change log for a
+     * delta, see {@link ChangeLogEvent#DELTA}. Once a later change log was published to the partition of
+     * the node, the event is superseded and the value is read from the last version instead, which the
+     * events of the later change logs writing below the node report as well.
+     */
+    public Object currentValue(Path path, ChangeLogEvent event) {
+        if (!event.isDelta()) {
+            return event.value();
+        }
+        ReadView asOfEvent = read(NodeKey.of(path), event.sequence());
+        try (ReadView view = asOfEvent != null ? asOfEvent : read()) {
+            Node parent = view.of(path.parent());
+            Object value = parent.has(path.lastElement()) ? parent.get(path.lastElement()) : null;
+            return value instanceof Node ? ((Node) value).toJsonObject() : value;
+        }
     }
 
     public boolean exists(Path path) {
-        return db.exists(path.toString() + "Attributes");
+        String key = NodeKey.of(path);
+        return key.isEmpty() || Node.isObject(get(key));
     }
 
     public Node root() {
-        return new Node();
+        return nodeCache.get(NodeKey.ROOT);
     }
 
     public Node of(Path path) {
-        if (path.root()) {
-            return root();
-        }
-        Node node = root();
-        Path currentPath = Path.copy(path);
-        for (int i = 0; i < path.toArray().length; i++) {
-            node = node.getNode(currentPath.firstElement());
-            currentPath = currentPath.sub(1);
-        }
-        return node;
+        return nodeCache.get(NodeKey.of(path));
+    }
+
+    @Override
+    public Node node(String key) {
+        return nodeCache.get(key);
+    }
+
+    public NodeCache nodeCache() {
+        return nodeCache;
+    }
+
+    @Override
+    public PendingWrites pendingWrites() {
+        return pendingWrites;
+    }
+
+    @Override
+    public long accepted() {
+        return pendingWrites.accepted();
     }
 
-    public BTreeMap<String, Object> getTreeMap(String key) {
-        return db.createTreeMap(key).nodeSize(6).valuesOutsideNodesEnable().makeOrGet();
+    @Override
+    public NodePartition store(String key) {
+        return partition(key);
     }
 
-    public DB.BTreeMapMaker createTreeMap(String key) {
-        return db.createTreeMap(key).nodeSize(6).valuesOutsideNodesEnable();
+    @Override
+    public List<NodePartition> stores(String key) {
+        return key.isEmpty() ? partitions : Collections.singletonList(partition(key));
     }
 }
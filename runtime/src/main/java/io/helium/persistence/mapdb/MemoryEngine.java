@@ -0,0 +1,354 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ *
+ * The nodes in a skip list on the heap, without serialization. Every entry holds the versions of its
+ * value which are still read, the newest first, so snapshots are taken without copying anything: a
+ * snapshot reads the newest version of every entry committed before it was taken.
+ *
+ * Writes create the version after the last commit, or replace it if it exists already. A version
+ * shadowing an older one is remembered, and once no open snapshot reads the older versions anymore they
+ * are dropped with the next commit, together with entries which were removed.
+ */
+final class MemoryEngine implements StorageEngine {
+    private static final long LIVE = Long.MAX_VALUE;
+
+    private volatile ConcurrentSkipListMap<String, Version> entries = new ConcurrentSkipListMap<>();
+    // number of open snapshots by the version they read
+    private final ConcurrentSkipListMap<Long, Integer> snapshots = new ConcurrentSkipListMap<>();
+    // versions which shadow older ones, in the order they were written, only touched by the writer
+    private final Deque<Shadowing> shadowing = Lists.newLinkedList();
+    private volatile long committed = 0;
+    private long size = 0;
+
+    @Override
+    public boolean isPersistent() {
+        return false;
+    }
+
+    @Override
+    public Object get(String key) {
+        return value(entries.get(key), LIVE);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        return write(key, value);
+    }
+
+    @Override
+    public Object remove(String key) {
+        return write(key, null);
+    }
+
+    private Object write(String key, Object value) {
+        long version = committed + 1;
+        Version current = entries.get(key);
+        Object previous = current != null ? current.value : null;
+        if (previous == null && value == null) {
+            return null;
+        }
+        if (current != null && current.version == version) {
+            // written since the last commit already, no snapshot reads it
+            if (value == null && current.previous == null) {
+                entries.remove(key);
+            }
+            else {
+                entries.put(key, new Version(version, value, current.previous));
+            }
+        }
+        else {
+            entries.put(key, new Version(version, value, current));
+            if (current != null) {
+                shadowing.add(new Shadowing(version, key));
+            }
+        }
+        size += (value != null ? 1 : 0) - (previous != null ? 1 : 0);
+        return previous;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, Object>> range(String from, String to) {
+        return visible(subMap(entries, from, to), LIVE);
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, Object>> descendingRange(String from, String to) {
+        return visible(subMap(entries, from, to).descendingMap(), LIVE);
+    }
+
+    @Override
+    public String ceilingKey(String key) {
+        return ceilingKey(entries, key, LIVE);
+    }
+
+    @Override
+    public String lowerKey(String key) {
+        return lowerKey(entries, key, LIVE);
+    }
+
+    @Override
+    public int removeRange(String from, String to, int limit) {
+        int removed = 0;
+        Iterator<Map.Entry<String, Object>> range = range(from, to);
+        while (removed < limit && range.hasNext()) {
+            write(range.next().getKey(), null);
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Swaps in a new skip list, open snapshots keep reading the current one
+     */
+    @Override
+    public void replace(Iterator<Map.Entry<String, Object>> source) {
+        ConcurrentSkipListMap<String, Version> loaded = new ConcurrentSkipListMap<>();
+        long count = 0;
+        while (source.hasNext()) {
+            Map.Entry<String, Object> entry = source.next();
+            loaded.put(entry.getKey(), new Version(0, entry.getValue(), null));
+            count++;
+        }
+        shadowing.clear();
+        entries = loaded;
+        size = count;
+    }
+
+    /**
+     * Makes the writes visible to new snapshots and drops the versions no snapshot reads anymore
+     */
+    @Override
+    public void commit() {
+        long read;
+        synchronized (snapshots) {
+            committed++;
+            Map.Entry<Long, Integer> oldest = snapshots.firstEntry();
+            read = oldest != null ? Math.min(oldest.getKey(), committed) : committed;
+        }
+        while (!shadowing.isEmpty() && shadowing.peek().version <= read) {
+            Shadowing shadowed = shadowing.poll();
+            Version current = entries.get(shadowed.key);
+            // the newest version read by the oldest snapshot, the ones before it are unreachable
+            Version version = current;
+            while (version != null && version.version > read) {
+                version = version.previous;
+            }
+            if (version == null) {
+                continue;
+            }
+            version.previous = null;
+            if (version == current && current.value == null) {
+                entries.remove(shadowed.key, current);
+            }
+        }
+    }
+
+    @Override
+    public StorageEngine snapshot() {
+        synchronized (snapshots) {
+            return snapshot(entries, committed);
+        }
+    }
+
+    private StorageEngine snapshot(ConcurrentSkipListMap<String, Version> entries, long version) {
+        snapshots.merge(version, 1, Integer::sum);
+        return new Snapshot(entries, version);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void close() {
+        entries.clear();
+        shadowing.clear();
+    }
+
+    private void released(long version) {
+        snapshots.computeIfPresent(version, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * @return the value of the newest version of entry written at or before version, null if there is none
+     */
+    private static Object value(Version entry, long version) {
+        while (entry != null && entry.version > version) {
+            entry = entry.previous;
+        }
+        return entry != null ? entry.value : null;
+    }
+
+    private static ConcurrentNavigableMap<String, Version> subMap(ConcurrentSkipListMap<String, Version> entries,
+                                                                 String from, String to) {
+        if (from == null) {
+            return to == null ? entries : entries.headMap(to, false);
+        }
+        return to == null ? entries.tailMap(from, true) : entries.subMap(from, true, to, false);
+    }
+
+    private static Iterator<Map.Entry<String, Object>> visible(NavigableMap<String, Version> entries, long version) {
+        Iterator<Map.Entry<String, Version>> iterator = entries.entrySet().iterator();
+        return new AbstractIterator<Map.Entry<String, Object>>() {
+            @Override
+            protected Map.Entry<String, Object> computeNext() {
+                while (iterator.hasNext()) {
+                    Map.Entry<String, Version> entry = iterator.next();
+                    Object value = value(entry.getValue(), version);
+                    if (value != null) {
+                        return Maps.immutableEntry(entry.getKey(), value);
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    private static String ceilingKey(ConcurrentSkipListMap<String, Version> entries, String key, long version) {
+        for (Map.Entry<String, Version> entry : entries.tailMap(key, true).entrySet()) {
+            if (value(entry.getValue(), version) != null) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    private static String lowerKey(ConcurrentSkipListMap<String, Version> entries, String key, long version) {
+        for (Map.Entry<String, Version> entry : entries.headMap(key, false).descendingMap().entrySet()) {
+            if (value(entry.getValue(), version) != null) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Value of an entry as of a version, null if the entry was removed in it
+     */
+    private static final class Version {
+        private final long version;
+        private final Object value;
+        // dropped once no snapshot reads it anymore
+        private volatile Version previous;
+
+        private Version(long version, Object value, Version previous) {
+            this.version = version;
+            this.value = value;
+            this.previous = previous;
+        }
+    }
+
+    private static final class Shadowing {
+        private final long version;
+        private final String key;
+
+        private Shadowing(long version, String key) {
+            this.version = version;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Read only view of the entries as of a commit
+     */
+    private final class Snapshot implements StorageEngine {
+        private final ConcurrentSkipListMap<String, Version> entries;
+        private final long version;
+        private boolean closed = false;
+
+        private Snapshot(ConcurrentSkipListMap<String, Version> entries, long version) {
+            this.entries = entries;
+            this.version = version;
+        }
+
+        @Override
+        public boolean isPersistent() {
+            return false;
+        }
+
+        @Override
+        public Object get(String key) {
+            return value(entries.get(key), version);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            throw new UnsupportedOperationException("Snapshots are read only");
+        }
+
+        @Override
+        public Object remove(String key) {
+            throw new UnsupportedOperationException("Snapshots are read only");
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, Object>> range(String from, String to) {
+            return visible(subMap(entries, from, to), version);
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, Object>> descendingRange(String from, String to) {
+            return visible(subMap(entries, from, to).descendingMap(), version);
+        }
+
+        @Override
+        public String ceilingKey(String key) {
+            return MemoryEngine.ceilingKey(entries, key, version);
+        }
+
+        @Override
+        public String lowerKey(String key) {
+            return MemoryEngine.lowerKey(entries, key, version);
+        }
+
+        @Override
+        public int removeRange(String from, String to, int limit) {
+            throw new UnsupportedOperationException("Snapshots are read only");
+        }
+
+        @Override
+        public void replace(Iterator<Map.Entry<String, Object>> source) {
+            throw new UnsupportedOperationException("Snapshots are read only");
+        }
+
+        @Override
+        public void commit() {
+            throw new UnsupportedOperationException("Snapshots are read only");
+        }
+
+        @Override
+        public StorageEngine snapshot() {
+            return MemoryEngine.this.snapshot(entries, version);
+        }
+
+        @Override
+        public long size() {
+            long size = 0;
+            for (Iterator<Map.Entry<String, Object>> entries = range(null, null); entries.hasNext(); entries.next()) {
+                size++;
+            }
+            return size;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                released(version);
+            }
+        }
+    }
+}
@@ -1,42 +1,69 @@
 package io.helium.persistence.mapdb;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import io.helium.common.JsonWriter;
 import io.helium.common.Path;
 import io.helium.persistence.mapdb.visitor.NodeVisitor;
-import org.mapdb.BTreeMap;
+import io.helium.persistence.queries.RangeQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.json.JsonObject;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
  *
  * Persistence abstraction for MapDB
  *
+ * A Node is a lightweight handle on a path of the tree. The tree itself lives in one ordered
+ * key space (see {@link NodeKey}), object nodes are stored as {@link #OBJECT} marker under their
+ * own key and attributes as plain values under the key of their path.
+ *
  * Created by Christoph Grotz on 02.06.14.
  */
 public class Node {
-    private BTreeMap<String, Object> attributes;
-    private BTreeMap<String, Node> nodes;
-    private Path pathToNode;
+    private static final Logger LOGGER = LoggerFactory.getLogger(Node.class);
+
+    /**
+     * Value stored under the key of an object node
+     */
+    static final Object OBJECT = new ObjectMarker();
+
+    private final Path pathToNode;
+    private final String key;
+    // version the node is read from, null for the live store
+    private final ReadView view;
 
     Node() {
-        pathToNode = Path.of("/");
-        attributes = MapDbService.get().getTreeMap("rootAttributes");
-        nodes = MapDbService.get().createTreeMap("rootNodes").valueSerializer(new MapDbBackeNodeSerializer()).makeOrGet();
+        this(Path.of("/"));
     }
 
     protected Node(Path pathToNode) {
+        this(pathToNode, NodeKey.of(pathToNode));
+    }
+
+    Node(Path pathToNode, String key) {
+        this(pathToNode, key, null);
+    }
+
+    Node(Path pathToNode, String key, ReadView view) {
         this.pathToNode = pathToNode;
-        attributes = MapDbService.get().getTreeMap(pathToNode + "Attributes");
-        nodes = MapDbService.get().createTreeMap(pathToNode + "Nodes").valueSerializer(new MapDbBackeNodeSerializer()).makeOrGet();
+        this.key = key;
+        this.view = view;
     }
 
     /**
@@ -187,6 +214,7 @@ public class Node {
     }
 
 
+
     /**
      * Get the value object associated with a pathToNode.
      *
@@ -219,32 +247,27 @@ public class Node {
     public Object opt(String key) {
         if (Strings.isNullOrEmpty(key)) {
             return null;
-        } else if (this.attributes.containsKey(key)) {
-            return this.attributes.get(key);
-        } else if (this.nodes.containsKey(key)) {
-            return this.nodes.get(key);
-        } else {
-            return null;
         }
+        String childKey = NodeKey.child(this.key, key);
+        Object value = stores().get(childKey);
+        if (isObject(value)) {
+            return node(childKey);
+        }
+        return value;
     }
 
     /**
-     * Get the MapDbBackedNode value associated with a pathToNode.
+     * Get the MapDbBackedNode value associated with a pathToNode. The node is created lazily with the
+     * first value written into it.
      *
      * @param key A pathToNode string.
      * @return A MapDbBackedNode which is the value.
-     * @throws RuntimeException if the pathToNode is not found or if the value is not a MapDbBackedNode.
      */
     public Node getNode(String key) {
-        if (pathToNode.append(key).root()) {
-            return MapDbService.get().root();
-        } else if (has(key)) {
-            return (Node) get(key);
-        } else {
-            Node node = new Node(pathToNode.append(key));
-            nodes.put(key, node);
-            return node;
+        if (Strings.isNullOrEmpty(key)) {
+            return this;
         }
+        return node(NodeKey.child(this.key, key));
     }
 
     /**
@@ -270,9 +293,11 @@ public class Node {
      * @return true if the pathToNode exists in the MapDbBackedNode.
      */
     public boolean has(String key) {
-        return !Strings.isNullOrEmpty(key) && (
-                this.attributes.containsKey(key) ||
-                        this.nodes.keySet().contains(key));
+        if (Strings.isNullOrEmpty(key)) {
+            return false;
+        }
+        String childKey = NodeKey.child(this.key, key);
+        return stores().containsKey(childKey);
     }
 
     /**
@@ -285,17 +310,214 @@ public class Node {
     }
 
     /**
-     * Get a set of keys of the MapDbBackedNode.
+     * Get the keys of the MapDbBackedNode ordered by name. Descendants of the children are skipped with
+     * one seek per child instead of being scanned.
      *
      * @return A keySet.
      */
     public List<String> keys() {
-        List keys = Lists.newArrayList();
-        keys.addAll(this.attributes.keySet());
-        keys.addAll(this.nodes.keySet());
+        return stores().pendingWrites().children(this.key, storedKeys(), stores().accepted());
+    }
+
+    private List<String> storedKeys() {
+        List<? extends NodeStore> stores = stores().stores(this.key);
+        if (stores.size() == 1) {
+            return keys(stores.get(0));
+        }
+        List<List<String>> keys = Lists.newArrayList();
+        for (NodeStore store : stores) {
+            keys.add(keys(store));
+        }
+        return Lists.newArrayList(Iterables.mergeSorted(keys, Ordering.natural()));
+    }
+
+    /**
+     * @return names of the children stored in one partition
+     */
+    private List<String> keys(NodeStore store) {
+        List<String> keys = Lists.newArrayList();
+        StorageEngine nodes = store.nodes();
+        String end = NodeKey.subTreeEnd(this.key);
+        String next = nodes.ceilingKey(NodeKey.subTreeStart(this.key));
+        while (next != null && next.compareTo(end) < 0) {
+            String childKey = NodeKey.childOnPath(this.key, next);
+            if (isVisible(store, childKey)) {
+                keys.add(NodeKey.name(childKey));
+            }
+            next = nodes.ceilingKey(NodeKey.subTreeEnd(childKey));
+        }
+        return keys;
+    }
+
+    /**
+     * @return false for a child which was deleted while its descendants are still stored, and for the
+     * children of such a node
+     */
+    private static boolean isVisible(NodeStore store, String childKey) {
+        NodeTombstones tombstones = store.tombstones();
+        return tombstones.size() == 0 || !tombstones.hides(childKey)
+                && (!tombstones.contains(childKey) || store.nodes().containsKey(childKey));
+    }
+
+    /**
+     * Get the keys of the children within query ordered by name. Only the children within the range
+     * are visited, limitToLast walks the range backwards from its end. The children with pending writes
+     * are read again and merged in, for which up to as many more stored children are read as the limit.
+     */
+    public List<String> keys(RangeQuery query) {
+        if (query.isAll()) {
+            return keys();
+        }
+        Set<String> touched = stores().pendingWrites().touched(this.key, stores().accepted());
+        if (touched == null) {
+            return select(keys(), query);
+        }
+        if (touched.isEmpty()) {
+            return storedKeys(query);
+        }
+        List<String> names = Lists.newArrayList(touched);
+        RangeQuery stored = query.isLimited() ? query.withLimit(query.limit() + touched.size()) : query;
+        for (String name : storedKeys(stored)) {
+            if (!touched.contains(name)) {
+                names.add(name);
+            }
+        }
+        return select(Iterables.filter(names, this::has), query);
+    }
+
+    private List<String> storedKeys(RangeQuery query) {
+        if (query.orderByChild() != null) {
+            return keysByChild(query);
+        }
+        List<? extends NodeStore> stores = stores().stores(this.key);
+        if (stores.size() == 1) {
+            return keys(stores.get(0), query);
+        }
+        List<List<String>> keys = Lists.newArrayList();
+        for (NodeStore store : stores) {
+            keys.add(keys(store, query));
+        }
+        return limit(Lists.newArrayList(Iterables.mergeSorted(keys, Ordering.natural())), query);
+    }
+
+    /**
+     * @return the names within query, ordered and limited like query
+     */
+    private List<String> select(Iterable<String> names, RangeQuery query) {
+        String field = query.orderByChild();
+        if (field == null) {
+            return limit(Ordering.natural().sortedCopy(Iterables.filter(names, query::inRange)), query);
+        }
+        List<Map.Entry<String, Object>> children = Lists.newArrayList();
+        for (String name : names) {
+            Object value = stores().get(NodeKey.child(NodeKey.child(this.key, name), field));
+            if (query.inRange(value)) {
+                children.add(Maps.immutableEntry(name, value));
+            }
+        }
+        return limit(sortByValue(children), query);
+    }
+
+    /**
+     * @return names of the children within query stored in one partition
+     */
+    private List<String> keys(NodeStore store, RangeQuery query) {
+        List<String> keys = Lists.newArrayList();
+        StorageEngine nodes = store.nodes();
+        String start = query.startAt() != null ? NodeKey.child(this.key, (String) query.startAt()) : NodeKey.subTreeStart(this.key);
+        String end = query.endAt() != null ? NodeKey.subTreeEnd(NodeKey.child(this.key, (String) query.endAt())) : NodeKey.subTreeEnd(this.key);
+        int limit = query.isLimited() ? query.limit() : Integer.MAX_VALUE;
+        if (query.fromEnd()) {
+            String previous = nodes.lowerKey(end);
+            while (keys.size() < limit && previous != null && previous.compareTo(start) >= 0) {
+                String childKey = NodeKey.childOnPath(this.key, previous);
+                if (isVisible(store, childKey)) {
+                    keys.add(NodeKey.name(childKey));
+                }
+                previous = nodes.lowerKey(childKey);
+            }
+            return Lists.reverse(keys);
+        }
+        String next = nodes.ceilingKey(start);
+        while (keys.size() < limit && next != null && next.compareTo(end) < 0) {
+            String childKey = NodeKey.childOnPath(this.key, next);
+            if (isVisible(store, childKey)) {
+                keys.add(NodeKey.name(childKey));
+            }
+            next = nodes.ceilingKey(NodeKey.subTreeEnd(childKey));
+        }
         return keys;
     }
 
+    /**
+     * Children ordered by a field come from the index of the field. Without an index every child is
+     * read and sorted by its field.
+     */
+    private List<String> keysByChild(RangeQuery query) {
+        List<? extends NodeStore> stores = stores().stores(this.key);
+        if (stores.size() == 1) {
+            return keysByChild(stores.get(0), query);
+        }
+        List<Map.Entry<String, Object>> children = Lists.newArrayList();
+        for (NodeStore store : stores) {
+            for (String name : keysByChild(store, query)) {
+                children.add(Maps.immutableEntry(name, store.get(NodeKey.child(NodeKey.child(this.key, name), query.orderByChild()))));
+            }
+        }
+        return limit(sortByValue(children), query);
+    }
+
+    private List<String> keysByChild(NodeStore store, RangeQuery query) {
+        String field = query.orderByChild();
+        if (store.indexes().isIndexed(this.key, field)) {
+            return store.indexes().keys(this.key, query);
+        }
+        LOGGER.warn("Reading all children of {} for a query ordered by {}, add \"{}\": [\"{}\"] to the rules of {} to index them",
+                pathToNode, field, SecondaryIndexes.INDEX_ON, field, pathToNode);
+        List<Map.Entry<String, Object>> children = Lists.newArrayList();
+        for (String name : keys(store)) {
+            Object value = store.get(NodeKey.child(NodeKey.child(this.key, name), field));
+            if (query.inRange(value)) {
+                children.add(Maps.immutableEntry(name, value));
+            }
+        }
+        return limit(sortByValue(children), query);
+    }
+
+    /**
+     * @return names of children, ordered by the values of their field and by name
+     */
+    private static List<String> sortByValue(List<Map.Entry<String, Object>> children) {
+        children.sort((a, b) -> {
+            int order = RangeQuery.compare(a.getValue(), b.getValue());
+            return order != 0 ? order : a.getKey().compareTo(b.getKey());
+        });
+        return Lists.newArrayList(Lists.transform(children, Map.Entry::getKey));
+    }
+
+    /**
+     * @return the first or last names in ordered names, as many as the limit of query
+     */
+    private static List<String> limit(List<String> names, RangeQuery query) {
+        int limit = Math.min(query.isLimited() ? query.limit() : names.size(), names.size());
+        return query.fromEnd() ? names.subList(names.size() - limit, names.size()) : names.subList(0, limit);
+    }
+
+    /**
+     * Builds the JsonObject of the children within query, each of them from a single range scan.
+     */
+    public JsonObject toJsonObject(RangeQuery query) {
+        if (query.isAll()) {
+            return toJsonObject();
+        }
+        JsonObject result = new JsonObject();
+        for (String name : keys(query)) {
+            Object value = opt(name);
+            result.putValue(name, value instanceof Node ? ((Node) value).toJsonObject() : value);
+        }
+        return result;
+    }
+
     /**
      * Get the number of keys stored in the MapDbBackedNode.
      *
@@ -303,7 +525,22 @@ public class Node {
      */
 
     public int length() {
-        return this.nodes.size() + this.attributes.size();
+        long children = 0;
+        for (NodeStore store : stores().stores(this.key)) {
+            children += store.counts().children(this.key);
+        }
+        return (int) children;
+    }
+
+    /**
+     * @return the number of nodes and values below this node
+     */
+    public long descendantCount() {
+        long descendants = 0;
+        for (NodeStore store : stores().stores(this.key)) {
+            descendants += store.counts().descendants(this.key);
+        }
+        return descendants;
     }
 
     /**
@@ -337,21 +574,38 @@ public class Node {
         if (Strings.isNullOrEmpty(key)) {
             return this;
         }
-        if (key == null) {
-            throw new NullPointerException("Null pathToNode.");
-        }
+        checkWritable();
         if (value != null) {
             testValidity(value);
+            String childKey = NodeKey.child(this.key, key);
+            NodeStore store = stores().store(childKey);
+            // what is written below a tombstone must not be hidden or reclaimed along with the old subtree
+            store.tombstones().reclaimAbove(store.nodes(), childKey);
             if (value instanceof Node) {
-                this.nodes.put(key, (Node) value);
+                ensureObject(childKey);
             } else if (value instanceof JsonObject) {
                 JsonObject node = (JsonObject) value;
+                ensureObject(childKey);
+                Node nodeToFill = getNode(key);
                 node.getFieldNames().forEach(valueKey -> {
-                    Node nodeToFill = MapDbService.get().of(pathToNode.append(key));
-                    nodeToFill.put(valueKey, node.getValue(valueKey));
+                    // typed, as the generic getValue would select put(String, Node) otherwise
+                    Object fieldValue = node.getValue(valueKey);
+                    nodeToFill.put(valueKey, fieldValue);
                 });
             } else {
-                this.attributes.put(key, value);
+                ensureObject(this.key);
+                store.hotTier().changing(childKey);
+                Object previous = store.nodes().put(childKey, value);
+                if (previous == null) {
+                    store.counts().added(childKey, false);
+                } else if (isObject(previous)) {
+                    store.indexes().removingSubTree(childKey);
+                    store.tombstones().add(childKey);
+                    store.counts().becameValue(childKey);
+                    store.expiries().cleared(childKey);
+                    MapDbService.get().nodeCache().invalidateSubTree(childKey);
+                }
+                store.indexes().changed(childKey, isObject(previous) ? null : previous, value);
             }
         } else {
             this.delete(key);
@@ -360,20 +614,62 @@ public class Node {
     }
 
     /**
-     * Delete a name and its value, if present.
+     * Makes sure the object node stored under key and all of its ancestors exist. Stops at the first
+     * ancestor which is already present.
+     */
+    private void ensureObject(String key) {
+        if (key.isEmpty()) {
+            return;
+        }
+        // all ancestors but the root are in the partition of key
+        NodeStore store = stores().store(key);
+        String current = key;
+        while (!current.isEmpty() && !isObject(store.nodes().get(current))) {
+            store.hotTier().changing(current);
+            Object previous = store.nodes().put(current, OBJECT);
+            if (previous != null) {
+                // replaced a plain value, which can't have had descendants
+                store.counts().becameObject(current);
+                store.indexes().changed(current, previous, null);
+                break;
+            }
+            store.counts().added(current, true);
+            current = NodeKey.parent(current);
+        }
+    }
+
+    /**
+     * Delete a name and its value, if present. Deleting a node leaves a tombstone, its descendants are
+     * hidden right away and removed from the store in the background, see {@link NodeTombstones}.
      *
      * @param key The name to be deleted.
      * @return The value that was associated with the name, or null if there was no value.
      */
 
     Object delete(String key) {
-        if (this.nodes.containsKey(key)) {
-            return this.nodes.remove(key);
-        } else if (this.attributes.containsKey(key)) {
-            return this.attributes.remove(key);
-        } else {
+        checkWritable();
+        String childKey = NodeKey.child(this.key, key);
+        NodeStore store = stores().store(childKey);
+        if (store.tombstones().hides(childKey)) {
+            // deleted with an ancestor already
             return null;
         }
+        store.hotTier().changing(childKey);
+        Object value = store.nodes().remove(childKey);
+        if (value != null) {
+            store.counts().removed(childKey, isObject(value));
+        }
+        store.expiries().removed(childKey);
+        if (isObject(value)) {
+            store.indexes().removingSubTree(childKey);
+            store.tombstones().add(childKey);
+            MapDbService.get().nodeCache().invalidateSubTree(childKey);
+            return new Node(pathToNode.append(key), childKey);
+        }
+        if (value != null) {
+            store.indexes().changed(childKey, value, null);
+        }
+        return value;
     }
 
     /**
@@ -408,17 +704,23 @@ public class Node {
      */
 
     public String toString(int indentFactor) {
-        StringWriter w = new StringWriter();
-        synchronized (w.getBuffer()) {
-            return this.write(w, indentFactor, 0).toString();
-        }
+        return toBuffer(indentFactor).toString();
+    }
+
+    /**
+     * @return the subtree as UTF-8 encoded JSON text, ready to be sent as is
+     */
+    public Buffer toBuffer() {
+        return toBuffer(0);
+    }
+
+    public Buffer toBuffer(int indentFactor) {
+        return write(new JsonWriter(indentFactor)).toBuffer();
     }
 
     /**
      * Write the contents of the MapDbBackedNode as JSON text to a writer. For compactness, no whitespace is
      * added.
-     * <p>
-     * Warning: This method assumes that the data structure is acyclical.
      *
      * @return The writer.
      * @throws RuntimeException
@@ -426,52 +728,55 @@ public class Node {
 
     public Writer write(Writer writer, int indentFactor, int indent) {
         try {
-            boolean commanate = false;
-            final int length = this.length();
-            Iterator<String> keys = this.keyIterator();
-            writer.write('{');
-
-            if (length == 1) {
-                String key = keys.next();
-                writer.write(quote(key));
-                writer.write(':');
-                if (indentFactor > 0) {
-                    writer.write(' ');
-                }
-                writeValue(writer, get(key), indentFactor, indent);
-            } else if (length != 0) {
-                final int newindent = indent + indentFactor;
-                while (keys.hasNext()) {
-                    String key = keys.next();
-                    if (!Strings.isNullOrEmpty(key)) {
-                        if (commanate) {
-                            writer.write(',');
-                        }
-                        if (indentFactor > 0) {
-                            writer.write('\n');
-                        }
-                        indent(writer, newindent);
-                        writer.write(quote(key));
-                        writer.write(':');
-                        if (indentFactor > 0) {
-                            writer.write(' ');
-                        }
-                        writeValue(writer, get(key), indentFactor, newindent);
-                        commanate = true;
-                    }
-                }
-                if (indentFactor > 0) {
-                    writer.write('\n');
-                }
-                indent(writer, indent);
-            }
-            writer.write('}');
+            writer.write(write(new JsonWriter(indentFactor, indent)).toBuffer().toString());
             return writer;
         } catch (IOException exception) {
             throw new RuntimeException(exception);
         }
     }
 
+    /**
+     * Streams the subtree into writer. The whole subtree is written from a single range scan over the
+     * node store, the keys come in depth first order so nested objects are opened and closed as the
+     * keys leave their subtrees.
+     */
+    public JsonWriter write(JsonWriter writer) {
+        // keys of the open objects, the innermost first
+        Deque<String> openKeys = Lists.newLinkedList();
+        openKeys.push(this.key);
+        writer.beginObject();
+        for (Map.Entry<String, Object> entry : subTree(this.key)) {
+            String parent = NodeKey.parent(entry.getKey());
+            while (!isWithin(parent, openKeys.peek())) {
+                writer.endObject();
+                openKeys.pop();
+            }
+            if (!parent.equals(openKeys.peek())) {
+                // descendant without parent node, not reachable
+                continue;
+            }
+            writer.name(NodeKey.name(entry.getKey()));
+            if (isObject(entry.getValue())) {
+                writer.beginObject();
+                openKeys.push(entry.getKey());
+            } else {
+                writer.value(entry.getValue());
+            }
+        }
+        while (!openKeys.isEmpty()) {
+            writer.endObject();
+            openKeys.pop();
+        }
+        return writer;
+    }
+
+    /**
+     * @return whether key is a descendant of ancestor or ancestor itself
+     */
+    private static boolean isWithin(String key, String ancestor) {
+        return key.equals(ancestor) || key.startsWith(NodeKey.subTreeStart(ancestor));
+    }
+
     public Object getObjectForPath(Path path) {
         Node parent = getNodeForPath(path.parent());
         return parent.get(path.lastElement());
@@ -479,27 +784,15 @@ public class Node {
 
 
     public Node getNodeForPath(Path path) {
-        Path fullPath = pathToNode.append(path);
-        Node lastNode = null;
-        for (int i = 0; i < fullPath.toArray().length; i++) {
-            Path nodePath = fullPath.prefix(0);
-            Node node = MapDbService.get().of(nodePath);
-            if (lastNode == null) {
-                lastNode = node;
-            } else {
-                lastNode.put(nodePath.lastElement(), node);
-            }
-        }
-        return MapDbService.get().of(fullPath);
+        return node(NodeKey.of(pathToNode.append(path)));
     }
 
     public Collection<Node> getChildren() {
-        Set<Node> nodes = Sets.newHashSet();
-        Iterator<?> itr = keyIterator();
-        while (itr.hasNext()) {
-            Object key = itr.next();
-            if (get((String) key) instanceof Node) {
-                nodes.add((Node) get((String) key));
+        List<Node> nodes = Lists.newArrayList();
+        for (String key : keys()) {
+            Object value = get(key);
+            if (value instanceof Node) {
+                nodes.add((Node) value);
             }
         }
         return nodes;
@@ -507,7 +800,12 @@ public class Node {
 
 
     public boolean hasChildren() {
-        return !getChildren().isEmpty();
+        for (NodeStore store : stores().stores(this.key)) {
+            if (store.counts().objects(this.key) > 0) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public Node getLastLeafNode(Path path) {
@@ -531,36 +829,123 @@ public class Node {
     }
 
 
+    /**
+     * Visits the subtree depth first with a single range scan.
+     */
     public void accept(Path path, NodeVisitor visitor) {
         visitor.visitNode(path, this);
-        for (String key : keys()) {
-            Object value = get(key);
-            if (value instanceof Node) {
-                ((Node) value).accept(path.append(key), visitor);
+        int prefixLength = this.key.length();
+        for (Map.Entry<String, Object> entry : subTree(this.key)) {
+            Path relativePath = NodeKey.toPath(entry.getKey().substring(prefixLength));
+            if (isObject(entry.getValue())) {
+                visitor.visitNode(path.append(relativePath), node(entry.getKey()));
             } else {
-                visitor.visitProperty(path, this, key, value);
+                Path parentPath = relativePath.parent();
+                visitor.visitProperty(path.append(parentPath), node(NodeKey.parent(entry.getKey())),
+                        relativePath.lastElement(), entry.getValue());
             }
         }
     }
 
     public void clear() {
-        this.attributes.clear();
-        this.nodes.clear();
+        checkWritable();
+        for (NodeStore store : stores().stores(this.key)) {
+            store.hotTier().changing(this.key);
+            store.indexes().removingSubTree(this.key);
+            store.nodes().removeRange(NodeKey.subTreeStart(this.key), NodeKey.subTreeEnd(this.key), Integer.MAX_VALUE);
+            store.counts().cleared(this.key);
+            store.expiries().cleared(this.key);
+        }
+        MapDbService.get().nodeCache().invalidateDescendants(this.key);
+    }
+
+    /**
+     * Looked up on every access, because a bulk load replaces the collections
+     */
+    private NodeStores stores() {
+        return view != null ? view : MapDbService.get();
+    }
+
+    /**
+     * @return the node stored under key, read from the same version as this one
+     */
+    private Node node(String key) {
+        return stores().node(key);
     }
 
+    private void checkWritable() {
+        if (view != null) {
+            throw new UnsupportedOperationException("Node " + pathToNode + " is read from " + view + " and can't be written");
+        }
+    }
+
+    /**
+     * @return the entries below key in key order, from all partitions holding some of them
+     */
+    private Iterable<Map.Entry<String, Object>> subTree(String key) {
+        return () -> stores().subTree(key);
+    }
+
+    static boolean isObject(Object value) {
+        return value instanceof ObjectMarker;
+    }
+
+    /**
+     * @return the number of child nodes of node, values not counted
+     */
     public static long childCount(Object node) {
-        return (node instanceof Node) ? ((Node) node).getChildren().size() : 0;
+        if (!(node instanceof Node)) {
+            return 0;
+        }
+        long objects = 0;
+        for (NodeStore store : ((Node) node).stores().stores(((Node) node).key)) {
+            objects += store.counts().objects(((Node) node).key);
+        }
+        return objects;
     }
 
     public static boolean hasChildren(Object node) {
         return (node instanceof Node) && ((Node) node).hasChildren();
     }
 
+    /**
+     * Builds the JsonObject of the subtree from a single range scan, without going through JSON text.
+     */
     public JsonObject toJsonObject() {
-        return new JsonObject(toString());
+        Deque<JsonObject> openObjects = Lists.newLinkedList();
+        // keys of the open objects, the innermost first
+        Deque<String> openKeys = Lists.newLinkedList();
+        JsonObject result = new JsonObject();
+        openObjects.push(result);
+        openKeys.push(this.key);
+        for (Map.Entry<String, Object> entry : subTree(this.key)) {
+            String parent = NodeKey.parent(entry.getKey());
+            while (!isWithin(parent, openKeys.peek())) {
+                openObjects.pop();
+                openKeys.pop();
+            }
+            if (!parent.equals(openKeys.peek())) {
+                // descendant without parent node, not reachable
+                continue;
+            }
+            String name = NodeKey.name(entry.getKey());
+            if (isObject(entry.getValue())) {
+                JsonObject child = new JsonObject();
+                openObjects.peek().putObject(name, child);
+                openObjects.push(child);
+                openKeys.push(entry.getKey());
+            } else {
+                openObjects.peek().putValue(name, entry.getValue());
+            }
+        }
+        return result;
     }
 
     public Path getPathToNode() {
         return pathToNode;
     }
+
+    private static final class ObjectMarker implements Serializable {
+        private static final long serialVersionUID = 1L;
+    }
 }
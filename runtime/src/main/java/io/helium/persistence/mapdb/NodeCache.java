@@ -0,0 +1,74 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ *
+ * Size bounded LRU cache of live {@link Node} handles, indexed by their {@link NodeKey}. Looking up a
+ * deep path costs one probe, the handle is only built on a miss.
+ *
+ * The cached keys are mirrored in a sorted set, so all handles below a deleted or moved path can be
+ * invalidated with one range operation.
+ */
+public class NodeCache {
+    private final LoadingCache<String, Node> handles;
+    private final NavigableSet<String> keys = new ConcurrentSkipListSet<>();
+
+    NodeCache(long maximumSize) {
+        this.handles = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .removalListener((RemovalNotification<String, Node> notification) ->
+                        keys.remove(notification.getKey()))
+                .build(new CacheLoader<String, Node>() {
+                    @Override
+                    public Node load(String key) {
+                        keys.add(key);
+                        return new Node(NodeKey.toPath(key), key);
+                    }
+                });
+    }
+
+    Node get(String key) {
+        return handles.getUnchecked(key);
+    }
+
+    /**
+     * Invalidates the handle of key and all handles of its descendants.
+     */
+    void invalidateSubTree(String key) {
+        handles.invalidate(key);
+        invalidateDescendants(key);
+    }
+
+    void invalidateDescendants(String key) {
+        handles.invalidateAll(keys.subSet(NodeKey.subTreeStart(key), NodeKey.subTreeEnd(key)));
+    }
+
+    public long size() {
+        return handles.size();
+    }
+
+    public long hitCount() {
+        return handles.stats().hitCount();
+    }
+
+    public long missCount() {
+        return handles.stats().missCount();
+    }
+
+    public long evictionCount() {
+        return handles.stats().evictionCount();
+    }
+
+    public CacheStats stats() {
+        return handles.stats();
+    }
+}
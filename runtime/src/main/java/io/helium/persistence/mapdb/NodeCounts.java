@@ -0,0 +1,267 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Fun;
+import org.mapdb.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * Number of children, object children and descendants of every object node, stored next to the node
+ * store under the same keys and kept up to date by every write, so they are read with one lookup
+ * instead of scanning the children. Nodes without children have no entry.
+ */
+final class NodeCounts {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NodeCounts.class);
+
+    static final String COLLECTION = "tree.counts";
+
+    private static final int CHILDREN = 0;
+    private static final int OBJECTS = 1;
+    private static final int DESCENDANTS = 2;
+
+    private final BTreeMap<String, long[]> counts;
+
+    private NodeCounts(BTreeMap<String, long[]> counts) {
+        this.counts = counts;
+    }
+
+    /**
+     * Opens the counts of nodes, counting them first if there are none yet
+     */
+    static NodeCounts open(DB db, StorageEngine nodes, NodeTombstones tombstones) {
+        if (db.exists(COLLECTION)) {
+            return new NodeCounts(db.getTreeMap(COLLECTION));
+        }
+        return rebuild(db, nodes, tombstones);
+    }
+
+    /**
+     * @return read only counts of snapshot
+     */
+    static NodeCounts view(DB snapshot) {
+        return new NodeCounts(snapshot.<String, long[]>getTreeMap(COLLECTION));
+    }
+
+    /**
+     * Counts the children of all nodes with a single descending scan, skipping the entries tombstones
+     * hide
+     */
+    static NodeCounts rebuild(DB db, StorageEngine nodes, NodeTombstones tombstones) {
+        long start = System.currentTimeMillis();
+        if (db.exists(COLLECTION)) {
+            db.delete(COLLECTION);
+        }
+        DB.BTreeMapMaker maker = db.createTreeMap(COLLECTION)
+                .keySerializer(NodeKeySerializer.INSTANCE)
+                .valueSerializer(CountsSerializer.INSTANCE);
+        Counter source = new Counter(tombstones.visible(nodes.descendingRange(null, null)));
+        NodeCounts counts = new NodeCounts(source.hasNext() ? maker.pumpSource(source).make() : maker.<String, long[]>make());
+        LOGGER.info("Counted the children of {} nodes in {}ms", source.counted, System.currentTimeMillis() - start);
+        return counts;
+    }
+
+    long children(String key) {
+        return get(key)[CHILDREN];
+    }
+
+    long objects(String key) {
+        return get(key)[OBJECTS];
+    }
+
+    long descendants(String key) {
+        return get(key)[DESCENDANTS];
+    }
+
+    /**
+     * key was added without descendants
+     */
+    void added(String key, boolean object) {
+        String parent = NodeKey.parent(key);
+        adjust(parent, 1, object ? 1 : 0, 1);
+        adjustAncestors(parent, 1);
+    }
+
+    /**
+     * The value stored under key was replaced by an object
+     */
+    void becameObject(String key) {
+        adjust(NodeKey.parent(key), 0, 1, 0);
+    }
+
+    /**
+     * The object stored under key was replaced by a value, which removed its descendants
+     */
+    void becameValue(String key) {
+        long descendants = descendants(key);
+        removeSubTree(key);
+        String parent = NodeKey.parent(key);
+        adjust(parent, 0, -1, -descendants);
+        adjustAncestors(parent, -descendants);
+    }
+
+    /**
+     * key was removed together with its descendants
+     */
+    void removed(String key, boolean object) {
+        long descendants = object ? descendants(key) : 0;
+        if (object) {
+            removeSubTree(key);
+        }
+        String parent = NodeKey.parent(key);
+        adjust(parent, -1, object ? -1 : 0, -1 - descendants);
+        adjustAncestors(parent, -1 - descendants);
+    }
+
+    /**
+     * All descendants of key were removed
+     */
+    void cleared(String key) {
+        long descendants = descendants(key);
+        removeSubTree(key);
+        adjustAncestors(key, -descendants);
+    }
+
+    private long[] get(String key) {
+        long[] value = counts.get(key);
+        return value != null ? value : new long[3];
+    }
+
+    private void removeSubTree(String key) {
+        counts.remove(key);
+        counts.subMap(NodeKey.subTreeStart(key), true, NodeKey.subTreeEnd(key), false).clear();
+    }
+
+    private void adjustAncestors(String key, long descendants) {
+        for (String ancestor = key; !ancestor.isEmpty(); ) {
+            ancestor = NodeKey.parent(ancestor);
+            adjust(ancestor, 0, 0, descendants);
+        }
+    }
+
+    private void adjust(String key, long children, long objects, long descendants) {
+        if (children == 0 && objects == 0 && descendants == 0) {
+            return;
+        }
+        // values may be shared with the instance cache of MapDB, so they are never modified in place
+        long[] value = get(key).clone();
+        value[CHILDREN] += children;
+        value[OBJECTS] += objects;
+        value[DESCENDANTS] += descendants;
+        if (value[CHILDREN] <= 0 && value[DESCENDANTS] <= 0) {
+            counts.remove(key);
+        } else {
+            counts.put(key, value);
+        }
+    }
+
+    /**
+     * Turns the entries of the node store in descending order into the counts of all object nodes in
+     * descending order. All descendants of a node precede it, so its counts are complete when it is
+     * reached. Counts of the children of the last node reached on every depth are summed up per depth,
+     * along with the key of their parent. Counts of entries whose parent is missing are dropped.
+     */
+    private static final class Counter extends AbstractIterator<Fun.Tuple2<String, long[]>> {
+        private final Iterator<Map.Entry<String, Object>> source;
+        private final List<long[]> depths = Lists.newArrayList();
+        // key of the parent the counts on every depth belong to
+        private final List<String> parents = Lists.newArrayList();
+        private boolean rootDone = false;
+        private long counted = 0;
+
+        private Counter(Iterator<Map.Entry<String, Object>> source) {
+            this.source = source;
+        }
+
+        @Override
+        protected Fun.Tuple2<String, long[]> computeNext() {
+            while (source.hasNext()) {
+                Map.Entry<String, Object> entry = source.next();
+                String key = entry.getKey();
+                int depth = NodeKey.depth(key);
+                long[] own = take(depth + 1, key);
+                boolean object = Node.isObject(entry.getValue());
+                long[] parent = at(depth, NodeKey.parent(key));
+                parent[CHILDREN]++;
+                parent[OBJECTS] += object ? 1 : 0;
+                parent[DESCENDANTS] += 1 + own[DESCENDANTS];
+                if (object && own[CHILDREN] > 0) {
+                    counted++;
+                    return Fun.t2(key, own);
+                }
+            }
+            if (!rootDone) {
+                rootDone = true;
+                long[] root = take(1, NodeKey.ROOT);
+                if (root[CHILDREN] > 0) {
+                    counted++;
+                    return Fun.t2(NodeKey.ROOT, root);
+                }
+            }
+            return endOfData();
+        }
+
+        /**
+         * @return counts of the children of parent on depth, the ones of another parent are dropped
+         */
+        private long[] at(int depth, String parent) {
+            while (depths.size() <= depth) {
+                depths.add(new long[3]);
+                parents.add(null);
+            }
+            if (!parent.equals(parents.get(depth))) {
+                depths.set(depth, new long[3]);
+                parents.set(depth, parent);
+            }
+            return depths.get(depth);
+        }
+
+        private long[] take(int depth, String parent) {
+            long[] counts = at(depth, parent);
+            depths.set(depth, new long[3]);
+            parents.set(depth, null);
+            return counts;
+        }
+    }
+
+    static final class CountsSerializer implements Serializer<long[]>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        static final CountsSerializer INSTANCE = new CountsSerializer();
+
+        @Override
+        public void serialize(DataOutput out, long[] value) throws IOException {
+            DataOutput2.packLong(out, value[CHILDREN]);
+            DataOutput2.packLong(out, value[OBJECTS]);
+            DataOutput2.packLong(out, value[DESCENDANTS]);
+        }
+
+        @Override
+        public long[] deserialize(DataInput in, int available) throws IOException {
+            return new long[]{DataInput2.unpackLong(in), DataInput2.unpackLong(in), DataInput2.unpackLong(in)};
+        }
+
+        @Override
+        public int fixedSize() {
+            return -1;
+        }
+
+        private Object readResolve() {
+            return INSTANCE;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.Lists;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+
+/**
+ *
+ * Expiry times of the nodes written with a TTL, stored next to the node store. Every time is kept twice,
+ * by the key of its node, so it can be replaced and dropped together with its subtree, and in a schedule
+ * ordered by time, so the expired nodes are found without looking at any other node. Entries of the
+ * schedule are the time as fixed width hex followed by the key of the node.
+ */
+final class NodeExpiries {
+    static final String COLLECTION = "tree.expiries";
+    static final String SCHEDULE = "tree.expiries.schedule";
+
+    private static final int TIME_LENGTH = 16;
+
+    private final BTreeMap<String, Long> expiries;
+    private final NavigableSet<String> schedule;
+
+    private NodeExpiries(BTreeMap<String, Long> expiries, NavigableSet<String> schedule) {
+        this.expiries = expiries;
+        this.schedule = schedule;
+    }
+
+    static NodeExpiries open(DB db) {
+        if (db.exists(COLLECTION)) {
+            return new NodeExpiries(db.getTreeMap(COLLECTION), db.getTreeSet(SCHEDULE));
+        }
+        return new NodeExpiries(db.createTreeMap(COLLECTION).keySerializer(NodeKeySerializer.INSTANCE).make(),
+                db.createTreeSet(SCHEDULE).serializer(BTreeKeySerializer.STRING).make());
+    }
+
+    /**
+     * @return read only expiries of snapshot
+     */
+    static NodeExpiries view(DB snapshot) {
+        return new NodeExpiries(snapshot.getTreeMap(COLLECTION), snapshot.getTreeSet(SCHEDULE));
+    }
+
+    /**
+     * @return time key expires at, in milliseconds since the epoch, 0 if it doesn't expire
+     */
+    long expiresAt(String key) {
+        Long expiresAt = expiries.get(key);
+        return expiresAt != null ? expiresAt : 0;
+    }
+
+    /**
+     * Sets the time key expires at, 0 to keep it
+     */
+    void expire(String key, long expiresAt) {
+        Long previous = expiresAt > 0 ? expiries.put(key, expiresAt) : expiries.remove(key);
+        if (previous != null) {
+            schedule.remove(entry(previous, key));
+        }
+        if (expiresAt > 0) {
+            schedule.add(entry(expiresAt, key));
+        }
+    }
+
+    /**
+     * key was removed together with its descendants
+     */
+    void removed(String key) {
+        expire(key, 0);
+        cleared(key);
+    }
+
+    /**
+     * All descendants of key were removed
+     */
+    void cleared(String key) {
+        Map<String, Long> descendants = expiries.subMap(NodeKey.subTreeStart(key), true, NodeKey.subTreeEnd(key), false);
+        for (Map.Entry<String, Long> descendant : descendants.entrySet()) {
+            schedule.remove(entry(descendant.getValue(), descendant.getKey()));
+        }
+        descendants.clear();
+    }
+
+    /**
+     * @return up to limit keys which expired at now, the earliest first
+     */
+    List<String> expired(long now, int limit) {
+        List<String> expired = Lists.newArrayList();
+        for (String entry : schedule.headSet(time(now + 1))) {
+            if (expired.size() == limit) {
+                break;
+            }
+            expired.add(entry.substring(TIME_LENGTH));
+        }
+        return expired;
+    }
+
+    int size() {
+        return expiries.size();
+    }
+
+    private static String entry(long expiresAt, String key) {
+        return time(expiresAt) + key;
+    }
+
+    private static String time(long time) {
+        return String.format("%016x", time);
+    }
+}
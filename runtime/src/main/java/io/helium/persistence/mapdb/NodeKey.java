@@ -0,0 +1,82 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.base.Strings;
+import io.helium.common.Path;
+
+/**
+ *
+ * Encoding of {@link Path}s into keys of the flat node store.
+ *
+ * Every segment is prefixed with {@link #SEPARATOR}, which sorts before any other character. Therefore
+ * the keys of a subtree form one contiguous range directly behind the key of its root node and the
+ * children of a node are ordered by their name. The root node is the empty key.
+ */
+final class NodeKey {
+    static final char SEPARATOR = '\u0000';
+    static final String ROOT = "";
+
+    private NodeKey() {
+    }
+
+    static String of(Path path) {
+        StringBuilder key = new StringBuilder();
+        for (String element : path.toArray()) {
+            if (!Strings.isNullOrEmpty(element)) {
+                key.append(SEPARATOR).append(element);
+            }
+        }
+        return key.toString();
+    }
+
+    static String child(String key, String name) {
+        return key + SEPARATOR + name;
+    }
+
+    /**
+     * @return first key (inclusive) of the descendants of key
+     */
+    static String subTreeStart(String key) {
+        return key + SEPARATOR;
+    }
+
+    /**
+     * @return upper bound (exclusive) of the descendants of key
+     */
+    static String subTreeEnd(String key) {
+        return key + (char) (SEPARATOR + 1);
+    }
+
+    static String name(String key) {
+        return key.substring(key.lastIndexOf(SEPARATOR) + 1);
+    }
+
+    static String parent(String key) {
+        int index = key.lastIndexOf(SEPARATOR);
+        return index <= 0 ? ROOT : key.substring(0, index);
+    }
+
+    /**
+     * @return number of segments of the key, 0 for the root node
+     */
+    static int depth(String key) {
+        int depth = 0;
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) == SEPARATOR) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * @return key of the child of parentKey on the way down to descendantKey
+     */
+    static String childOnPath(String parentKey, String descendantKey) {
+        int end = descendantKey.indexOf(SEPARATOR, parentKey.length() + 1);
+        return end < 0 ? descendantKey : descendantKey.substring(0, end);
+    }
+
+    static Path toPath(String key) {
+        return key.isEmpty() ? Path.of("/") : Path.of(key.replace(SEPARATOR, '/'));
+    }
+}
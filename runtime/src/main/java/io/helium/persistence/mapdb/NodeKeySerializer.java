@@ -0,0 +1,130 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * Serializer of the {@link NodeKey}s within one B-tree node of the node store.
+ *
+ * A key is written as the number of leading segments it shares with the previous key, followed by
+ * its remaining segments. A segment, which already appeared in the same B-tree node, is written as a
+ * varint reference into the dictionary of that node, so attribute names repeated by sibling objects
+ * are stored once per B-tree node.
+ */
+public class NodeKeySerializer extends BTreeKeySerializer<String> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final NodeKeySerializer INSTANCE = new NodeKeySerializer();
+
+    @Override
+    public void serialize(DataOutput out, int start, int end, Object[] keys) throws IOException {
+        Map<String, Integer> dictionary = Maps.newHashMap();
+        String previous = NodeKey.ROOT;
+        int[] previousSeparators = separators(previous);
+        for (int i = start; i < end; i++) {
+            String key = (String) keys[i];
+            int[] separators = separators(key);
+            int shared = sharedSegments(previous, previousSeparators, key, separators);
+            int segments = separators.length - 1;
+            DataOutput2.packInt(out, shared);
+            DataOutput2.packInt(out, segments - shared);
+            for (int segment = shared; segment < segments; segment++) {
+                String name = key.substring(separators[segment] + 1, separators[segment + 1]);
+                Integer index = dictionary.get(name);
+                if (index != null) {
+                    DataOutput2.packInt(out, index << 1 | 1);
+                }
+                else {
+                    byte[] bytes = name.getBytes(Charsets.UTF_8);
+                    DataOutput2.packInt(out, bytes.length << 1);
+                    out.write(bytes);
+                    dictionary.put(name, dictionary.size());
+                }
+            }
+            previous = key;
+            previousSeparators = separators;
+        }
+    }
+
+    @Override
+    public Object[] deserialize(DataInput in, int start, int end, int size) throws IOException {
+        Object[] keys = new Object[size];
+        List<String> dictionary = Lists.newArrayList();
+        String previous = NodeKey.ROOT;
+        int[] previousSeparators = separators(previous);
+        for (int i = start; i < end; i++) {
+            int shared = DataInput2.unpackInt(in);
+            int remaining = DataInput2.unpackInt(in);
+            StringBuilder key = new StringBuilder(previous.length() + 16);
+            key.append(previous, 0, previousSeparators[shared]);
+            for (int segment = 0; segment < remaining; segment++) {
+                int header = DataInput2.unpackInt(in);
+                key.append(NodeKey.SEPARATOR);
+                if ((header & 1) == 1) {
+                    key.append(dictionary.get(header >>> 1));
+                }
+                else {
+                    byte[] bytes = new byte[header >>> 1];
+                    in.readFully(bytes);
+                    String name = new String(bytes, Charsets.UTF_8);
+                    dictionary.add(name);
+                    key.append(name);
+                }
+            }
+            previous = key.toString();
+            previousSeparators = separators(previous);
+            keys[i] = previous;
+        }
+        return keys;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Comparator<String> getComparator() {
+        return BTreeMap.COMPARABLE_COMPARATOR;
+    }
+
+    /**
+     * @return positions of all separators in key, followed by the length of key
+     */
+    private static int[] separators(String key) {
+        int[] separators = new int[NodeKey.depth(key) + 1];
+        int count = 0;
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) == NodeKey.SEPARATOR) {
+                separators[count++] = i;
+            }
+        }
+        separators[count] = key.length();
+        return separators;
+    }
+
+    private static int sharedSegments(String previous, int[] previousSeparators, String key, int[] separators) {
+        int shared = 0;
+        int max = Math.min(previousSeparators.length, separators.length) - 1;
+        while (shared < max && previousSeparators[shared + 1] == separators[shared + 1]
+                && previous.regionMatches(separators[shared], key, separators[shared],
+                separators[shared + 1] - separators[shared])) {
+            shared++;
+        }
+        return shared;
+    }
+
+    private Object readResolve() {
+        return INSTANCE;
+    }
+}
@@ -0,0 +1,485 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import org.mapdb.Atomic;
+import org.mapdb.DB;
+import org.mapdb.TxEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.reflect.Field;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ *
+ * Part of the tree kept in a MapDB store of its own: the top level nodes named by its prefixes with all
+ * of their descendants, or everything no other partition claims for the default partition. A partition
+ * has its own writer thread, publishes new versions on its own schedule and is sized by its own store
+ * profile, so a write heavy subtree doesn't slow down the commits of the others.
+ *
+ * The nodes themselves are kept by the {@link StorageEngine} of the partition, the counts, indexes,
+ * expiry times and tombstones always in the MapDB store. With an engine other than MapDB the counts and
+ * indexes are rebuilt on start, unless the store was committed after the last commit of the nodes, and a
+ * memory engine gets a store on the heap as well.
+ */
+final class NodePartition implements NodeStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NodePartition.class);
+
+    static final String DEFAULT = "default";
+
+    // version of the seed data loaded into the store
+    private static final String SEED_VERSION = "tree.seed";
+    // number of the last commit of the nodes the collections of the store were committed with
+    private static final String ENGINE_COMMITS = "tree.engine.commits";
+    // suffix of the catalog entry holding the type of a collection
+    private static final String TYPE = ".type";
+    // fields of the MapDB transaction engine closed snapshots are dropped from
+    private static final Field TX_REFERENCES = txEngineField("txs");
+    private static final Field COMMIT_LOCK = txEngineField("commitLock");
+
+    private final String name;
+    private final Set<String> prefixes;
+    private final File file;
+    private final StoreProfile profile;
+    private final long publishInterval;
+    private final DB db;
+    private final ThreadPoolExecutor writer;
+    private final StorageEngine nodes;
+    // number of the last commit of the nodes the store was committed with, for engines with files of their own
+    private final Atomic.Long engineCommits;
+    private volatile NodeCounts counts;
+    private volatile SecondaryIndexes indexes;
+    private final NodeExpiries expiries;
+    private final NodeTombstones tombstones;
+    private final HotTier hotTier;
+    private volatile PartitionVersion current;
+    // published versions, the oldest first, some of which may be closed already
+    private final Deque<PartitionVersion> versions = new ConcurrentLinkedDeque<>();
+    private volatile long lastPublish = 0;
+    // compaction of the store handed over by the scheduler, run by the next publish right after its commit
+    private final AtomicReference<Runnable> compaction = new AtomicReference<>();
+    // whether the counts and indexes have to be rebuilt from the nodes
+    private boolean rebuild = false;
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong commitNanos = new AtomicLong();
+    private final AtomicLong reclaimed = new AtomicLong();
+    private long sampledEvents = 0;
+    private long sampledAt = System.currentTimeMillis();
+
+    /**
+     * @param config options of the store profile and publishInterval, the milliseconds between two
+     *               published versions, 0 to publish every synced batch of change logs
+     */
+    NodePartition(String name, Set<String> prefixes, File file, JsonObject config) {
+        this.name = name;
+        this.prefixes = ImmutableSet.copyOf(prefixes);
+        this.file = file;
+        this.profile = StoreProfile.of(StorageEngine.MEMORY.equals(config.getString("engine"))
+                ? config.copy().putString("storage", "memory").putString("mmap", "none").putBoolean("transactions", true)
+                : config);
+        this.publishInterval = config.getLong("publishInterval", 0);
+        this.db = createDb();
+        this.nodes = StorageEngine.of(config, db, profile, file);
+        if (LegacyNodeLayout.exists(db)) {
+            LegacyNodeLayout.migrate(db, nodes);
+            this.rebuild = true;
+        }
+        this.engineCommits = nodes.isPersistent() && !(nodes instanceof MapDbEngine) ? (db.exists(ENGINE_COMMITS)
+                ? db.getAtomicLong(ENGINE_COMMITS) : db.createAtomicLong(ENGINE_COMMITS, -1)) : null;
+        this.rebuild |= !(nodes instanceof MapDbEngine) && (engineCommits == null || engineCommits.get() != nodes.commits());
+        this.tombstones = NodeTombstones.open(db);
+        this.counts = rebuild ? NodeCounts.rebuild(db, nodes, tombstones) : NodeCounts.open(db, nodes, tombstones);
+        this.expiries = NodeExpiries.open(db);
+        this.hotTier = new HotTier(config.getObject("hotTier", new JsonObject()));
+        this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "helium-partition-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (!profile.hasTransactions()) {
+            LOGGER.warn("Store profile {} of partition {} has no transactions, reads see change logs which are being applied",
+                    profile.name(), name);
+        }
+        CompactionScheduler.get().register(name.equals(DEFAULT) ? "nodes" : "nodes." + name, db, compaction::set);
+    }
+
+    /**
+     * Opens the indexes, which need the partition holding the rules to be open
+     */
+    void openIndexes(Supplier<StorageEngine> rules, Runnable rulesChanged) {
+        this.indexes = rebuild ? SecondaryIndexes.rebuild(db, nodes, rules, rulesChanged)
+                : SecondaryIndexes.open(db, nodes, rules, rulesChanged);
+        db.commit();
+    }
+
+    /**
+     * Reads the entries of the subtree under key once, so its first reader finds them cached
+     */
+    void warm(String key) {
+        long start = System.currentTimeMillis();
+        int entries = 0;
+        Iterator<Map.Entry<String, Object>> range = nodes.range(key, NodeKey.subTreeEnd(key));
+        while (range.hasNext()) {
+            range.next();
+            entries++;
+        }
+        LOGGER.debug("Read {} entries under {} of partition {} in {}ms", entries, key, name,
+                System.currentTimeMillis() - start);
+    }
+
+    long seedVersion() {
+        return db.exists(SEED_VERSION) ? db.getAtomicLong(SEED_VERSION).get() : 0;
+    }
+
+    /**
+     * Records the version of the seed data, on the writer thread
+     */
+    void seeded(long version) {
+        (db.exists(SEED_VERSION) ? db.getAtomicLong(SEED_VERSION) : db.createAtomicLong(SEED_VERSION, 0)).set(version);
+    }
+
+    private DB createDb() {
+        LOGGER.info("Opening partition {} of the node store {} with profile {}", name, file, profile);
+        if (!profile.isPersistent()) {
+            LOGGER.warn("Store profile {} keeps the nodes in memory only, they are lost on restart", profile.name());
+        }
+        // closed by the shutdown hook of the node store, after the last commit, not by the one of MapDB
+        return profile.maker(file)
+                .snapshotEnable()
+                .make();
+    }
+
+    /**
+     * Replaces the nodes with the ones of source, which must deliver every entry of the partition in
+     * descending key order. The indexes have to be rebuilt afterwards.
+     */
+    synchronized void replaceNodes(Iterator<Map.Entry<String, Object>> source) {
+        hotTier.changing(NodeKey.ROOT);
+        nodes.replace(source);
+        tombstones.clear();
+        this.counts = NodeCounts.rebuild(db, nodes, tombstones);
+    }
+
+    synchronized void rebuildIndexes(Supplier<StorageEngine> rules, Runnable rulesChanged) {
+        this.indexes = SecondaryIndexes.rebuild(db, nodes, rules, rulesChanged);
+        db.commit();
+    }
+
+    /**
+     * @return names of all collections in the store
+     */
+    Set<String> collections() {
+        Set<String> names = Sets.newTreeSet();
+        for (String entry : db.getCatalog().keySet()) {
+            if (entry.endsWith(TYPE)) {
+                names.add(entry.substring(0, entry.length() - TYPE.length()));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Drops the collection named name, on the writer thread
+     */
+    void drop(String name) {
+        db.delete(name);
+    }
+
+    /**
+     * Runs task on the writer thread of the partition, after all tasks submitted before
+     */
+    Future<?> submit(Runnable task) {
+        return writer.submit(task);
+    }
+
+    <T> Future<T> submit(Callable<T> task) {
+        return writer.submit(task);
+    }
+
+    /**
+     * Removes up to limit entries hidden by tombstones from the store, on the writer thread. They are
+     * gone from disk with the next commit.
+     *
+     * @return number of entries removed
+     */
+    int reclaim(int limit) {
+        int count = tombstones.reclaim(nodes, limit);
+        reclaimed.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * @return whether a new version should be published after the next batch of change logs
+     */
+    boolean publishDue() {
+        return publishInterval <= 0 || System.currentTimeMillis() - lastPublish >= publishInterval;
+    }
+
+    /**
+     * Commits the store and makes it the version read from now on. The previous version is closed
+     * once its last reader is done with it. A compaction handed over by the {@link CompactionScheduler}
+     * runs right after the commit, on the writer thread.
+     *
+     * @param rules current version of the partition holding the rules, retained by the new version,
+     *              null if that is this partition
+     */
+    synchronized void publish(long sequence, PartitionVersion rules) {
+        long start = System.nanoTime();
+        commit();
+        commitNanos.addAndGet(System.nanoTime() - start);
+        commits.incrementAndGet();
+        Runnable compact = compaction.getAndSet(null);
+        if (compact != null) {
+            // nothing is written to the store without a commit between here and the next change
+            compact.run();
+        }
+        lastPublish = System.currentTimeMillis();
+        long generation = hotTier.publish();
+        PartitionVersion previous = current;
+        if (profile.hasTransactions()) {
+            // the nodes of the MapDB engine are read from the snapshot of the store
+            current = PartitionVersion.of(this, sequence, generation, snapshot(),
+                    nodes instanceof MapDbEngine ? null : nodes.snapshot(), rules);
+        }
+        else {
+            current = PartitionVersion.live(this, sequence);
+            if (rules != null) {
+                rules.release();
+            }
+        }
+        if (engineCommits != null) {
+            // until the next commit the store may hold writes the nodes lose on a crash, even if
+            // something else commits it in between
+            engineCommits.set(-1);
+        }
+        versions.add(current);
+        if (previous != null) {
+            previous.release();
+        }
+        forgetClosedSnapshots();
+    }
+
+    /**
+     * Commits the nodes before the other collections, a crash in between leaves tombstones of nodes
+     * which are gone already rather than nodes without their tombstones
+     */
+    private void commit() {
+        nodes.commit();
+        if (!(nodes instanceof MapDbEngine)) {
+            if (engineCommits != null) {
+                engineCommits.set(nodes.commits());
+            }
+            db.commit();
+        }
+    }
+
+    /**
+     * @return sequence number of the oldest version which is still read from
+     */
+    long oldestSequence() {
+        PartitionVersion oldest = versions.peek();
+        while (oldest != null && oldest.isClosed() && oldest != current) {
+            versions.remove(oldest);
+            oldest = versions.peek();
+        }
+        return oldest != null ? oldest.sequence() : 0;
+    }
+
+    /**
+     * @return the version published last, which has to be released after use
+     */
+    PartitionVersion acquire() {
+        while (true) {
+            PartitionVersion version = current;
+            // retaining fails if the version was replaced and closed in between
+            if (version.retain()) {
+                return version;
+            }
+        }
+    }
+
+    /**
+     * @return read only view of the store as of the last commit, which has to be closed after use
+     */
+    DB snapshot() {
+        return MapDbEngine.snapshot(db);
+    }
+
+    /**
+     * MapDB keeps a cleared reference to every closed snapshot and walks all of them on every write, so
+     * they are dropped here, while the engine is locked for a commit
+     */
+    private void forgetClosedSnapshots() {
+        if (!profile.hasTransactions()) {
+            return;
+        }
+        TxEngine engine = MapDbEngine.txEngine(db);
+        Lock lock = read(engine, COMMIT_LOCK, ReadWriteLock.class).writeLock();
+        lock.lock();
+        try {
+            snapshotReferences(engine).removeIf(reference -> reference.get() == null);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of snapshots MapDB writes the old values of records to on a commit, including closed
+     * ones it didn't drop yet
+     */
+    int snapshots() {
+        return profile.hasTransactions() ? snapshotReferences(MapDbEngine.txEngine(db)).size() : 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<Reference<?>> snapshotReferences(TxEngine engine) {
+        return read(engine, TX_REFERENCES, Set.class);
+    }
+
+    private static <T> T read(TxEngine engine, Field field, Class<T> type) {
+        try {
+            return type.cast(field.get(engine));
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalStateException("Can't read " + field + " of MapDB", e);
+        }
+    }
+
+    /**
+     * Fails loading the class rather than leaking snapshots if a MapDB version renamed the fields
+     */
+    private static Field txEngineField(String name) {
+        try {
+            Field field = TxEngine.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        }
+        catch (NoSuchFieldException e) {
+            throw new IllegalStateException("TxEngine of this MapDB version has no field " + name
+                    + ", closed snapshots can't be dropped", e);
+        }
+    }
+
+    /**
+     * count change events were applied to the partition
+     */
+    void applied(int count) {
+        events.addAndGet(count);
+    }
+
+    void close() {
+        writer.shutdown();
+        if (!db.isClosed()) {
+            commit();
+            nodes.close();
+            db.close();
+        }
+    }
+
+    String name() {
+        return name;
+    }
+
+    Set<String> prefixes() {
+        return prefixes;
+    }
+
+    @Override
+    public StorageEngine nodes() {
+        return nodes;
+    }
+
+    @Override
+    public NodeCounts counts() {
+        return counts;
+    }
+
+    @Override
+    public SecondaryIndexes indexes() {
+        return indexes;
+    }
+
+    @Override
+    public NodeExpiries expiries() {
+        return expiries;
+    }
+
+    @Override
+    public NodeTombstones tombstones() {
+        return tombstones;
+    }
+
+    @Override
+    public HotTier hotTier() {
+        return hotTier;
+    }
+
+    @Override
+    public long generation() {
+        return HotTier.LIVE;
+    }
+
+    /**
+     * @return throughput of the partition, the rate of change events since the last call
+     */
+    synchronized JsonObject status() {
+        long now = System.currentTimeMillis();
+        long applied = events.get();
+        double perSecond = (applied - sampledEvents) * 1000d / Math.max(1, now - sampledAt);
+        sampledEvents = applied;
+        sampledAt = now;
+        long commitCount = commits.get();
+        return new JsonObject()
+                .putString("name", name)
+                .putArray("prefixes", new JsonArray(prefixes.toArray()))
+                .putString("file", file.getPath())
+                .putString("profile", profile.name())
+                .putString("engine", engine())
+                .putNumber("publishInterval", publishInterval)
+                .putNumber("events", applied)
+                .putNumber("eventsPerSecond", perSecond)
+                .putNumber("commits", commitCount)
+                .putNumber("averageCommitMillis", commitCount == 0 ? 0 : commitNanos.get() / 1e6 / commitCount)
+                .putNumber("pendingWrites", writer.getQueue().size())
+                .putNumber("sequence", current != null ? current.sequence() : 0)
+                .putNumber("nodes", counts.descendants(NodeKey.ROOT))
+                .putNumber("expiring", expiries.size())
+                .putNumber("tombstones", tombstones.size())
+                .putNumber("reclaimed", reclaimed.get())
+                .putObject("hotTier", hotTier.status());
+    }
+
+    private String engine() {
+        if (nodes instanceof MapDbEngine) {
+            return StorageEngine.MAPDB;
+        }
+        return nodes instanceof LogEngine ? StorageEngine.LOG : StorageEngine.MEMORY;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
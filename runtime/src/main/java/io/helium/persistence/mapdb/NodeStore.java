@@ -0,0 +1,61 @@
+package io.helium.persistence.mapdb;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ *
+ * Collections of one partition of the tree, either live or as of a published version
+ */
+interface NodeStore {
+    /**
+     * @return the storage engine holding the nodes of the partition, keyed by {@link NodeKey}
+     */
+    StorageEngine nodes();
+
+    NodeCounts counts();
+
+    SecondaryIndexes indexes();
+
+    NodeExpiries expiries();
+
+    NodeTombstones tombstones();
+
+    HotTier hotTier();
+
+    /**
+     * @return generation of the version read, {@link HotTier#LIVE} for the live store
+     */
+    long generation();
+
+    /**
+     * @return value stored under key, from the hot tier if it holds the subtree of key, which never holds
+     * entries hidden by a tombstone
+     */
+    default Object get(String key) {
+        HotTier.Subtree subtree = hotTier().subtree(key, this);
+        if (subtree != null) {
+            return subtree.get(key);
+        }
+        return tombstones().hides(key) ? null : nodes().get(key);
+    }
+
+    default boolean containsKey(String key) {
+        HotTier.Subtree subtree = hotTier().subtree(key, this);
+        if (subtree != null) {
+            return subtree.containsKey(key);
+        }
+        return !tombstones().hides(key) && nodes().containsKey(key);
+    }
+
+    /**
+     * @return entries below key in key order, from the hot tier if it holds the subtree of key
+     */
+    default Iterator<Map.Entry<String, Object>> subTree(String key) {
+        HotTier.Subtree subtree = hotTier().subtree(key, this);
+        if (subtree != null) {
+            return subtree.subTree(key);
+        }
+        return tombstones().visible(nodes().range(NodeKey.subTreeStart(key), NodeKey.subTreeEnd(key)));
+    }
+}
@@ -0,0 +1,73 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * The partitions the tree is stored in. Every node but the root belongs to exactly one partition
+ * together with all of its descendants, the children of the root are spread over all of them.
+ */
+interface NodeStores {
+    /**
+     * @return the partition holding key, the default partition for the root
+     */
+    NodeStore store(String key);
+
+    /**
+     * @return the partitions holding the descendants of key, all of them for the root
+     */
+    List<? extends NodeStore> stores(String key);
+
+    /**
+     * @return handle of the node stored under key
+     */
+    Node node(String key);
+
+    /**
+     * @return writes accepted but not published yet, which are merged into the reads
+     */
+    PendingWrites pendingWrites();
+
+    /**
+     * @return sequence number of the last change log whose pending writes are merged into the reads
+     */
+    long accepted();
+
+    /**
+     * @return value stored under key, or written by a pending write
+     */
+    default Object get(String key) {
+        PendingWrites.Pending pending = pendingWrites().find(key, accepted());
+        return pending != null ? pending.value() : store(key).get(key);
+    }
+
+    default boolean containsKey(String key) {
+        PendingWrites.Pending pending = pendingWrites().find(key, accepted());
+        return pending != null ? pending.value() != null : store(key).containsKey(key);
+    }
+
+    /**
+     * @return entries below key in key order, merged from all partitions holding some of them and the
+     * pending writes
+     */
+    default Iterator<Map.Entry<String, Object>> subTree(String key) {
+        return pendingWrites().subTree(key, storedSubTree(key), accepted());
+    }
+
+    /**
+     * @return entries below key in key order, merged from all partitions holding some of them
+     */
+    default Iterator<Map.Entry<String, Object>> storedSubTree(String key) {
+        List<? extends NodeStore> stores = stores(key);
+        List<Iterator<Map.Entry<String, Object>>> entries = Lists.newArrayListWithCapacity(stores.size());
+        for (NodeStore store : stores) {
+            entries.add(store.subTree(key));
+        }
+        return entries.size() == 1 ? entries.get(0) : Iterators.mergeSorted(entries, Map.Entry.<String, Object>comparingByKey());
+    }
+}
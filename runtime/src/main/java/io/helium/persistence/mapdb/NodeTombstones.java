@@ -0,0 +1,150 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.AbstractIterator;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.DB;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+
+/**
+ *
+ * Keys of the nodes which were deleted or replaced by a plain value while their descendants are still
+ * stored, stored next to the node store. The descendants of a tombstone are hidden from every read and
+ * removed from the store in batches in the background, so deleting a large subtree costs a single write.
+ * Writing below a tombstone reclaims its descendants right away, before the new nodes are stored.
+ */
+final class NodeTombstones {
+    static final String COLLECTION = "tree.tombstones";
+
+    private final NavigableSet<String> tombstones;
+    private volatile int size;
+
+    private NodeTombstones(NavigableSet<String> tombstones) {
+        this.tombstones = tombstones;
+        this.size = tombstones.size();
+    }
+
+    static NodeTombstones open(DB db) {
+        if (db.exists(COLLECTION)) {
+            return new NodeTombstones(db.getTreeSet(COLLECTION));
+        }
+        return new NodeTombstones(db.createTreeSet(COLLECTION).serializer(BTreeKeySerializer.STRING).make());
+    }
+
+    /**
+     * @return read only tombstones of snapshot
+     */
+    static NodeTombstones view(DB snapshot) {
+        return new NodeTombstones(snapshot.getTreeSet(COLLECTION));
+    }
+
+    /**
+     * The descendants of key are removed in the background
+     */
+    void add(String key) {
+        if (tombstones.add(key)) {
+            size++;
+        }
+    }
+
+    /**
+     * @return whether an ancestor of key is a tombstone, so key is not part of the tree anymore
+     */
+    boolean hides(String key) {
+        if (size == 0) {
+            return false;
+        }
+        for (String ancestor = NodeKey.parent(key); !ancestor.isEmpty(); ancestor = NodeKey.parent(ancestor)) {
+            if (tombstones.contains(ancestor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the entries of ordered entries which no tombstone hides, siblings share one lookup
+     */
+    Iterator<Map.Entry<String, Object>> visible(Iterator<Map.Entry<String, Object>> entries) {
+        if (size == 0) {
+            return entries;
+        }
+        return new AbstractIterator<Map.Entry<String, Object>>() {
+            private String parent = null;
+            private boolean hidden = false;
+
+            @Override
+            protected Map.Entry<String, Object> computeNext() {
+                while (entries.hasNext()) {
+                    Map.Entry<String, Object> entry = entries.next();
+                    String entryParent = NodeKey.parent(entry.getKey());
+                    if (!entryParent.equals(parent)) {
+                        parent = entryParent;
+                        hidden = contains(entryParent) || hides(entryParent);
+                    }
+                    if (!hidden) {
+                        return entry;
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * Removes the descendants of the ancestors of key which are tombstones from nodes, before key is
+     * written to
+     */
+    void reclaimAbove(StorageEngine nodes, String key) {
+        if (size == 0) {
+            return;
+        }
+        for (String ancestor = NodeKey.parent(key); !ancestor.isEmpty(); ancestor = NodeKey.parent(ancestor)) {
+            if (tombstones.contains(ancestor)) {
+                reclaim(nodes, ancestor, Integer.MAX_VALUE);
+            }
+        }
+    }
+
+    /**
+     * Removes up to limit entries hidden by tombstones from nodes, the first tombstones first
+     *
+     * @return number of entries removed
+     */
+    int reclaim(StorageEngine nodes, int limit) {
+        int reclaimed = 0;
+        while (reclaimed < limit && size > 0) {
+            reclaimed += reclaim(nodes, tombstones.first(), limit - reclaimed);
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Removes up to limit descendants of tombstone from nodes, and the tombstone once all of them are gone
+     */
+    private int reclaim(StorageEngine nodes, String tombstone, int limit) {
+        int reclaimed = nodes.removeRange(NodeKey.subTreeStart(tombstone), NodeKey.subTreeEnd(tombstone), limit);
+        if (reclaimed < limit && tombstones.remove(tombstone)) {
+            size--;
+        }
+        return reclaimed;
+    }
+
+    /**
+     * The nodes were replaced, nothing is hidden anymore
+     */
+    void clear() {
+        tombstones.clear();
+        size = 0;
+    }
+
+    boolean contains(String key) {
+        return size > 0 && tombstones.contains(key);
+    }
+
+    int size() {
+        return size;
+    }
+}
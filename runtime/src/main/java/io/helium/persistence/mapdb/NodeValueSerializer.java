@@ -0,0 +1,267 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Serializer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * Type tagged serializer of the values of the node store. Every value starts with a one byte tag,
+ * small non-negative integers and the length of short strings are packed into the tag itself. Other
+ * integral numbers are written as varints, doubles with a fractional part as 4 byte float if that is
+ * lossless. Object nodes only consist of their tag, because their children are stored under their own
+ * keys. Arrays are written element by element, objects nested in arrays field by field. Values of any
+ * other type fall back to Java serialization.
+ */
+public class NodeValueSerializer implements Serializer<Object>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final NodeValueSerializer INSTANCE = new NodeValueSerializer();
+
+    private static final int NULL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int OBJECT = 3;
+    private static final int POSITIVE = 4;
+    private static final int NEGATIVE = 5;
+    private static final int INTEGRAL_DOUBLE = 6;
+    private static final int FLOAT = 7;
+    private static final int DOUBLE = 8;
+    private static final int STRING = 9;
+    private static final int SERIALIZED = 10;
+    private static final int ARRAY = 11;
+    private static final int MAP = 12;
+
+    /**
+     * 0b01xxxxxx: string of up to 63 UTF-8 bytes
+     */
+    private static final int SHORT_STRING = 0x40;
+    private static final int MAX_SHORT_STRING = 0x3F;
+
+    /**
+     * 0b1xxxxxxx: integer between 0 and 127
+     */
+    private static final int SMALL_INT = 0x80;
+    private static final int MAX_SMALL_INT = 0x7F;
+
+    /**
+     * Doubles up to 2^53 are integral and exact, when they have no fractional part
+     */
+    private static final double MAX_INTEGRAL_DOUBLE = 9007199254740992d;
+
+    @Override
+    public void serialize(DataOutput out, Object value) throws IOException {
+        if (value instanceof JsonArray) {
+            writeArray(out, ((JsonArray) value).toList());
+        }
+        else if (value instanceof List) {
+            writeArray(out, (List<?>) value);
+        }
+        else if (value instanceof JsonObject) {
+            writeMap(out, ((JsonObject) value).toMap());
+        }
+        else if (value instanceof Map) {
+            writeMap(out, (Map<?, ?>) value);
+        }
+        else if (value == null) {
+            out.writeByte(NULL);
+        }
+        else if (Node.isObject(value)) {
+            out.writeByte(OBJECT);
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        }
+        else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            writeLong(out, ((Number) value).longValue());
+        }
+        else if (value instanceof Double || value instanceof Float) {
+            writeDouble(out, ((Number) value).doubleValue());
+        }
+        else if (value instanceof String) {
+            byte[] bytes = ((String) value).getBytes(Charsets.UTF_8);
+            if (bytes.length <= MAX_SHORT_STRING) {
+                out.writeByte(SHORT_STRING | bytes.length);
+            }
+            else {
+                out.writeByte(STRING);
+                DataOutput2.packInt(out, bytes.length);
+            }
+            out.write(bytes);
+        }
+        else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream stream = new ObjectOutputStream(bytes)) {
+                stream.writeObject(value);
+            }
+            out.writeByte(SERIALIZED);
+            DataOutput2.packInt(out, bytes.size());
+            out.write(bytes.toByteArray());
+        }
+    }
+
+    private void writeArray(DataOutput out, List<?> elements) throws IOException {
+        out.writeByte(ARRAY);
+        DataOutput2.packInt(out, elements.size());
+        for (Object element : elements) {
+            serialize(out, element);
+        }
+    }
+
+    private void writeMap(DataOutput out, Map<?, ?> fields) throws IOException {
+        out.writeByte(MAP);
+        DataOutput2.packInt(out, fields.size());
+        for (Map.Entry<?, ?> field : fields.entrySet()) {
+            byte[] name = String.valueOf(field.getKey()).getBytes(Charsets.UTF_8);
+            DataOutput2.packInt(out, name.length);
+            out.write(name);
+            serialize(out, field.getValue());
+        }
+    }
+
+    private void writeLong(DataOutput out, long value) throws IOException {
+        if (value >= 0 && value <= MAX_SMALL_INT) {
+            out.writeByte(SMALL_INT | (int) value);
+        }
+        else if (value >= 0) {
+            out.writeByte(POSITIVE);
+            DataOutput2.packLong(out, value);
+        }
+        else {
+            // -(value + 1) can't overflow for Long.MIN_VALUE
+            out.writeByte(NEGATIVE);
+            DataOutput2.packLong(out, -(value + 1));
+        }
+    }
+
+    private void writeDouble(DataOutput out, double value) throws IOException {
+        if (value == Math.rint(value) && Math.abs(value) <= MAX_INTEGRAL_DOUBLE
+                && Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(-0d)) {
+            long integral = (long) value;
+            out.writeByte(INTEGRAL_DOUBLE);
+            DataOutput2.packLong(out, (integral << 1) ^ (integral >> 63));
+        }
+        else if ((float) value == value || Double.isNaN(value)) {
+            out.writeByte(FLOAT);
+            out.writeFloat((float) value);
+        }
+        else {
+            out.writeByte(DOUBLE);
+            out.writeDouble(value);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object deserialize(DataInput in, int available) throws IOException {
+        Object value = read(in);
+        // nested arrays and objects are kept as plain lists and maps, like JsonArray and JsonObject do
+        if (value instanceof List) {
+            return new JsonArray((List<Object>) value);
+        }
+        if (value instanceof Map) {
+            return new JsonObject((Map<String, Object>) value);
+        }
+        return value;
+    }
+
+    private Object read(DataInput in) throws IOException {
+        int tag = in.readUnsignedByte();
+        if ((tag & SMALL_INT) != 0) {
+            return tag & MAX_SMALL_INT;
+        }
+        if ((tag & SHORT_STRING) != 0) {
+            return readString(in, tag & MAX_SHORT_STRING);
+        }
+        switch (tag) {
+            case NULL:
+                return null;
+            case FALSE:
+                return Boolean.FALSE;
+            case TRUE:
+                return Boolean.TRUE;
+            case OBJECT:
+                return Node.OBJECT;
+            case POSITIVE:
+                return number(DataInput2.unpackLong(in));
+            case NEGATIVE:
+                return number(-DataInput2.unpackLong(in) - 1);
+            case INTEGRAL_DOUBLE:
+                long zigzag = DataInput2.unpackLong(in);
+                return (double) ((zigzag >>> 1) ^ -(zigzag & 1));
+            case FLOAT:
+                return (double) in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case STRING:
+                return readString(in, DataInput2.unpackInt(in));
+            case SERIALIZED:
+                byte[] serialized = new byte[DataInput2.unpackInt(in)];
+                in.readFully(serialized);
+                try (ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+                    return stream.readObject();
+                }
+                catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+            case ARRAY:
+                int size = DataInput2.unpackInt(in);
+                List<Object> elements = Lists.newArrayListWithCapacity(size);
+                for (int i = 0; i < size; i++) {
+                    elements.add(read(in));
+                }
+                return elements;
+            case MAP:
+                int count = DataInput2.unpackInt(in);
+                Map<String, Object> fields = Maps.newLinkedHashMap();
+                for (int i = 0; i < count; i++) {
+                    String name = readString(in, DataInput2.unpackInt(in));
+                    fields.put(name, read(in));
+                }
+                return fields;
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    /**
+     * @return the number as Integer if it fits, like the JSON parser does
+     */
+    private static Object number(long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return (int) value;
+        }
+        return value;
+    }
+
+    private static String readString(DataInput in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    @Override
+    public int fixedSize() {
+        return -1;
+    }
+
+    private Object readResolve() {
+        return INSTANCE;
+    }
+}
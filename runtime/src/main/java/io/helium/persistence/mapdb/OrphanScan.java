@@ -0,0 +1,128 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * Finds what earlier versions left behind in a store: collections of the legacy node layout which the
+ * migration didn't reach because their node was deleted before, and nodes whose parent is not an object
+ * node, which no read can reach. The nodes are found in one pass over the published version of every
+ * partition, so writes go on meanwhile.
+ *
+ * Reclaiming drops the collections and puts a tombstone on the parents of the unreachable nodes, which
+ * are then removed in the background like deleted subtrees, see {@link NodeTombstones}.
+ */
+final class OrphanScan {
+    private static final Logger LOGGER = LoggerFactory.getLogger(OrphanScan.class);
+
+    // unreachable subtrees listed per partition
+    private static final int LISTED = 100;
+
+    private OrphanScan() {
+    }
+
+    /**
+     * @param reclaim whether to reclaim what was found, the partitions written to have to be published
+     * @return what was found in every partition
+     */
+    static JsonObject run(MapDbService service, boolean reclaim) {
+        long start = System.currentTimeMillis();
+        JsonArray partitions = new JsonArray();
+        for (NodePartition partition : service.partitions()) {
+            partitions.addObject(scan(partition, reclaim));
+        }
+        LOGGER.info("Scanned the node store for orphans in {}ms", System.currentTimeMillis() - start);
+        return new JsonObject().putBoolean("reclaim", reclaim).putArray("partitions", partitions);
+    }
+
+    private static JsonObject scan(NodePartition partition, boolean reclaim) {
+        List<String> collections = Lists.newArrayList();
+        for (String name : Futures.getUnchecked(partition.submit(partition::collections))) {
+            if (LegacyNodeLayout.isLegacy(name)) {
+                collections.add(name);
+            }
+        }
+        List<String> parents = Lists.newArrayList();
+        long orphans;
+        PartitionVersion version = partition.acquire();
+        try {
+            orphans = unreachable(version, parents);
+        }
+        finally {
+            version.release();
+        }
+        if (reclaim) {
+            Futures.getUnchecked(partition.submit(() -> {
+                collections.forEach(partition::drop);
+                parents.forEach(parent -> bury(partition, parent));
+            }));
+            LOGGER.info("Dropped {} legacy collections and {} unreachable subtrees of partition {}", collections.size(),
+                    parents.size(), partition);
+        }
+        JsonArray listed = new JsonArray();
+        parents.stream().limit(LISTED).forEach(parent -> listed.addString(NodeKey.toPath(parent).toString()));
+        return new JsonObject()
+                .putString("name", partition.name())
+                .putArray("collections", new JsonArray(collections.toArray()))
+                .putNumber("unreachable", orphans)
+                .putNumber("unreachableSubtrees", parents.size())
+                .putArray("parents", listed)
+                .putNumber("tombstones", partition.tombstones().size());
+    }
+
+    /**
+     * Walks all nodes of version in key order, where a parent comes right before its descendants, with
+     * the object nodes on the way to the current one on a stack
+     *
+     * @param parents receives the keys of the missing or plain value parents of the unreachable nodes
+     * @return number of unreachable nodes
+     */
+    private static long unreachable(PartitionVersion version, List<String> parents) {
+        long orphans = 0;
+        Deque<String> objects = Lists.newLinkedList();
+        String orphaned = null;
+        Iterator<Map.Entry<String, Object>> entries = version.tombstones().visible(version.nodes().range(null, null));
+        while (entries.hasNext()) {
+            Map.Entry<String, Object> entry = entries.next();
+            String key = entry.getKey();
+            if (orphaned != null && key.startsWith(NodeKey.subTreeStart(orphaned))) {
+                orphans++;
+                continue;
+            }
+            String parent = NodeKey.parent(key);
+            while (!objects.isEmpty() && !parent.equals(objects.peek()) && !parent.startsWith(NodeKey.subTreeStart(objects.peek()))) {
+                objects.pop();
+            }
+            if (!parent.isEmpty() && !parent.equals(objects.peek())) {
+                orphaned = parent;
+                parents.add(parent);
+                orphans++;
+                continue;
+            }
+            if (Node.isObject(entry.getValue())) {
+                objects.push(key);
+            }
+        }
+        return orphans;
+    }
+
+    /**
+     * Puts a tombstone on parent, unless a write made it an object node since the scan
+     */
+    private static void bury(NodePartition partition, String parent) {
+        if (!Node.isObject(partition.nodes().get(parent)) && !partition.tombstones().hides(parent)) {
+            partition.hotTier().changing(parent);
+            partition.tombstones().add(parent);
+        }
+    }
+}
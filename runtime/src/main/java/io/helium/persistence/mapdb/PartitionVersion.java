@@ -0,0 +1,151 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import org.mapdb.DB;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * Published version of one partition, read from a snapshot of its store, and of its storage engine
+ * unless that keeps the nodes in the store. The snapshots are closed when the partition published a
+ * newer version and the last reader is done with this one.
+ */
+final class PartitionVersion implements NodeStore {
+    private final NodePartition partition;
+    private final long sequence;
+    // generation of the hot tier the version was published with
+    private final long generation;
+    private final DB snapshot;
+    // snapshot of the storage engine, null if the nodes are read from snapshot
+    private final StorageEngine engine;
+    // version of the partition holding the rules, null if that is this partition
+    private final PartitionVersion rules;
+    // opened with the first read, most versions are replaced before anyone reads them
+    private final Supplier<StorageEngine> nodes;
+    private final Supplier<NodeCounts> counts;
+    private final Supplier<SecondaryIndexes> indexes;
+    private final Supplier<NodeExpiries> expiries;
+    private final Supplier<NodeTombstones> tombstones;
+    // held by the partition while this is its current version, and by every reader
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private PartitionVersion(NodePartition partition, long sequence, long generation, DB snapshot,
+                             StorageEngine engine, PartitionVersion rules) {
+        this.partition = partition;
+        this.sequence = sequence;
+        this.generation = generation;
+        this.snapshot = snapshot;
+        this.engine = engine;
+        this.rules = rules;
+        this.nodes = engine != null ? Suppliers.ofInstance(engine) : Suppliers.memoize(() -> MapDbEngine.view(snapshot));
+        this.counts = Suppliers.memoize(() -> NodeCounts.view(snapshot));
+        this.indexes = Suppliers.memoize(() -> SecondaryIndexes.view(snapshot, nodes.get(),
+                rules != null ? rules::nodes : nodes::get));
+        this.expiries = Suppliers.memoize(() -> NodeExpiries.view(snapshot));
+        this.tombstones = Suppliers.memoize(() -> NodeTombstones.view(snapshot));
+    }
+
+    /**
+     * @param engine snapshot of the storage engine of partition, taken with snapshot and closed with the
+     *               version, null if the engine keeps the nodes in snapshot
+     * @param rules  the current version of the partition holding the rules, retained until this one is
+     *               closed, null if that is partition itself
+     */
+    static PartitionVersion of(NodePartition partition, long sequence, long generation, DB snapshot,
+                               StorageEngine engine, PartitionVersion rules) {
+        return new PartitionVersion(partition, sequence, generation, snapshot, engine, rules);
+    }
+
+    /**
+     * @return version reading the live store, for stores without transactions, which have no snapshots
+     */
+    static PartitionVersion live(NodePartition partition, long sequence) {
+        return new PartitionVersion(partition, sequence, HotTier.LIVE, null, null, null);
+    }
+
+    /**
+     * @return sequence number of the last change log applied to this version
+     */
+    long sequence() {
+        return sequence;
+    }
+
+    boolean isolated() {
+        return snapshot != null;
+    }
+
+    @Override
+    public StorageEngine nodes() {
+        return snapshot != null ? nodes.get() : partition.nodes();
+    }
+
+    @Override
+    public NodeCounts counts() {
+        return snapshot != null ? counts.get() : partition.counts();
+    }
+
+    @Override
+    public SecondaryIndexes indexes() {
+        return snapshot != null ? indexes.get() : partition.indexes();
+    }
+
+    @Override
+    public NodeExpiries expiries() {
+        return snapshot != null ? expiries.get() : partition.expiries();
+    }
+
+    @Override
+    public NodeTombstones tombstones() {
+        return snapshot != null ? tombstones.get() : partition.tombstones();
+    }
+
+    @Override
+    public HotTier hotTier() {
+        return partition.hotTier();
+    }
+
+    @Override
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * @return false if the version was closed already
+     */
+    boolean retain() {
+        while (true) {
+            int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    boolean isClosed() {
+        return references.get() == 0;
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+            if (engine != null) {
+                engine.close();
+            }
+            if (rules != null) {
+                rules.release();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return partition.name() + "@" + sequence;
+    }
+}
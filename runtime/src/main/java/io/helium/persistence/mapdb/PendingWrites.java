@@ -0,0 +1,316 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import io.helium.event.changelog.ChangeLog;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ *
+ * Writes of the change logs which were accepted but are not part of a published version of their
+ * partition yet, merged into every read of the tree, so a client reads its own writes as soon as its
+ * change log is accepted and not only once it was synced and applied.
+ *
+ * Every node touched by the writes keeps its pending states, newest first: the new value, a marker for
+ * an object node or null for a deleted node, and whether the write replaced the whole subtree of the
+ * node, which hides the descendants in the store and the older pending writes to them. A read merges in
+ * the states of the change logs accepted when it started, so it sees every change log whole or not at
+ * all, and a view keeps seeing the change logs accepted when it was acquired. A state is dropped once no
+ * open version of its partition misses it anymore.
+ */
+final class PendingWrites {
+    private static final long NONE = -1;
+
+    private final ConcurrentSkipListMap<String, Pending> writes = new ConcurrentSkipListMap<>();
+    private final MapDbService service;
+    private volatile long accepted;
+    private long order;
+
+    PendingWrites(MapDbService service) {
+        this.service = service;
+    }
+
+    /**
+     * Adds the writes of changeLog, the change log with the given sequence number. Reads see them once
+     * all of them were added.
+     */
+    void accept(ChangeLog changeLog, long sequence) {
+        for (Object event : changeLog) {
+            ChangeBatch.Write write = ChangeBatch.Write.of((JsonObject) event);
+            if (write == null || write.isExpiry() || write.key().isEmpty()) {
+                continue;
+            }
+            if (write.replaces()) {
+                replace(write.key(), write.value(), sequence);
+            }
+            else {
+                merge(write.key(), (JsonObject) write.value(), sequence);
+            }
+        }
+        accepted = sequence;
+    }
+
+    /**
+     * @return sequence number of the last change log whose writes were all added
+     */
+    long accepted() {
+        return accepted;
+    }
+
+    private void replace(String key, Object value, long sequence) {
+        long written = ++order;
+        put(key, value, written, written, sequence);
+        if (value != null) {
+            ensureObject(NodeKey.parent(key), sequence);
+        }
+    }
+
+    private void merge(String key, JsonObject object, long sequence) {
+        ensureObject(key, sequence);
+        for (String name : object.getFieldNames()) {
+            Object value = object.getValue(name);
+            String childKey = NodeKey.child(key, name);
+            if (value instanceof JsonObject) {
+                merge(childKey, (JsonObject) value, sequence);
+            }
+            else {
+                replace(childKey, value, sequence);
+            }
+        }
+    }
+
+    /**
+     * Marks key and its ancestors as object nodes, up to the first which is one already
+     */
+    private void ensureObject(String key, long sequence) {
+        for (String current = key; !current.isEmpty(); current = NodeKey.parent(current)) {
+            Pending pending = find(current, Long.MAX_VALUE);
+            if (pending != null && Node.isObject(pending.value)) {
+                return;
+            }
+            put(current, Node.OBJECT, pending != null ? pending.replaced : NONE, ++order, sequence);
+        }
+    }
+
+    private void put(String key, Object value, long replaced, long written, long sequence) {
+        writes.compute(key, (current, previous) -> new Pending(value, replaced, written, sequence, previous));
+    }
+
+    /**
+     * Drops the states of nodes of partition which are part of every open version of it
+     *
+     * @param sequence number of the last change log applied to the oldest open version of partition
+     */
+    void published(NodePartition partition, long sequence) {
+        for (Map.Entry<String, Pending> write : writes.entrySet()) {
+            Pending pending = write.getValue();
+            if (pending.sequence <= sequence) {
+                if (service.partition(write.getKey()) == partition) {
+                    writes.remove(write.getKey(), pending);
+                }
+            }
+            else if (pending.previous != null && service.partition(write.getKey()) == partition) {
+                while (pending.previous != null && pending.previous.sequence > sequence) {
+                    pending = pending.previous;
+                }
+                pending.previous = null;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return writes.isEmpty();
+    }
+
+    int size() {
+        return writes.size();
+    }
+
+    /**
+     * @return the newest state of pending which is part of the change logs up to accepted, null if none is
+     */
+    private static Pending visible(Pending pending, long accepted) {
+        while (pending != null && pending.sequence > accepted) {
+            pending = pending.previous;
+        }
+        return pending;
+    }
+
+    /**
+     * @return the pending state of key as of the change logs up to accepted, with a null value if it was
+     * deleted with one of its ancestors, null if no pending write touched it
+     */
+    Pending find(String key, long accepted) {
+        if (writes.isEmpty()) {
+            return null;
+        }
+        Pending pending = visible(writes.get(key), accepted);
+        long written = pending != null ? pending.order : NONE;
+        for (String ancestor = key; !ancestor.isEmpty(); ) {
+            ancestor = NodeKey.parent(ancestor);
+            Pending write = visible(writes.get(ancestor), accepted);
+            if (write != null && write.replaced > written) {
+                return Pending.HIDDEN;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * @return order of the last write replacing key or one of its ancestors, NONE if none did
+     */
+    private long replaced(String key, long accepted) {
+        long replaced = NONE;
+        for (String current = key; ; current = NodeKey.parent(current)) {
+            Pending write = visible(writes.get(current), accepted);
+            if (write != null) {
+                replaced = Math.max(replaced, write.replaced);
+            }
+            if (current.isEmpty()) {
+                return replaced;
+            }
+        }
+    }
+
+    /**
+     * @return the states of the nodes below key as of the change logs up to accepted, in key order
+     */
+    private NavigableMap<String, Pending> below(String key, long accepted) {
+        NavigableMap<String, Pending> pending = Maps.newTreeMap();
+        for (Map.Entry<String, Pending> write : writes.subMap(NodeKey.subTreeStart(key), NodeKey.subTreeEnd(key)).entrySet()) {
+            Pending state = visible(write.getValue(), accepted);
+            if (state != null) {
+                pending.put(write.getKey(), state);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * @return entries below key in key order, the stored entries with the pending writes of the change
+     * logs up to accepted merged in
+     */
+    Iterator<Map.Entry<String, Object>> subTree(String key, Iterator<Map.Entry<String, Object>> stored, long accepted) {
+        if (writes.isEmpty()) {
+            return stored;
+        }
+        NavigableMap<String, Pending> pending = below(key, accepted);
+        long replaced = replaced(key, accepted);
+        if (pending.isEmpty() && replaced == NONE) {
+            return stored;
+        }
+        boolean replacing = pending.values().stream().anyMatch(write -> write.replaced != NONE);
+        Iterator<Map.Entry<String, Object>> visible = replaced != NONE ? Collections.<Map.Entry<String, Object>>emptyIterator()
+                : Iterators.filter(stored, entry -> !pending.containsKey(entry.getKey())
+                        && (!replacing || replacedBelow(key, entry.getKey(), pending) == NONE));
+        Iterator<Map.Entry<String, Object>> written = Iterators.transform(
+                Iterators.filter(pending.entrySet().iterator(), entry -> entry.getValue().value != null
+                        && entry.getValue().order > Math.max(replaced, replacedBelow(key, entry.getKey(), pending))),
+                entry -> Maps.immutableEntry(entry.getKey(), entry.getValue().value));
+        return Iterators.mergeSorted(ImmutableList.of(visible, written), Map.Entry.<String, Object>comparingByKey());
+    }
+
+    /**
+     * @return order of the last pending write replacing an ancestor of descendant below key, NONE if none did
+     */
+    private static long replacedBelow(String key, String descendant, NavigableMap<String, Pending> pending) {
+        long replaced = NONE;
+        for (String ancestor = NodeKey.parent(descendant); ancestor.length() > key.length(); ancestor = NodeKey.parent(ancestor)) {
+            Pending write = pending.get(ancestor);
+            if (write != null) {
+                replaced = Math.max(replaced, write.replaced);
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * @return names of the children of key, the stored ones with the pending writes of the change logs up
+     * to accepted merged in
+     */
+    List<String> children(String key, List<String> stored, long accepted) {
+        if (writes.isEmpty()) {
+            return stored;
+        }
+        long replaced = replaced(key, accepted);
+        NavigableMap<String, Pending> pending = below(key, accepted);
+        if (pending.isEmpty() && replaced == NONE) {
+            return stored;
+        }
+        NavigableSet<String> children = replaced != NONE ? Sets.newTreeSet() : Sets.newTreeSet(stored);
+        for (Map.Entry<String, Pending> write : pending.entrySet()) {
+            if (NodeKey.parent(write.getKey()).equals(key)) {
+                if (write.getValue().value != null && write.getValue().order > replaced) {
+                    children.add(NodeKey.name(write.getKey()));
+                }
+                else {
+                    children.remove(NodeKey.name(write.getKey()));
+                }
+            }
+        }
+        return Lists.newArrayList(children);
+    }
+
+    /**
+     * @return names of the children of key below which the change logs up to accepted wrote, null if
+     * they replaced key or one of its ancestors, so none of its stored children is read
+     */
+    Set<String> touched(String key, long accepted) {
+        if (writes.isEmpty()) {
+            return Collections.emptySet();
+        }
+        if (replaced(key, accepted) != NONE) {
+            return null;
+        }
+        Set<String> names = Sets.newHashSet();
+        for (String written : below(key, accepted).keySet()) {
+            names.add(NodeKey.name(NodeKey.childOnPath(key, written)));
+        }
+        return names;
+    }
+
+    /**
+     * Pending state of one node
+     */
+    static final class Pending {
+        static final Pending HIDDEN = new Pending(null, 0, 0, 0, null);
+
+        private final Object value;
+        private final long replaced;
+        private final long order;
+        private final long sequence;
+        private volatile Pending previous;
+
+        /**
+         * @param replaced order of the write which replaced the subtree of the node, NONE if none did
+         * @param order    position of the write among all pending writes
+         * @param previous the state before
+         */
+        private Pending(Object value, long replaced, long order, long sequence, Pending previous) {
+            this.value = value;
+            this.replaced = replaced;
+            this.order = order;
+            this.sequence = sequence;
+            this.previous = previous;
+        }
+
+        /**
+         * @return the value of the node, {@link Node#OBJECT} for an object node, null for a deleted node
+         */
+        Object value() {
+            return value;
+        }
+    }
+}
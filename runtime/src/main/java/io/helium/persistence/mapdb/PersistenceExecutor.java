@@ -1,9 +1,15 @@
 package io.helium.persistence.mapdb;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.io.Resources;
+import io.helium.common.EndpointConstants;
 import io.helium.common.Path;
-import io.helium.event.changelog.*;
+import io.helium.event.changelog.ChangeLog;
+import io.helium.persistence.journal.ChangeLogJournal;
+import io.helium.persistence.mapdb.visitor.ChildDeletedSubTreeVisitor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vertx.java.core.Future;
@@ -12,41 +18,271 @@ import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.platform.Verticle;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
  * Simple persistence Executor (persists change log)
  *
+ * Every change log is appended to the {@link ChangeLogJournal} right away and collected in a
+ * {@link ChangeBatch}. After batchSize change logs or maxWait milliseconds, whatever comes first, the
+ * journal is synced, the batch is applied to the store with writes superseded within the batch dropped,
+ * and the senders get their reply. The store itself is checkpointed every checkpointInterval
+ * milliseconds, after which the journaled change logs are dropped.
+ *
+ * Readers don't see the store while change logs are applied to it. Before the senders of a batch get
+ * their reply the store is committed and published as a new {@link ReadView}, numbered by the change
+ * logs applied so far, so every acknowledged change log is visible to the next read.
+ *
+ * The writes of a batch are applied by the writer threads of the {@link NodePartition}s holding their
+ * nodes, so the partitions are written to in parallel. Partitions with a publishInterval are only
+ * published when it has passed, or with the next checkpoint.
+ *
+ * Accepted change logs, journaled but not yet published, are merged into every read as
+ * {@link PendingWrites}. Senders which only need to read their own writes send to ACCEPT_CHANGE_LOG and
+ * get their reply as soon as the change log is accepted, without waiting for the sync. Once accepted, a
+ * change log is distributed to the listeners, with its sequence number on its delta events, so the
+ * values of their nodes are read as of the change log.
+ *
+ * Every expiryInterval milliseconds the nodes whose TTL passed are deleted, by change logs which are
+ * journaled, applied and distributed like those of clients.
+ *
+ * Deleted subtrees are hidden by a tombstone right away, see {@link NodeTombstones}. Every
+ * reclaimInterval milliseconds up to reclaimBatchSize of their nodes per partition are removed from the
+ * store and the partitions are published, so the space is reused.
+ *
+ * For a store kept in memory, with the memory {@link StorageEngine}, every snapshotInterval milliseconds
+ * a binary snapshot of the whole tree is exported to snapshotFile by the {@link SnapshotExporter}, which
+ * reads a published version while writes go on. On start the snapshot is imported into the empty store.
+ * With snapshotTail the journaled change logs are only dropped once a snapshot holds them, so they are
+ * replayed on top of it after a crash. Without it nothing is journaled and the writes since the last
+ * snapshot are lost on a crash, in exchange for no fsync per batch. Expiry times are not snapshotted.
+ *
+ * The seed data, the classpath resource named seed, is loaded on start into an empty store, or into one
+ * seeded with a version older than seedVersion. Other stores are left as they are.
+ *
  * Created by Christoph Grotz on 20.06.14.
  */
 public class PersistenceExecutor extends Verticle {
     private static final Logger LOGGER = LoggerFactory.getLogger(PersistenceExecutor.class);
 
+    /**
+     * Persists a change log and distributes it to the listeners once it is accepted
+     */
     public static final String PERSIST_CHANGE_LOG = "io.helium.changelog.persist";
 
+    /**
+     * Persists a change log like PERSIST_CHANGE_LOG, but replies once it is accepted, when its writes are
+     * read by everyone but not yet synced
+     */
+    public static final String ACCEPT_CHANGE_LOG = "io.helium.changelog.accept";
+
+    /**
+     * Bulk import, {"file": "...", "path": "/", "format": "json" | "ndjson" | "binary", "runSize": .., "parallelism": ..}
+     */
+    public static final String IMPORT = "io.helium.persistence.import";
+
+    /**
+     * Starts an online export, {"file": "...", "path": "/", "format": "ndjson" | "binary"}
+     */
+    public static final String EXPORT = "io.helium.persistence.export";
+
+    /**
+     * Replies with the progress of the running or last export
+     */
+    public static final String EXPORT_STATUS = "io.helium.persistence.export.status";
+
+    /**
+     * Replies with the throughput of every partition of the node store
+     */
+    public static final String PARTITION_STATUS = "io.helium.persistence.partitions.status";
+
+    /**
+     * Scans the node store for unreachable nodes and leftover legacy collections, {"reclaim": false},
+     * and with reclaim drops them
+     */
+    public static final String ORPHAN_SCAN = "io.helium.persistence.orphans";
+
+    private ChangeLogJournal journal;
+    private int batchSize;
+    private long maxWait;
+    private int expiryBatchSize;
+    private int reclaimBatchSize;
+    private long snapshotInterval;
+    private File snapshotFile;
+    private boolean snapshotTail;
+    // change logs held by the last snapshot written, which are dropped from the journal with the next checkpoint
+    private final AtomicInteger snapshotted = new AtomicInteger();
+    private final List<Message<JsonArray>> unsynced = Lists.newArrayList();
+    // change logs of the senders waiting for the sync
+    private ChangeBatch batch = new ChangeBatch();
+    // partitions changed since they were published last
+    private final Set<NodePartition> unpublished = Sets.newLinkedHashSet();
+    private long syncTimer = -1;
+    private long applied = 0;
+
     @Override
     public void start(Future<Void> startedResult) {
-        vertx.eventBus().registerHandler(PERSIST_CHANGE_LOG, this::applyChangeLog );
-
         try {
-            ClassLoader cl = Thread.currentThread().getContextClassLoader();
-            URL demo = cl.getResource("demo.json");
-            if(demo != null) {
-                String demoData = Resources.toString(demo, Charsets.UTF_8);
-                loadJsonObject(Path.of("/"), new JsonObject(demoData));
+            JsonObject config = container.config();
+            batchSize = config.getInteger("batchSize", 256);
+            maxWait = config.getLong("maxWait", 2);
+            expiryBatchSize = config.getInteger("expiryBatchSize", 1000);
+            reclaimBatchSize = config.getInteger("reclaimBatchSize", 10000);
+            snapshotInterval = config.getLong("snapshotInterval", 0);
+            snapshotFile = new File(config.getString("snapshotFile", "helium/snapshot/nodes" + SnapshotExporter.EXTENSION));
+            snapshotTail = config.getBoolean("snapshotTail", true);
+            journal = new ChangeLogJournal(new File(config.getString("directory", "helium/journal")));
+            journal.open();
+            if (snapshotInterval > 0) {
+                restore();
             }
-            else {
-                throw new IllegalStateException("demo.json not found");
+            // the seed data is the base the journaled change logs were applied to
+            seed(config.getString("seed", "demo.json"), config.getLong("seedVersion", 1));
+            recover();
+
+            vertx.eventBus().registerHandler(PERSIST_CHANGE_LOG, (Message<JsonArray> message) -> applyChangeLog(message, false));
+            vertx.eventBus().registerHandler(ACCEPT_CHANGE_LOG, (Message<JsonArray> message) -> applyChangeLog(message, true));
+            vertx.eventBus().registerHandler(IMPORT, (Message<JsonObject> message) -> bulkImport(message));
+            vertx.eventBus().registerHandler(EXPORT, (Message<JsonObject> message) -> export(message));
+            vertx.eventBus().registerHandler(EXPORT_STATUS,
+                    (Message<JsonObject> message) -> message.reply(SnapshotExporter.get().status()));
+            vertx.eventBus().registerHandler(PARTITION_STATUS,
+                    (Message<JsonObject> message) -> message.reply(MapDbService.get().status()));
+            vertx.eventBus().registerHandler(ORPHAN_SCAN, (Message<JsonObject> message) -> scanOrphans(message));
+            vertx.setPeriodic(config.getLong("checkpointInterval", 1000), event -> checkpoint());
+            vertx.setPeriodic(config.getLong("expiryInterval", 1000), event -> expire());
+            vertx.setPeriodic(config.getLong("reclaimInterval", 1000), event -> reclaim());
+            if (snapshotInterval > 0) {
+                vertx.setPeriodic(snapshotInterval, event -> snapshot(false));
             }
+
             startedResult.complete();
         }
         catch(Exception e){
             LOGGER.error("Error starting PersistenceExecutor",e);
-            startedResult.failed();
+            startedResult.setFailure(e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            if (snapshotInterval > 0) {
+                snapshot(true);
+            }
+            checkpoint();
+            journal.close();
+        }
+        catch (IOException e) {
+            LOGGER.error("Error closing change log journal", e);
+        }
+    }
+
+    /**
+     * Imports the last snapshot into the store, unless the store holds nodes already
+     */
+    private void restore() throws IOException {
+        if (!snapshotFile.exists()) {
+            return;
+        }
+        if (!MapDbService.get().root().keys().isEmpty()) {
+            LOGGER.info("Not restoring snapshot {}, the node store isn't empty", snapshotFile);
+            return;
+        }
+        BulkLoader loader = new BulkLoader(1000000, Runtime.getRuntime().availableProcessors());
+        JsonObject result = loader.load(snapshotFile, Path.of("/"), BulkLoader.Format.BINARY);
+        MapDbService.get().publish(applied);
+        LOGGER.info("Restored {} entries from snapshot {} in {}ms", result.getLong("entries"), snapshotFile,
+                result.getLong("duration"));
+    }
+
+    /**
+     * Checkpoints and exports the published store to snapshotFile in the background, unless an export is
+     * running already
+     *
+     * @param wait whether to wait for a running export and the snapshot to be written
+     */
+    private void snapshot(boolean wait) {
+        try {
+            while (wait && SnapshotExporter.get().isRunning()) {
+                Thread.sleep(10);
+            }
+            if (SnapshotExporter.get().isRunning()) {
+                LOGGER.debug("Skipping snapshot, an export is running");
+                return;
+            }
+            checkpoint();
+            int covered = journal.uncheckpointed();
+            snapshotFile.getAbsoluteFile().getParentFile().mkdirs();
+            CountDownLatch written = new CountDownLatch(1);
+            SnapshotExporter.get().start(snapshotFile, Path.of("/"), BulkLoader.Format.BINARY, success -> {
+                if (success) {
+                    snapshotted.set(covered);
+                }
+                written.countDown();
+            });
+            if (wait) {
+                written.await();
+            }
+        }
+        catch (Exception e) {
+            LOGGER.error("Error taking snapshot", e);
         }
     }
 
+    /**
+     * @return whether change logs are journaled, they aren't for a store in memory without a snapshot tail
+     */
+    private boolean journaled() {
+        return snapshotInterval <= 0 || snapshotTail;
+    }
+
+    private void recover() throws IOException {
+        long start = System.currentTimeMillis();
+        int replayed = journal.replay(changeLog -> {
+            batch.add(changeLog);
+            applied++;
+            if (batch.changeLogs() >= batchSize) {
+                applyBatch();
+            }
+        });
+        if (replayed > 0) {
+            applyBatch();
+            checkpoint();
+            LOGGER.info("Replayed {} change logs from journal in {}ms", replayed, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Loads the seed data from the resource named seed into an empty store, or into a store seeded with
+     * an older version. A store which was seeded before seed versions existed is only marked as seeded.
+     */
+    private void seed(String seed, long version) throws IOException {
+        long seeded = MapDbService.get().seedVersion();
+        if (seed.isEmpty() || seeded >= version) {
+            return;
+        }
+        if (seeded > 0 || MapDbService.get().root().keys().isEmpty()) {
+            URL resource = Thread.currentThread().getContextClassLoader().getResource(seed);
+            if (resource == null) {
+                LOGGER.warn("Seed data {} not found, starting without it", seed);
+                return;
+            }
+            long start = System.currentTimeMillis();
+            loadJsonObject(Path.of("/"), new JsonObject(Resources.toString(resource, Charsets.UTF_8)));
+            LOGGER.info("Loaded version {} of the seed data {} in {}ms", version, seed, System.currentTimeMillis() - start);
+        }
+        MapDbService.get().seeded(version);
+        MapDbService.get().publish(applied);
+    }
+
     private void loadJsonObject(Path path, JsonObject data) {
         for(String key : data.getFieldNames()) {
             Object value = data.getField(key);
@@ -61,59 +297,238 @@ public class PersistenceExecutor extends Verticle {
     }
 
     /**
-     * 1. Compile Changelog
-     * 2. Distribute Changelog
-     * 3. Adapt changes from Changelog
+     * Journals the change log and adds it to the batch applied with the next sync
+     *
+     * @param accepted whether to reply once the change log is accepted instead of after the sync
      */
-    private void applyChangeLog(Message<JsonArray> message) {
+    private void applyChangeLog(Message<JsonArray> message, boolean accepted) {
         try {
-            long start = System.currentTimeMillis();
             ChangeLog changeLog = ChangeLog.of(message.body());
-            changeLog.forEach(obj -> {
-                JsonObject logEvent = (JsonObject) obj;
-                if (logEvent.getString("type").equals(ChildAdded.class.getSimpleName())) {
-                    childAdded(ChildAdded.of(logEvent));
-                }
-                if (logEvent.getString("type").equals(ChildChanged.class.getSimpleName())) {
-                    childChanged(ChildChanged.of(logEvent));
-                }
-                if (logEvent.getString("type").equals(ValueChanged.class.getSimpleName())) {
-                    valueChanged(ValueChanged.of(logEvent));
-                }
-                if (logEvent.getString("type").equals(ChildDeleted.class.getSimpleName())) {
-                    childDeleted(ChildDeleted.of(logEvent));
-                }
-            });
-            MapDbService.get().commit();
-
-            LOGGER.info("Persisting changelog {} took {}ms", message.body(), (System.currentTimeMillis() - start));
-            message.reply();
+            accept(changeLog);
+            vertx.eventBus().publish(EndpointConstants.DISTRIBUTE_CHANGE_LOG, changeLog);
+            if (accepted) {
+                message.reply();
+            }
+            else {
+                unsynced.add(message);
+            }
+            if (unsynced.size() >= batchSize || batch.changeLogs() >= batchSize) {
+                sync();
+            }
+            else if (syncTimer < 0) {
+                syncTimer = vertx.setTimer(maxWait, event -> {
+                    syncTimer = -1;
+                    sync();
+                });
+            }
         }
         catch(Exception e) {
             message.fail(500,e.getMessage());
         }
     }
 
-    private void childAdded(ChildAdded logEvent) {
-        Object value = logEvent.value();
-        Node parent = MapDbService.get().of(logEvent.path());
-        parent.put(logEvent.name(), value);
+    /**
+     * Journals changeLog, adds it to the batch applied with the next sync and merges it into the reads
+     * until it is published. Its delta events are numbered with its sequence number.
+     */
+    private void accept(ChangeLog changeLog) throws IOException {
+        if (journaled()) {
+            journal.append(changeLog);
+        }
+        batch.add(changeLog);
+        applied++;
+        changeLog.sequenced(applied);
+        MapDbService.get().pendingWrites().accept(changeLog, applied);
     }
 
-    private void childChanged(ChildChanged logEvent) {
-        Object value = logEvent.value();
-        Node parent = MapDbService.get().of(logEvent.path());
-        parent.put(logEvent.name(), value);
+    /**
+     * Runs on this worker, so no change log is applied while the store is replaced
+     */
+    private void bulkImport(Message<JsonObject> message) {
+        try {
+            JsonObject request = message.body();
+            File file = new File(request.getString("file"));
+            if (SnapshotExporter.get().isRunning()) {
+                message.fail(409, "Can't import while an export is running");
+                return;
+            }
+            checkpoint();
+            BulkLoader loader = new BulkLoader(request.getInteger("runSize", 1000000),
+                    request.getInteger("parallelism", Runtime.getRuntime().availableProcessors()));
+            JsonObject result = loader.load(file, Path.of(request.getString("path", "/")),
+                    BulkLoader.Format.of(request.getString("format"), file));
+            MapDbService.get().publish(applied);
+            message.reply(result);
+        }
+        catch (Exception e) {
+            LOGGER.error("Bulk import failed", e);
+            message.fail(500, e.getMessage());
+        }
     }
 
-    private void childDeleted(ChildDeleted logEvent) {
-        Node parent = MapDbService.get().of(logEvent.path().parent());
-        parent.delete(logEvent.path().lastElement());
+    /**
+     * The checkpoint commits every applied change log, so the snapshot taken right after it is the
+     * state after the last of them
+     */
+    private void export(Message<JsonObject> message) {
+        try {
+            JsonObject request = message.body();
+            File file = new File(request.getString("file"));
+            checkpoint();
+            message.reply(SnapshotExporter.get().start(file, Path.of(request.getString("path", "/")),
+                    BulkLoader.Format.of(request.getString("format"), file)));
+        }
+        catch (Exception e) {
+            LOGGER.error("Export failed", e);
+            message.fail(500, e.getMessage());
+        }
     }
 
-    private void valueChanged(ValueChanged logEvent) {
-        Node parent = MapDbService.get().of(logEvent.path().parent());
-        Object value = logEvent.value();
-        parent.put(logEvent.name(), value);
+    /**
+     * Makes all appended change logs durable with one fsync, applies them as one batch, publishes them
+     * to readers with one commit per partition and replies to their senders.
+     */
+    private void sync() {
+        if (syncTimer >= 0) {
+            vertx.cancelTimer(syncTimer);
+            syncTimer = -1;
+        }
+        if (unsynced.isEmpty() && batch.isEmpty()) {
+            return;
+        }
+        try {
+            if (journaled()) {
+                journal.sync();
+            }
+            applyBatch();
+            Set<NodePartition> due = ImmutableSet.copyOf(Sets.filter(unpublished, NodePartition::publishDue));
+            if (!due.isEmpty()) {
+                MapDbService.get().publish(due, applied);
+                unpublished.removeAll(due);
+            }
+            unsynced.forEach(message -> message.reply());
+        }
+        catch (Exception e) {
+            LOGGER.error("Error syncing change log journal", e);
+            unsynced.forEach(message -> message.fail(500, e.getMessage()));
+        }
+        unsynced.clear();
+    }
+
+    /**
+     * Deletes the nodes whose TTL passed, up to expiryBatchSize per partition and run, with the change
+     * logs deleting them through the API would have, so listeners see them go. Finding them only reads
+     * the expiry schedules.
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        try {
+            for (NodePartition partition : MapDbService.get().partitions()) {
+                for (String key : partition.expiries().expired(now, expiryBatchSize)) {
+                    ChangeLog changeLog = expiredChangeLog(key);
+                    accept(changeLog);
+                    vertx.eventBus().publish(EndpointConstants.DISTRIBUTE_CHANGE_LOG, changeLog);
+                    expired++;
+                }
+            }
+        }
+        catch (Exception e) {
+            LOGGER.error("Error deleting expired nodes", e);
+        }
+        if (expired > 0) {
+            sync();
+            LOGGER.debug("Deleted {} expired nodes", expired);
+        }
+    }
+
+    /**
+     * Removes the nodes of deleted subtrees from the store, up to reclaimBatchSize per partition and run,
+     * and publishes the partitions, after the change logs applied so far
+     */
+    private void reclaim() {
+        try {
+            Set<NodePartition> reclaimed = MapDbService.get().reclaim(reclaimBatchSize);
+            if (!reclaimed.isEmpty()) {
+                sync();
+                MapDbService.get().publish(reclaimed, applied);
+                unpublished.removeAll(reclaimed);
+            }
+        }
+        catch (Exception e) {
+            LOGGER.error("Error reclaiming deleted nodes", e);
+        }
+    }
+
+    /**
+     * Runs on this worker, the partitions written to are published right away
+     */
+    private void scanOrphans(Message<JsonObject> message) {
+        try {
+            boolean reclaim = message.body() != null && message.body().getBoolean("reclaim", false);
+            JsonObject result = OrphanScan.run(MapDbService.get(), reclaim);
+            if (reclaim) {
+                sync();
+                MapDbService.get().publish(applied);
+                unpublished.clear();
+            }
+            message.reply(result);
+        }
+        catch (Exception e) {
+            LOGGER.error("Orphan scan failed", e);
+            message.fail(500, e.getMessage());
+        }
+    }
+
+    /**
+     * @return change log deleting key, or just its expiry time if the node doesn't exist
+     */
+    private static ChangeLog expiredChangeLog(String key) {
+        Path path = NodeKey.toPath(key);
+        Object value = MapDbService.get().node(NodeKey.parent(key)).get(NodeKey.name(key));
+        ChangeLog changeLog = new ChangeLog(new JsonArray());
+        if (value == null) {
+            changeLog.addExpiryChangedLogEntry(path, 0);
+            return changeLog;
+        }
+        if (value instanceof Node) {
+            ((Node) value).accept(path, new ChildDeletedSubTreeVisitor(changeLog));
+            value = ((Node) value).toJsonObject();
+        }
+        changeLog.addChildDeletedLogEntry(path.parent(), path.lastElement(), value);
+        return changeLog;
+    }
+
+    private void checkpoint() {
+        sync();
+        if (!journal.hasUncheckpointed() && unpublished.isEmpty()) {
+            return;
+        }
+        try {
+            MapDbService.get().publish(unpublished, applied);
+            unpublished.clear();
+            if (snapshotInterval > 0 && snapshotTail) {
+                // the store is in memory, the journal is the tail of the last snapshot
+                journal.checkpointed(snapshotted.getAndSet(0));
+            }
+            else {
+                journal.checkpointed();
+            }
+        }
+        catch (Exception e) {
+            LOGGER.error("Error checkpointing change log journal", e);
+        }
+    }
+
+    /**
+     * Applies the change logs collected so far, in one pass per partition
+     */
+    private void applyBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ChangeBatch applying = batch;
+        batch = new ChangeBatch();
+        unpublished.addAll(applying.apply(MapDbService.get()));
     }
 }
@@ -0,0 +1,113 @@
+package io.helium.persistence.mapdb;
+
+import io.helium.common.Path;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ * Version of the node store as of a change log sequence number, for reads which must not see a change
+ * log half applied. Nodes of a view read its snapshots only and can't be written to. A view never
+ * blocks the writers, the versions of records it still needs are kept by the stores until the last
+ * reader closes it.
+ *
+ * A view holds the version published last by every partition of the tree, each of them consistent in
+ * itself. Partitions publishing less often than every change log may be behind the others. The pending
+ * writes of the change logs accepted when the view was acquired are merged into its reads, later ones
+ * are not.
+ *
+ * try (ReadView view = MapDbService.get().read()) {
+ *     ... view.of(path) ...
+ * }
+ */
+public final class ReadView implements NodeStores, AutoCloseable {
+    private final MapDbService service;
+    private final List<PartitionVersion> versions;
+    private final long accepted;
+
+    /**
+     * @param accepted sequence number of the last change log accepted once versions were acquired, whose
+     *                 pending writes are all merged into the reads of the view
+     */
+    ReadView(MapDbService service, List<PartitionVersion> versions, long accepted) {
+        this.service = service;
+        this.versions = versions;
+        this.accepted = accepted;
+    }
+
+    /**
+     * @return sequence number of the last change log applied to all partitions of this version
+     */
+    public long sequence() {
+        long sequence = Long.MAX_VALUE;
+        for (PartitionVersion version : versions) {
+            sequence = Math.min(sequence, version.sequence());
+        }
+        return sequence;
+    }
+
+    /**
+     * @return sequence number of the newest change log applied to a partition holding the subtree under key
+     */
+    long newest(String key) {
+        long newest = 0;
+        for (PartitionVersion version : key.isEmpty() ? versions
+                : Collections.singletonList(versions.get(service.partitionIndex(key)))) {
+            newest = Math.max(newest, version.sequence());
+        }
+        return newest;
+    }
+
+    public boolean isolated() {
+        return versions.stream().allMatch(PartitionVersion::isolated);
+    }
+
+    public Node root() {
+        return node(NodeKey.ROOT);
+    }
+
+    public Node of(Path path) {
+        return node(NodeKey.of(path));
+    }
+
+    public boolean exists(Path path) {
+        String key = NodeKey.of(path);
+        return key.isEmpty() || Node.isObject(get(key));
+    }
+
+    @Override
+    public Node node(String key) {
+        return new Node(NodeKey.toPath(key), key, this);
+    }
+
+    @Override
+    public NodeStore store(String key) {
+        return versions.get(service.partitionIndex(key));
+    }
+
+    @Override
+    public List<? extends NodeStore> stores(String key) {
+        return key.isEmpty() ? versions : Collections.singletonList(store(key));
+    }
+
+    @Override
+    public PendingWrites pendingWrites() {
+        return service.pendingWrites();
+    }
+
+    @Override
+    public long accepted() {
+        return accepted;
+    }
+
+    @Override
+    public void close() {
+        versions.forEach(PartitionVersion::release);
+    }
+
+    @Override
+    public String toString() {
+        return "ReadView" + versions;
+    }
+}
@@ -0,0 +1,408 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import io.helium.persistence.queries.RangeQuery;
+import org.mapdb.Atomic;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.DB;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vertx.java.core.json.JsonArray;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.SortedSet;
+import java.util.function.Supplier;
+
+/**
+ *
+ * Indexes of the children of nodes by the value of one of their fields, declared in the rules with
+ * ".indexOn": ["status", "priority"] next to ".read" and ".write" of the node. "+" in the path of the
+ * rule matches every child, like it does for the other rules.
+ *
+ * All indexes are entries of one sorted set, kept up to date by every write. An entry is the key of
+ * the indexed node, the field, the value and the name of the child. Values are encoded so that the
+ * entries sort like {@link RangeQuery#compare(Object, Object)}, which turns equality and range
+ * queries into range scans. Entries of a subtree of nodes sort next to each other, so removing a
+ * subtree removes its entries with one range operation.
+ *
+ * Every partition of the tree indexes its own children, from the definitions in the rules of the
+ * partition holding /rules.
+ */
+final class SecondaryIndexes {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SecondaryIndexes.class);
+
+    static final String COLLECTION = "tree.index";
+    static final String INDEX_ON = ".indexOn";
+
+    private static final String DEFINITIONS = "tree.index.definitions";
+    private static final String RULES = NodeKey.child(NodeKey.ROOT, "rules");
+    private static final char FIELD = '\u0001';
+    private static final char END = '\u0002';
+    private static final char FALSE = '2';
+    private static final char TRUE = '3';
+    private static final char NUMBER = '4';
+    private static final char STRING = '5';
+
+    private final StorageEngine nodes;
+    private final Supplier<StorageEngine> rules;
+    private final Runnable rulesChanged;
+    private final NavigableSet<String> entries;
+    private final Atomic.String built;
+    private volatile List<Definition> definitions;
+    private volatile boolean definitionsChanged = false;
+
+    private SecondaryIndexes(StorageEngine nodes, Supplier<StorageEngine> rules,
+                             Runnable rulesChanged, NavigableSet<String> entries, Atomic.String built) {
+        this.nodes = nodes;
+        this.rules = rules;
+        this.rulesChanged = rulesChanged;
+        this.entries = entries;
+        this.built = built;
+        this.definitions = definitions(rules.get());
+    }
+
+    private SecondaryIndexes(DB db, StorageEngine nodes, Supplier<StorageEngine> rules,
+                             Runnable rulesChanged, NavigableSet<String> entries) {
+        this(nodes, rules, rulesChanged, entries,
+                db.exists(DEFINITIONS) ? db.getAtomicString(DEFINITIONS) : db.createAtomicString(DEFINITIONS, ""));
+    }
+
+    /**
+     * Opens the indexes, building them first if the definitions in the rules changed since they were
+     * built
+     *
+     * @param rules nodes of the partition holding the rules
+     * @param rulesChanged called when a write changed the rules, has to call {@link #rulesChanged()}
+     *                     of the indexes of all partitions
+     */
+    static SecondaryIndexes open(DB db, StorageEngine nodes, Supplier<StorageEngine> rules,
+                                 Runnable rulesChanged) {
+        if (!db.exists(COLLECTION)) {
+            return rebuild(db, nodes, rules, rulesChanged);
+        }
+        SecondaryIndexes indexes = new SecondaryIndexes(db, nodes, rules, rulesChanged, db.<String>getTreeSet(COLLECTION));
+        if (!indexes.built.get().equals(Joiner.on('\n').join(indexes.definitions))) {
+            indexes.build();
+        }
+        return indexes;
+    }
+
+    /**
+     * @return read only indexes of snapshot, whose nodes are given. Indexes which weren't built yet
+     * when the snapshot was taken are left out, queries on them scan the children instead.
+     */
+    static SecondaryIndexes view(DB snapshot, StorageEngine nodes, Supplier<StorageEngine> rules) {
+        if (!snapshot.exists(COLLECTION) || !snapshot.exists(DEFINITIONS)) {
+            return new SecondaryIndexes(nodes, rules, () -> {}, Sets.<String>newTreeSet(), null);
+        }
+        SecondaryIndexes indexes = new SecondaryIndexes(nodes, rules, () -> {}, snapshot.<String>getTreeSet(COLLECTION),
+                snapshot.getAtomicString(DEFINITIONS));
+        if (!indexes.built.get().equals(Joiner.on('\n').join(indexes.definitions))) {
+            indexes.definitions = Lists.newArrayList();
+        }
+        return indexes;
+    }
+
+    /**
+     * Builds the indexes declared in the rules of nodes from scratch
+     */
+    static SecondaryIndexes rebuild(DB db, StorageEngine nodes, Supplier<StorageEngine> rules,
+                                    Runnable rulesChanged) {
+        if (db.exists(COLLECTION)) {
+            db.delete(COLLECTION);
+        }
+        NavigableSet<String> entries = db.createTreeSet(COLLECTION)
+                .serializer(BTreeKeySerializer.STRING)
+                .make();
+        SecondaryIndexes indexes = new SecondaryIndexes(db, nodes, rules, rulesChanged, entries);
+        indexes.build();
+        return indexes;
+    }
+
+    /**
+     * @return whether children of the node stored under key are indexed by field
+     */
+    boolean isIndexed(String key, String field) {
+        refresh();
+        return definition(key, field) != null;
+    }
+
+    /**
+     * @return names of the children of the node stored under key within query, which has to be
+     * ordered by an indexed field, in the order of the field values
+     */
+    List<String> keys(String key, RangeQuery query) {
+        refresh();
+        String prefix = key + FIELD + query.orderByChild() + NodeKey.SEPARATOR;
+        String start = query.startAt() != null ? prefix + encode(query.startAt()) : prefix;
+        String end = query.endAt() != null ? prefix + encode(query.endAt()) + FIELD : key + FIELD + query.orderByChild() + FIELD;
+        SortedSet<String> range = entries.subSet(start, true, end, false);
+        Iterator<String> iterator = query.fromEnd() ? ((NavigableSet<String>) range).descendingIterator() : range.iterator();
+        int limit = query.isLimited() ? query.limit() : Integer.MAX_VALUE;
+        List<String> keys = Lists.newArrayList();
+        while (keys.size() < limit && iterator.hasNext()) {
+            String entry = iterator.next();
+            int nameStart = entry.lastIndexOf(NodeKey.SEPARATOR);
+            // string values may contain the separator, which moves them into the range of shorter ones
+            if (query.inRange(decode(entry.substring(prefix.length(), nameStart)))) {
+                keys.add(entry.substring(nameStart + 1));
+            }
+        }
+        return query.fromEnd() ? Lists.reverse(keys) : keys;
+    }
+
+    /**
+     * The value stored under key was replaced, previous and value are null if there was or is none
+     */
+    void changed(String key, Object previous, Object value) {
+        refresh();
+        if (key.startsWith(RULES) && NodeKey.name(key).equals(INDEX_ON)) {
+            rulesChanged.run();
+            refresh();
+        }
+        else if (!definitions.isEmpty() && NodeKey.depth(key) >= 2) {
+            String child = NodeKey.parent(key);
+            String node = NodeKey.parent(child);
+            String field = NodeKey.name(key);
+            if (definition(node, field) != null) {
+                if (RangeQuery.isComparable(previous)) {
+                    entries.remove(entry(node, field, previous, NodeKey.name(child)));
+                }
+                if (RangeQuery.isComparable(value)) {
+                    entries.add(entry(node, field, value, NodeKey.name(child)));
+                }
+            }
+        }
+    }
+
+    /**
+     * The descendants of key are about to be removed. Rules removed with them take effect with the next
+     * access to the indexes.
+     */
+    void removingSubTree(String key) {
+        refresh();
+        if (RULES.startsWith(key) || key.startsWith(RULES)) {
+            rulesChanged.run();
+        }
+        if (definitions.isEmpty()) {
+            return;
+        }
+        entries.subSet(NodeKey.subTreeStart(key), key + END).clear();
+        if (NodeKey.depth(key) >= 1) {
+            String node = NodeKey.parent(key);
+            for (Definition definition : definitions) {
+                if (definition.matches(node)) {
+                    for (String field : definition.fields) {
+                        Object value = nodes.get(NodeKey.child(key, field));
+                        if (RangeQuery.isComparable(value)) {
+                            entries.remove(entry(node, field, value, NodeKey.name(key)));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The rules were written to, the definitions are read again with the next access
+     */
+    void rulesChanged() {
+        definitionsChanged = true;
+    }
+
+    /**
+     * Builds the indexes again if a write changed their definitions
+     */
+    private void refresh() {
+        if (definitionsChanged) {
+            definitionsChanged = false;
+            List<Definition> current = definitions(rules.get());
+            if (!current.equals(definitions)) {
+                definitions = current;
+                build();
+            }
+        }
+    }
+
+    private void build() {
+        long start = System.currentTimeMillis();
+        entries.clear();
+        for (Definition definition : definitions) {
+            for (String node : definition.nodes(nodes)) {
+                for (String child : children(nodes, node)) {
+                    for (String field : definition.fields) {
+                        Object value = nodes.get(NodeKey.child(child, field));
+                        if (RangeQuery.isComparable(value)) {
+                            entries.add(entry(node, field, value, NodeKey.name(child)));
+                        }
+                    }
+                }
+            }
+        }
+        built.set(Joiner.on('\n').join(definitions));
+        if (!definitions.isEmpty()) {
+            LOGGER.info("Built {} indexes in {}ms", definitions, System.currentTimeMillis() - start);
+        }
+    }
+
+    private Definition definition(String node, String field) {
+        for (Definition definition : definitions) {
+            if (definition.fields.contains(field) && definition.matches(node)) {
+                return definition;
+            }
+        }
+        return null;
+    }
+
+    private static String entry(String node, String field, Object value, String name) {
+        return node + FIELD + field + NodeKey.SEPARATOR + encode(value) + NodeKey.SEPARATOR + name;
+    }
+
+    /**
+     * Numbers are written as the hex digits of their bits, flipped so they sort like the numbers
+     */
+    static String encode(Object value) {
+        if (value instanceof Boolean) {
+            return String.valueOf((Boolean) value ? TRUE : FALSE);
+        }
+        if (value instanceof Number) {
+            long bits = Double.doubleToLongBits(((Number) value).doubleValue() + 0.0);
+            bits = bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+            String hex = Long.toHexString(bits);
+            return NUMBER + "0000000000000000".substring(hex.length()) + hex;
+        }
+        return STRING + value.toString();
+    }
+
+    static Object decode(String encoded) {
+        switch (encoded.charAt(0)) {
+            case FALSE:
+                return false;
+            case TRUE:
+                return true;
+            case NUMBER:
+                long bits = Long.parseUnsignedLong(encoded.substring(1), 16);
+                return Double.longBitsToDouble(bits < 0 ? bits ^ Long.MIN_VALUE : ~bits);
+            default:
+                return encoded.substring(1);
+        }
+    }
+
+    /**
+     * @return keys of the object children of the node stored under key
+     */
+    private static List<String> children(StorageEngine nodes, String key) {
+        List<String> children = Lists.newArrayList();
+        String end = NodeKey.subTreeEnd(key);
+        String next = nodes.ceilingKey(NodeKey.subTreeStart(key));
+        while (next != null && next.compareTo(end) < 0) {
+            String child = NodeKey.childOnPath(key, next);
+            if (Node.isObject(nodes.get(child))) {
+                children.add(child);
+            }
+            next = nodes.ceilingKey(NodeKey.subTreeEnd(child));
+        }
+        return children;
+    }
+
+    /**
+     * @return the indexes declared in the rules stored in nodes, the nodes of the partition holding them
+     */
+    private static List<Definition> definitions(StorageEngine nodes) {
+        List<Definition> definitions = Lists.newArrayList();
+        Iterator<Map.Entry<String, Object>> rules = nodes.range(NodeKey.subTreeStart(RULES), NodeKey.subTreeEnd(RULES));
+        while (rules.hasNext()) {
+            Map.Entry<String, Object> rule = rules.next();
+            if (NodeKey.name(rule.getKey()).equals(INDEX_ON)) {
+                List<String> fields = Lists.newArrayList();
+                if (rule.getValue() instanceof JsonArray) {
+                    for (Object field : (JsonArray) rule.getValue()) {
+                        fields.add(field.toString());
+                    }
+                }
+                else if (rule.getValue() instanceof String) {
+                    fields.add((String) rule.getValue());
+                }
+                if (!fields.isEmpty()) {
+                    String pattern = NodeKey.parent(rule.getKey()).substring(RULES.length());
+                    definitions.add(new Definition(pattern, fields));
+                }
+            }
+        }
+        return definitions;
+    }
+
+    /**
+     * Fields to index the children of the nodes matching pattern, a node key in which "+" segments
+     * match any name
+     */
+    private static final class Definition {
+        private final String pattern;
+        private final List<String> segments;
+        private final SortedSet<String> fields;
+
+        private Definition(String pattern, List<String> fields) {
+            this.pattern = pattern;
+            this.segments = pattern.isEmpty() ? Lists.<String>newArrayList()
+                    : Splitter.on(NodeKey.SEPARATOR).splitToList(pattern.substring(1));
+            this.fields = Sets.newTreeSet(fields);
+        }
+
+        private boolean matches(String key) {
+            if (NodeKey.depth(key) != segments.size()) {
+                return false;
+            }
+            int position = 0;
+            for (String segment : segments) {
+                int next = key.indexOf(NodeKey.SEPARATOR, position + 1);
+                String name = key.substring(position + 1, next < 0 ? key.length() : next);
+                if (!segment.equals("+") && !segment.equals(name)) {
+                    return false;
+                }
+                position = next;
+            }
+            return true;
+        }
+
+        /**
+         * @return keys of the existing object nodes matching the pattern
+         */
+        private List<String> nodes(StorageEngine nodes) {
+            List<String> matching = Lists.newArrayList(NodeKey.ROOT);
+            for (String segment : segments) {
+                List<String> next = Lists.newArrayList();
+                for (String key : matching) {
+                    if (segment.equals("+")) {
+                        next.addAll(children(nodes, key));
+                    }
+                    else if (Node.isObject(nodes.get(NodeKey.child(key, segment)))) {
+                        next.add(NodeKey.child(key, segment));
+                    }
+                }
+                matching = next;
+            }
+            return matching;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Definition && toString().equals(obj.toString());
+        }
+
+        @Override
+        public int hashCode() {
+            return toString().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return NodeKey.toPath(pattern) + " " + fields;
+        }
+    }
+}
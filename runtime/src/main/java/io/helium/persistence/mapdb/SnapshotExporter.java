@@ -0,0 +1,252 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import io.helium.common.JsonWriter;
+import io.helium.common.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ *
+ * Exports a consistent point in time view of the node store, while writes go on. The export is started
+ * right after a checkpoint, so the {@link ReadView} it reads contains exactly the change logs applied so
+ * far in every partition. The view is streamed entry by entry on its own thread, so memory stays bounded by the records
+ * written while the export is running, which its snapshots keep the old versions of.
+ *
+ * NDJSON exports consist of one {"path": ..., "value": ...} line per value and empty object, binary
+ * exports of all entries in key order. Paths are relative to the exported path and both formats are
+ * accepted by {@link BulkLoader}. The file only appears under its name once the export is complete.
+ */
+public class SnapshotExporter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotExporter.class);
+
+    /**
+     * Extension of binary snapshots
+     */
+    public static final String EXTENSION = ".snapshot";
+
+    private static final String MAGIC = "helium-snapshot";
+    private static final int VERSION = 1;
+
+    private static Optional<SnapshotExporter> instance = Optional.empty();
+
+    public static synchronized SnapshotExporter get() {
+        instance = Optional.of(instance.orElseGet(SnapshotExporter::new));
+        return instance.get();
+    }
+
+    private volatile Export current;
+
+    private SnapshotExporter() {
+    }
+
+    /**
+     * Takes a view of the store and starts streaming it to file in the background. Has to be called when all
+     * applied change logs are committed.
+     *
+     * @return status of the started export
+     */
+    public JsonObject start(File file, Path path, BulkLoader.Format format) {
+        return start(file, path, format, written -> {});
+    }
+
+    /**
+     * @param done called on the export thread once the export ended, with whether the file was written
+     */
+    synchronized JsonObject start(File file, Path path, BulkLoader.Format format, Consumer<Boolean> done) {
+        if (isRunning()) {
+            throw new IllegalStateException("Export to " + current.file + " is still running");
+        }
+        if (format == BulkLoader.Format.JSON) {
+            format = BulkLoader.Format.NDJSON;
+        }
+        current = new Export(file, NodeKey.of(path), format, MapDbService.get().read(), done);
+        Thread thread = new Thread(current, "helium-export");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return current.status();
+    }
+
+    public boolean isRunning() {
+        return current != null && current.running;
+    }
+
+    /**
+     * @return progress of the running or last export
+     */
+    public JsonObject status() {
+        Export export = current;
+        return export == null ? new JsonObject().putString("state", "none") : export.status();
+    }
+
+    static void readHeader(DataInput in) throws IOException {
+        if (!MAGIC.equals(in.readUTF())) {
+            throw new IOException("Not a helium snapshot");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+    }
+
+    private static class Export implements Runnable {
+        private final File file;
+        private final String key;
+        private final BulkLoader.Format format;
+        private final ReadView view;
+        private final Consumer<Boolean> done;
+        private final long start = System.currentTimeMillis();
+        private volatile boolean running = true;
+        private volatile long entries = 0;
+        private volatile long bytes = 0;
+        private volatile long duration = 0;
+        private volatile String error;
+
+        private Export(File file, String key, BulkLoader.Format format, ReadView view, Consumer<Boolean> done) {
+            this.file = file;
+            this.key = key;
+            this.format = format;
+            this.view = view;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            File partial = new File(file.getPath() + ".part");
+            try (CountingOutputStream out = new CountingOutputStream(partial)) {
+                PeekingIterator<Map.Entry<String, Object>> entries = Iterators.peekingIterator(view.subTree(key));
+                if (format == BulkLoader.Format.BINARY) {
+                    writeBinary(entries, out);
+                } else {
+                    writeLines(entries, out);
+                }
+                out.sync();
+                bytes = out.count;
+            }
+            catch (Exception e) {
+                error = String.valueOf(e.getMessage());
+                LOGGER.error("Export to " + file + " failed", e);
+            }
+            finally {
+                view.close();
+            }
+            if (error == null && !partial.renameTo(file)) {
+                error = "Failed to rename " + partial + " to " + file;
+            }
+            if (error != null) {
+                partial.delete();
+            }
+            duration = System.currentTimeMillis() - start;
+            running = false;
+            LOGGER.info("Exported {} entries to {} ({} bytes) in {}ms", this.entries, file, bytes, duration);
+            done.accept(error == null);
+        }
+
+        private void writeBinary(PeekingIterator<Map.Entry<String, Object>> entries, CountingOutputStream out)
+                throws IOException {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeUTF(MAGIC);
+            data.writeInt(VERSION);
+            while (entries.hasNext()) {
+                Map.Entry<String, Object> entry = entries.next();
+                data.writeBoolean(true);
+                data.writeUTF(entry.getKey().substring(key.length()));
+                NodeValueSerializer.INSTANCE.serialize(data, entry.getValue());
+                progress(out);
+            }
+            data.writeBoolean(false);
+        }
+
+        /**
+         * Objects are implied by the paths of their descendants, only empty objects need a line of their own
+         */
+        private void writeLines(PeekingIterator<Map.Entry<String, Object>> entries, CountingOutputStream out)
+                throws IOException {
+            JsonWriter writer = new JsonWriter();
+            while (entries.hasNext()) {
+                Map.Entry<String, Object> entry = entries.next();
+                boolean object = Node.isObject(entry.getValue());
+                if (object && entries.hasNext()
+                        && entries.peek().getKey().startsWith(NodeKey.subTreeStart(entry.getKey()))) {
+                    continue;
+                }
+                writer.beginObject()
+                        .name("path").value(NodeKey.toPath(entry.getKey().substring(key.length())).toString())
+                        .name("value");
+                if (object) {
+                    writer.beginObject().endObject();
+                } else {
+                    writer.value(entry.getValue());
+                }
+                writer.endObject().writeTo(out);
+                out.write('\n');
+                progress(out);
+            }
+        }
+
+        private void progress(CountingOutputStream out) {
+            entries++;
+            bytes = out.count;
+        }
+
+        private JsonObject status() {
+            long elapsed = running ? System.currentTimeMillis() - start : duration;
+            return new JsonObject()
+                    .putString("state", running ? "running" : error == null ? "done" : "failed")
+                    .putString("file", file.getPath())
+                    .putString("format", format.name().toLowerCase())
+                    .putNumber("entries", entries)
+                    .putNumber("bytes", bytes)
+                    .putNumber("duration", elapsed)
+                    .putNumber("bytesPerSecond", bytes * 1000 / Math.max(1, elapsed))
+                    .putString("error", error);
+        }
+    }
+
+    private static class CountingOutputStream extends BufferedOutputStream {
+        private final FileOutputStream file;
+        private long count = 0;
+
+        private CountingOutputStream(File file) throws IOException {
+            this(new FileOutputStream(file));
+        }
+
+        private CountingOutputStream(FileOutputStream file) {
+            super(file, 1 << 16);
+            this.file = file;
+        }
+
+        /**
+         * Flushes the buffer and forces the file to disk, so the export survives a crash once renamed
+         */
+        private void sync() throws IOException {
+            flush();
+            file.getFD().sync();
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            super.write(b);
+            count++;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.Lists;
+import org.mapdb.DB;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ *
+ * Ordered key value store holding the nodes of one partition, keyed by {@link NodeKey}. Values are the
+ * plain values of the tree and {@link Node#OBJECT} for object nodes. Only the writer thread of the
+ * partition writes, readers read from snapshots, which see the store as of the last commit.
+ *
+ * The engine is selected with "engine" in the mapdb section of the configuration, or of a partition:
+ *
+ * mapdb: a B-tree in the MapDB store of the partition, configured by its {@link StoreProfile} (default)
+ * memory: versioned skip list on the heap, the nodes are lost on restart
+ * log: the memory engine with every write appended to a log file, which is replayed on start
+ */
+public interface StorageEngine extends AutoCloseable {
+    String MAPDB = "mapdb";
+    String MEMORY = "memory";
+    String LOG = "log";
+
+    /**
+     * @param db store of the partition, which holds the nodes of the mapdb engine
+     * @param file file of the store, next to which the other engines keep their files
+     */
+    static StorageEngine of(JsonObject config, DB db, StoreProfile profile, File file) {
+        String engine = config.getString("engine", MAPDB);
+        switch (engine) {
+            case MAPDB:
+                return MapDbEngine.open(db, profile);
+            case MEMORY:
+                return new MemoryEngine();
+            case LOG:
+                return LogEngine.open(new File(file.getPath() + LogEngine.EXTENSION));
+            default:
+                throw new IllegalArgumentException("Unknown storage engine " + engine + ", expected one of "
+                        + Lists.newArrayList(MAPDB, MEMORY, LOG));
+        }
+    }
+
+    /**
+     * @return whether the nodes survive a restart
+     */
+    boolean isPersistent();
+
+    /**
+     * @return value stored under key, null if there is none
+     */
+    Object get(String key);
+
+    default boolean containsKey(String key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the value stored under key before, null if there was none
+     */
+    Object put(String key, Object value);
+
+    /**
+     * @return the value stored under key before, null if there was none
+     */
+    Object remove(String key);
+
+    /**
+     * @param from first key, inclusive, null to start with the first entry
+     * @param to   last key, exclusive, null to end with the last entry
+     * @return entries within the range in ascending key order
+     */
+    Iterator<Map.Entry<String, Object>> range(String from, String to);
+
+    /**
+     * @return entries within the range, like {@link #range(String, String)}, in descending key order
+     */
+    Iterator<Map.Entry<String, Object>> descendingRange(String from, String to);
+
+    /**
+     * @return the least key greater than or equal to key, null if there is none
+     */
+    String ceilingKey(String key);
+
+    /**
+     * @return the greatest key less than key, null if there is none
+     */
+    String lowerKey(String key);
+
+    /**
+     * Removes up to limit entries within the range, the first ones first
+     *
+     * @return number of entries removed
+     */
+    int removeRange(String from, String to, int limit);
+
+    /**
+     * Replaces all entries with the ones of source, which delivers them in descending key order
+     */
+    void replace(Iterator<Map.Entry<String, Object>> source);
+
+    /**
+     * Makes the writes so far durable, for persistent engines, and visible to snapshots taken from now on
+     */
+    void commit();
+
+    /**
+     * @return number of the last commit, counted across restarts by engines which keep their nodes in
+     * files of their own, 0 by the others
+     */
+    default long commits() {
+        return 0;
+    }
+
+    /**
+     * @return read only view of the store as of the last commit, which has to be closed after use
+     */
+    StorageEngine snapshot();
+
+    /**
+     * @return number of entries
+     */
+    long size();
+
+    @Override
+    void close();
+}
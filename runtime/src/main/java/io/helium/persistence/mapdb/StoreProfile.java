@@ -0,0 +1,198 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.mapdb.DBMaker;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ * Named set of MapDB options for the node store, selected with "profile" in the mapdb section of the
+ * configuration. Options next to "profile" override the ones of the selected profile:
+ *
+ * storage: "file", "memory" (heap) or "direct" (off-heap memory), memory stores are lost on restart
+ * mmap: "ifSupported", "all", "partial" (only the index) or "none" (RandomAccessFile)
+ * cache: "hash", "lru", "hardRef", "softRef", "weakRef" or "none", with cacheSize entries
+ * asyncWrite: write records on a background thread, queueing up to asyncWriteQueueSize of them
+ * transactions: without them commits are cheap, but a crash can leave the store corrupted
+ * nodeSize: entries per B-tree node, one number or one per collection, {"tree": 64}. Only applies
+ * to collections created or rebuilt by a bulk load afterwards.
+ */
+public class StoreProfile {
+    public static final String DEFAULT = "default";
+
+    private static final int DEFAULT_NODE_SIZE = 32;
+
+    // options of the store or a partition of it which don't configure MapDB
+    private static final Set<String> NOT_STORE_OPTIONS = ImmutableSet.of("profile", "engine", "directory",
+            "partitions", "prefixes", "publishInterval");
+
+    private static final Map<String, JsonObject> PROFILES = ImmutableMap.<String, JsonObject>builder()
+            .put(DEFAULT, new JsonObject()
+                    .putString("storage", "file").putString("mmap", "ifSupported")
+                    .putString("cache", "hash").putNumber("cacheSize", 10)
+                    .putBoolean("asyncWrite", false).putBoolean("transactions", true))
+            .put("mmap", new JsonObject()
+                    .putString("storage", "file").putString("mmap", "all")
+                    .putString("cache", "lru").putNumber("cacheSize", 32768)
+                    .putBoolean("asyncWrite", false).putBoolean("transactions", true))
+            .put("raf", new JsonObject()
+                    .putString("storage", "file").putString("mmap", "none")
+                    .putString("cache", "hash").putNumber("cacheSize", 32768)
+                    .putBoolean("asyncWrite", false).putBoolean("transactions", true))
+            .put("async", new JsonObject()
+                    .putString("storage", "file").putString("mmap", "ifSupported")
+                    .putString("cache", "lru").putNumber("cacheSize", 32768)
+                    .putBoolean("asyncWrite", true).putNumber("asyncWriteQueueSize", 32000)
+                    .putBoolean("transactions", true))
+            .put("no-tx", new JsonObject()
+                    .putString("storage", "file").putString("mmap", "ifSupported")
+                    .putString("cache", "hash").putNumber("cacheSize", 32768)
+                    .putBoolean("asyncWrite", false).putBoolean("transactions", false))
+            .put("direct", new JsonObject()
+                    .putString("storage", "direct")
+                    .putString("cache", "none")
+                    .putBoolean("asyncWrite", false).putBoolean("transactions", false))
+            .build();
+
+    private final String name;
+    private final JsonObject options;
+
+    private StoreProfile(String name, JsonObject options) {
+        this.name = name;
+        this.options = options;
+    }
+
+    public static StoreProfile of(String name) {
+        return of(new JsonObject().putString("profile", name));
+    }
+
+    /**
+     * @return the profile named by "profile" in config, overridden by the other options in config
+     */
+    public static StoreProfile of(JsonObject config) {
+        String name = config.getString("profile", DEFAULT);
+        if (!PROFILES.containsKey(name)) {
+            throw new IllegalArgumentException("Unknown store profile " + name + ", expected one of " + PROFILES.keySet());
+        }
+        JsonObject options = PROFILES.get(name).copy();
+        for (String option : config.getFieldNames()) {
+            if (!NOT_STORE_OPTIONS.contains(option)) {
+                options.putValue(option, config.getValue(option));
+            }
+        }
+        return new StoreProfile(name, options);
+    }
+
+    public static Iterable<String> names() {
+        return PROFILES.keySet();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public boolean isPersistent() {
+        return options.getString("storage").equals("file");
+    }
+
+    /**
+     * @return whether the store has transactions, without them there are no snapshots to read from
+     */
+    public boolean hasTransactions() {
+        return options.getBoolean("transactions", true);
+    }
+
+    /**
+     * @return DBMaker for a store in file with the options of this profile
+     */
+    public DBMaker<?> maker(File file) {
+        DBMaker<?> maker;
+        switch (options.getString("storage")) {
+            case "file":
+                maker = DBMaker.newFileDB(file);
+                break;
+            case "memory":
+                maker = DBMaker.newMemoryDB();
+                break;
+            case "direct":
+                maker = DBMaker.newMemoryDirectDB();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown storage " + options.getString("storage"));
+        }
+        switch (options.getString("mmap", "none")) {
+            case "ifSupported":
+                maker.mmapFileEnableIfSupported();
+                break;
+            case "all":
+                maker.mmapFileEnable();
+                break;
+            case "partial":
+                maker.mmapFileEnablePartial();
+                break;
+            case "none":
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mmap mode " + options.getString("mmap"));
+        }
+        switch (options.getString("cache", "hash")) {
+            case "hash":
+                break;
+            case "lru":
+                maker.cacheLRUEnable();
+                break;
+            case "hardRef":
+                maker.cacheHardRefEnable();
+                break;
+            case "softRef":
+                maker.cacheSoftRefEnable();
+                break;
+            case "weakRef":
+                maker.cacheWeakRefEnable();
+                break;
+            case "none":
+                maker.cacheDisable();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown cache " + options.getString("cache"));
+        }
+        if (options.containsField("cacheSize")) {
+            maker.cacheSize(options.getInteger("cacheSize"));
+        }
+        if (options.getBoolean("asyncWrite", false)) {
+            maker.asyncWriteEnable();
+            if (options.containsField("asyncWriteQueueSize")) {
+                maker.asyncWriteQueueSize(options.getInteger("asyncWriteQueueSize"));
+            }
+        }
+        if (!options.getBoolean("transactions", true)) {
+            maker.transactionDisable();
+        }
+        return maker;
+    }
+
+    /**
+     * @return the number of entries per B-tree node of collection
+     */
+    public int nodeSize(String collection) {
+        Object nodeSize = options.getValue("nodeSize");
+        if (nodeSize instanceof JsonObject) {
+            return ((JsonObject) nodeSize).getInteger(collection, DEFAULT_NODE_SIZE);
+        }
+        return nodeSize instanceof Number ? ((Number) nodeSize).intValue() : DEFAULT_NODE_SIZE;
+    }
+
+    public JsonObject toJson() {
+        return options.copy().putString("profile", name);
+    }
+
+    @Override
+    public String toString() {
+        return toJson().encode();
+    }
+}
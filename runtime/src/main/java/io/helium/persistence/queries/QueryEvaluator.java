@@ -47,6 +47,9 @@ public class QueryEvaluator {
 
 
     public boolean evaluateQueryOnValue(Object value, String queryStr) {
+        if (isRangeQuery(queryStr)) {
+            return RangeQuery.of(new JsonObject(queryStr)).matches(value);
+        }
         try {
 
             Object parsedValue;
@@ -64,6 +67,13 @@ public class QueryEvaluator {
         return false;
     }
 
+    /**
+     * @return whether query is a {@link RangeQuery} in JSON instead of a JavaScript predicate
+     */
+    public static boolean isRangeQuery(String query) {
+        return query.trim().startsWith("{");
+    }
+
     public void addQuery(Path path, String query) {
         attached_queries.put(path.toString(), query);
     }
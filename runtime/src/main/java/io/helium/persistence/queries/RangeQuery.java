@@ -0,0 +1,256 @@
+package io.helium.persistence.queries;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+import org.vertx.java.core.MultiMap;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Range of children of a node, given by the parameters orderBy, startAt and endAt (inclusive) or
+ * equalTo and at most one of limitToFirst and limitToLast.
+ *
+ * Children are ordered by name with orderBy "$key", which is the default, and by the value of one of
+ * their fields with orderBy "field". Values are ordered false, true, numbers, strings, children without
+ * the field or with an object in it are not part of the range. Ranges ordered by a field are answered
+ * from the index of the field if there is one, see ".indexOn" in the rules.
+ */
+public final class RangeQuery {
+    public static final String KEY = "$key";
+
+    public static final RangeQuery ALL = new RangeQuery(null, null, null, 0, false);
+
+    private final String orderByChild;
+    private final Object startAt;
+    private final Object endAt;
+    private final int limit;
+    private final boolean fromEnd;
+
+    private RangeQuery(String orderByChild, Object startAt, Object endAt, int limit, boolean fromEnd) {
+        this.orderByChild = orderByChild;
+        this.startAt = startAt;
+        this.endAt = endAt;
+        this.limit = limit;
+        this.fromEnd = fromEnd;
+    }
+
+    /**
+     * @return the query given by the fields of params, ALL if params is null
+     */
+    public static RangeQuery of(JsonObject params) {
+        if (params == null) {
+            return ALL;
+        }
+        return of(params.getString("orderBy"), params.getValue("startAt"), params.getValue("endAt"),
+                params.getValue("equalTo"), limit(params.getValue("limitToFirst")), limit(params.getValue("limitToLast")));
+    }
+
+    /**
+     * @return the query given by the parameters of a request, which are JSON values
+     */
+    public static RangeQuery of(MultiMap params) {
+        return of(unquote(params.get("orderBy")), parse(params.get("startAt")), parse(params.get("endAt")),
+                parse(params.get("equalTo")), limit(params.get("limitToFirst")), limit(params.get("limitToLast")));
+    }
+
+    private static RangeQuery of(String orderBy, Object startAt, Object endAt, Object equalTo,
+                                 int limitToFirst, int limitToLast) {
+        String orderByChild = Strings.isNullOrEmpty(orderBy) || orderBy.equals(KEY) || orderBy.equals("key") ? null : orderBy;
+        if (orderByChild != null && (orderByChild.startsWith("$") || orderByChild.contains("/"))) {
+            throw new IllegalArgumentException("Unsupported orderBy " + orderBy + ", expected " + KEY + " or the name of a field");
+        }
+        if (limitToFirst > 0 && limitToLast > 0) {
+            throw new IllegalArgumentException("Only one of limitToFirst and limitToLast may be given");
+        }
+        if (equalTo != null) {
+            if (startAt != null || endAt != null) {
+                throw new IllegalArgumentException("equalTo can't be combined with startAt or endAt");
+            }
+            startAt = equalTo;
+            endAt = equalTo;
+        }
+        if (orderByChild == null) {
+            startAt = name(startAt);
+            endAt = name(endAt);
+        }
+        if (startAt != null && endAt != null && compare(startAt, endAt) > 0) {
+            throw new IllegalArgumentException("startAt " + startAt + " is behind endAt " + endAt);
+        }
+        return new RangeQuery(orderByChild, startAt, endAt, Math.max(limitToFirst, limitToLast), limitToLast > 0);
+    }
+
+    private static int limit(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        int limit = value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString());
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit has to be positive, not " + value);
+        }
+        return limit;
+    }
+
+    private static String name(Object value) {
+        return value == null ? null : Strings.emptyToNull(value.toString());
+    }
+
+    /**
+     * "\"b\"" and "b" both denote the string b, true, false and numbers stand for themselves
+     */
+    private static Object parse(String value) {
+        if (value == null || (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))) {
+            return unquote(value);
+        }
+        if (value.equals("true") || value.equals("false")) {
+            return Boolean.valueOf(value);
+        }
+        try {
+            return value.contains(".") || value.contains("e") || value.contains("E") ? Double.valueOf(value) : Long.valueOf(value);
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    private static String unquote(String value) {
+        if (value != null && value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    /**
+     * Order of field values: false, true, numbers, strings
+     */
+    public static int compare(Object a, Object b) {
+        int rank = Integer.compare(rank(a), rank(b));
+        if (rank != 0) {
+            return rank;
+        }
+        if (a instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if (a instanceof Boolean) {
+            return Boolean.compare((Boolean) a, (Boolean) b);
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    private static int rank(Object value) {
+        if (value instanceof Boolean) {
+            return 0;
+        }
+        return value instanceof Number ? 1 : 2;
+    }
+
+    /**
+     * @return whether value can be the value of a field in a range, objects and arrays can't
+     */
+    public static boolean isComparable(Object value) {
+        return value instanceof Boolean || value instanceof Number || value instanceof String;
+    }
+
+    /**
+     * @return the field the children are ordered by, null if they are ordered by name
+     */
+    public String orderByChild() {
+        return orderByChild;
+    }
+
+    /**
+     * @return first name or value of the range, null if it starts with the first child
+     */
+    public Object startAt() {
+        return startAt;
+    }
+
+    /**
+     * @return last name or value of the range, null if it ends with the last child
+     */
+    public Object endAt() {
+        return endAt;
+    }
+
+    /**
+     * @return maximum number of children, 0 for no limit
+     */
+    public int limit() {
+        return limit;
+    }
+
+    /**
+     * @return whether the limit applies to the last children of the range
+     */
+    public boolean fromEnd() {
+        return fromEnd;
+    }
+
+    /**
+     * @return the same range with a different limit
+     */
+    public RangeQuery withLimit(int limit) {
+        return new RangeQuery(orderByChild, startAt, endAt, limit, fromEnd);
+    }
+
+    public boolean isLimited() {
+        return limit > 0;
+    }
+
+    public boolean isAll() {
+        return orderByChild == null && startAt == null && endAt == null && limit == 0;
+    }
+
+    /**
+     * @return whether the name of a child, or the value of its field if ordered by a field, is between
+     * startAt and endAt, regardless of the limit
+     */
+    public boolean inRange(Object value) {
+        if (orderByChild != null && !isComparable(value)) {
+            return false;
+        }
+        return (startAt == null || compare(value, startAt) >= 0) && (endAt == null || compare(value, endAt) <= 0);
+    }
+
+    /**
+     * @return whether child, the value of a child, is in the range of a query ordered by a field
+     */
+    public boolean matches(Object child) {
+        return child instanceof JsonObject && inRange(((JsonObject) child).getValue(orderByChild));
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject().putString("orderBy", orderByChild != null ? orderByChild : KEY);
+        if (startAt != null && startAt.equals(endAt)) {
+            json.putValue("equalTo", startAt);
+        } else {
+            if (startAt != null) {
+                json.putValue("startAt", startAt);
+            }
+            if (endAt != null) {
+                json.putValue("endAt", endAt);
+            }
+        }
+        if (limit > 0) {
+            json.putNumber(fromEnd ? "limitToLast" : "limitToFirst", limit);
+        }
+        return json;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof RangeQuery)) {
+            return false;
+        }
+        RangeQuery other = (RangeQuery) obj;
+        return Objects.equal(orderByChild, other.orderByChild) && Objects.equal(startAt, other.startAt)
+                && Objects.equal(endAt, other.endAt) && limit == other.limit && fromEnd == other.fromEnd;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(orderByChild, startAt, endAt, limit, fromEnd);
+    }
+
+    @Override
+    public String toString() {
+        return toJson().encode();
+    }
+}
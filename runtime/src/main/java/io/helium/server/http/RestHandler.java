@@ -5,18 +5,20 @@ import com.google.common.io.Resources;
 import io.helium.authorization.Authorizator;
 import io.helium.authorization.Operation;
 import io.helium.common.DataTypeConverter;
-import io.helium.common.EndpointConstants;
+import io.helium.common.JsonWriter;
 import io.helium.common.PasswordHelper;
 import io.helium.common.Path;
+import io.helium.common.PushId;
 import io.helium.event.HeliumEvent;
 import io.helium.event.builder.HeliumEventBuilder;
-import io.helium.event.changelog.ChangeLog;
 import io.helium.persistence.Persistence;
 import io.helium.persistence.actions.Get;
 import io.helium.persistence.mapdb.PersistenceExecutor;
+import io.helium.persistence.queries.RangeQuery;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.Vertx;
 import org.vertx.java.core.eventbus.Message;
@@ -27,7 +29,6 @@ import org.vertx.java.core.json.JsonObject;
 import java.io.IOException;
 import java.net.URL;
 import java.util.Optional;
-import java.util.UUID;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.UNAUTHORIZED;
 
@@ -37,6 +38,8 @@ import static io.netty.handler.codec.http.HttpResponseStatus.UNAUTHORIZED;
  * Created by Christoph Grotz on 29.05.14.
  */
 public class RestHandler implements Handler<HttpServerRequest> {
+    private static final long WRITE_TIMEOUT = 10000;
+
     private final Vertx vertx;
 
     public RestHandler(Vertx vertx) {
@@ -46,7 +49,7 @@ public class RestHandler implements Handler<HttpServerRequest> {
     @Override
     public void handle(HttpServerRequest req) {
         try {
-            Path nodePath = new Path(HeliumEvent.extractPath(req.uri().replaceAll("\\.json", "")));
+            Path nodePath = new Path(HeliumEvent.extractPath(req.path().replaceAll("\\.json", "")));
             if (req.uri().endsWith("helium.js")) {
                 req.response().end(loadJsFile());
             } else if (req.method().equalsIgnoreCase(HttpMethod.GET.name())) {
@@ -74,82 +77,153 @@ public class RestHandler implements Handler<HttpServerRequest> {
 
             Authorizator.get().check(Operation.WRITE, auth, nodePath, null, securityCheck -> {
                 if (securityCheck) {
-                    vertx.eventBus().send(Persistence.DELETE, heliumEvent, (Message<JsonArray> msgJsonArray) -> {
-                        vertx.eventBus().publish(EndpointConstants.DISTRIBUTE_CHANGE_LOG, ChangeLog.of(msgJsonArray.body()));
-                        req.response().end();
-                    });
+                    write(req, Persistence.DELETE, heliumEvent);
+                }
+                else {
+                    req.response().end();
                 }
             });
         });
-        req.response().end();
     }
 
+    /**
+     * Writes the node, which expires after ttl milliseconds if the parameter ttl is given
+     */
     private void put(HttpServerRequest req) {
+        Long ttl;
+        try {
+            ttl = ttl(req);
+        } catch (IllegalArgumentException e) {
+            req.response().setStatusCode(HttpResponseStatus.BAD_REQUEST.code()).setStatusMessage(e.getMessage()).end();
+            return;
+        }
         req.bodyHandler(buffer -> {
-            Path nodePath = Path.of(req.uri());
+            Path nodePath = Path.of(req.path());
             extractAuthentication(req, auth -> {
                 Object data = DataTypeConverter.convert(buffer);
-                HeliumEvent event = HeliumEventBuilder.set(nodePath, data).withAuth(auth).build();
+                HeliumEvent event = HeliumEventBuilder.set(nodePath, data).withAuth(auth).withTtl(ttl).build();
                 if (auth.isPresent())
                     event.setAuth(auth.get());
 
                 Authorizator.get().check(Operation.WRITE, auth, nodePath, data, (Boolean event1) -> {
                     if (event1) {
-                        vertx.eventBus().send(event.getType().eventBus, event, (Message<JsonArray> changeLogMsg) -> {
-                            if(changeLogMsg.body().size() > 0) {
-                                vertx.eventBus().send(PersistenceExecutor.PERSIST_CHANGE_LOG, changeLogMsg.body());
-                                vertx.eventBus().publish(EndpointConstants.DISTRIBUTE_CHANGE_LOG, changeLogMsg.body());
-                            }
-                        });
+                        write(req, event.getType().eventBus, event);
+                    }
+                    else {
+                        req.response().end();
                     }
                 });
             });
-            req.response().end();
         });
         req.resume();
     }
 
+    /**
+     * Pushes a child, which expires after ttl milliseconds if the parameter ttl is given
+     */
     private void post(HttpServerRequest req) {
+        Long ttl;
+        try {
+            ttl = ttl(req);
+        } catch (IllegalArgumentException e) {
+            req.response().setStatusCode(HttpResponseStatus.BAD_REQUEST.code()).setStatusMessage(e.getMessage()).end();
+            return;
+        }
         req.bodyHandler(buffer -> {
             String uri;
-            String uuid = UUID.randomUUID().toString().replaceAll("-", "");
-            if (req.uri().endsWith("/")) {
-                uri = req.uri() + uuid;
+            String name = PushId.get().next();
+            if (req.path().endsWith("/")) {
+                uri = req.path() + name;
             } else {
-                uri = req.uri() + "/" + uuid;
+                uri = req.path() + "/" + name;
             }
             Path nodePath = Path.of(uri);
             extractAuthentication(req, auth -> {
                 Object data = DataTypeConverter.convert(buffer);
-                HeliumEvent event = HeliumEventBuilder.set(nodePath, data).withAuth(auth).build();
+                HeliumEvent event = HeliumEventBuilder.set(nodePath, data).withAuth(auth).withTtl(ttl).build();
                 if (auth.isPresent())
                     event.setAuth(auth.get());
 
                 Authorizator.get().check(Operation.WRITE, auth, nodePath, data, securityCheck -> {
                     if (securityCheck) {
-                        vertx.eventBus().send(event.getType().eventBus, event, (Message<JsonArray> changeLogMsg) -> {
-                            if(changeLogMsg.body().size() > 0) {
-                                vertx.eventBus().send(PersistenceExecutor.PERSIST_CHANGE_LOG, changeLogMsg.body());
-                                vertx.eventBus().publish(EndpointConstants.DISTRIBUTE_CHANGE_LOG, changeLogMsg.body());
-                            }
-                        });
-
+                        write(req, event.getType().eventBus, event);
+                    }
+                    else {
+                        req.response().end();
                     }
                 });
             });
-            req.response().end();
         });
         req.resume();
     }
 
+    /**
+     * Sends event to the persistence action at address and persists the change log it replies with. The
+     * response ends once the change log is accepted, so the next read sees the write.
+     */
+    private void write(HttpServerRequest req, String address, HeliumEvent event) {
+        vertx.eventBus().sendWithTimeout(address, event, WRITE_TIMEOUT, (AsyncResult<Message<JsonArray>> changeLogMsg) -> {
+            if (changeLogMsg.failed()) {
+                fail(req, changeLogMsg.cause());
+                return;
+            }
+            JsonArray changeLog = changeLogMsg.result().body();
+            if (changeLog.size() == 0) {
+                req.response().end();
+                return;
+            }
+            vertx.eventBus().sendWithTimeout(PersistenceExecutor.ACCEPT_CHANGE_LOG, changeLog, WRITE_TIMEOUT,
+                    (AsyncResult<Message<Object>> accepted) -> {
+                        if (accepted.failed()) {
+                            fail(req, accepted.cause());
+                        }
+                        else {
+                            req.response().end();
+                        }
+                    });
+        });
+    }
+
+    private static void fail(HttpServerRequest req, Throwable cause) {
+        req.response().setStatusCode(HttpResponseStatus.INTERNAL_SERVER_ERROR.code()).setStatusMessage(String.valueOf(cause.getMessage())).end();
+    }
+
+    /**
+     * @return the parameter ttl in milliseconds, null if it isn't given
+     */
+    private static Long ttl(HttpServerRequest req) {
+        String ttl = req.params().get("ttl");
+        if (ttl == null) {
+            return null;
+        }
+        try {
+            long millis = Long.parseLong(ttl);
+            if (millis >= 0) {
+                return millis;
+            }
+        } catch (NumberFormatException e) {
+            // rejected below
+        }
+        throw new IllegalArgumentException("ttl has to be a number of milliseconds, not " + ttl);
+    }
+
     private void get(HttpServerRequest req, Path path) {
+        RangeQuery query;
+        try {
+            query = RangeQuery.of(req.params());
+        } catch (IllegalArgumentException e) {
+            req.response().setStatusCode(HttpResponseStatus.BAD_REQUEST.code()).setStatusMessage(e.getMessage()).end();
+            return;
+        }
         extractAuthentication(req, auth ->
-            vertx.eventBus().send(Persistence.GET, Get.request(path), (Message<Object> msg) ->
+            vertx.eventBus().send(Persistence.GET, Get.request(path, query), (Message<Object> msg) ->
                 Authorizator.get().check(Operation.READ, auth, path, msg.body(), securityCheck -> {
                     if (securityCheck) {
                         Authorizator.get().filter(auth, path, msg.body(),
                             event -> {
-                                if (event != null) {
+                                if (event instanceof JsonObject) {
+                                    req.response().end(JsonWriter.encode(event));
+                                } else if (event != null) {
                                     req.response().end(event.toString());
                                 } else {
                                     req.response().setStatusCode(404).end();
@@ -1,5 +1,6 @@
 package io.helium.server.mqtt;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import io.helium.authorization.Authorizator;
 import io.helium.authorization.Operation;
@@ -14,6 +15,7 @@ import io.helium.event.changelog.ChildAdded;
 import io.helium.event.changelog.ValueChanged;
 import io.helium.persistence.Persistence;
 import io.helium.persistence.actions.Get;
+import io.helium.persistence.mapdb.MapDbService;
 import io.helium.persistence.mapdb.PersistenceExecutor;
 import io.helium.server.mqtt.decoder.MqttDecoder;
 import io.helium.server.mqtt.encoder.Encoder;
@@ -49,13 +51,19 @@ public class MqttEndpoint implements Handler<Buffer> {
     private final PathMatcher pathMatcher = new PathMatcher();
     private Optional<JsonObject> auth = Optional.empty();
     private Vertx vertx;
+    private final JsonObject retainedTtl;
 
 
-    public MqttEndpoint(NetSocket socket, Vertx vertx, DB db) {
+    /**
+     * @param retainedTtl milliseconds after which retained messages expire by topic prefix, like
+     *                    {"presence": 60000}, the longest matching prefix counts
+     */
+    public MqttEndpoint(NetSocket socket, Vertx vertx, DB db, JsonObject retainedTtl) {
         socket.dataHandler(this);
         this.socket = socket;
         this.vertx = vertx;
         this.db = db;
+        this.retainedTtl = retainedTtl;
         this.topics = db.getHashSet(clientId + "Topics");
 
         Handler<Message<JsonArray>> distributeChangeLogHandler = new Handler<Message<JsonArray>>() {
@@ -84,6 +92,24 @@ public class MqttEndpoint implements Handler<Buffer> {
     }
 
 
+    /**
+     * @return TTL of retained messages published to path, null if they don't expire
+     */
+    private Number retainedTtl(Path path) {
+        Number ttl = null;
+        String prefix = "";
+        for (String element : path.toArray()) {
+            if (Strings.isNullOrEmpty(element)) {
+                continue;
+            }
+            prefix = prefix.isEmpty() ? element : prefix + "/" + element;
+            if (retainedTtl.containsField(prefix)) {
+                ttl = retainedTtl.getNumber(prefix);
+            }
+        }
+        return ttl;
+    }
+
     public void distributeChangeLog(ChangeLog changeLog) {
         changeLog.forEach(obj -> {
             JsonObject logE = (JsonObject) obj;
@@ -100,7 +126,7 @@ public class MqttEndpoint implements Handler<Buffer> {
                 ValueChanged logEvent = ValueChanged.of(logE);
                 if (hasListener(logEvent.path(), EndpointConstants.VALUE)) {
                     fireValue(logEvent.name(), logEvent.path(), logEvent.parent(),
-                            logEvent.value());
+                            MapDbService.get().currentValue(logEvent.changedPath(), logEvent));
                 }
             }
         });
@@ -281,7 +307,8 @@ public class MqttEndpoint implements Handler<Buffer> {
                         Object data = DataTypeConverter.convert(publish.getArray());
                         if (publish.isRetainFlag()) {
                             Path nodePath = Path.of(publish.getTopic());
-                            HeliumEvent heliumEvent = HeliumEventBuilder.set(nodePath, data).withAuth(auth).build();
+                            HeliumEvent heliumEvent = HeliumEventBuilder.set(nodePath, data).withAuth(auth)
+                                    .withTtl(retainedTtl(nodePath)).build();
                             if (auth.isPresent())
                                 heliumEvent.setAuth(auth.get());
 
@@ -290,7 +317,6 @@ public class MqttEndpoint implements Handler<Buffer> {
                                     vertx.eventBus().send(heliumEvent.getType().eventBus, heliumEvent, (Message<JsonArray> changeLogMsg) -> {
                                         if (changeLogMsg.body().size() > 0) {
                                             vertx.eventBus().send(PersistenceExecutor.PERSIST_CHANGE_LOG, changeLogMsg.body());
-                                            vertx.eventBus().publish(EndpointConstants.DISTRIBUTE_CHANGE_LOG, changeLogMsg.body());
                                         }
                                     });
                                 }
@@ -1,11 +1,13 @@
 package io.helium.server.mqtt;
 
+import io.helium.persistence.mapdb.CompactionScheduler;
 import io.helium.server.mqtt.decoder.MqttDecoder;
 import io.helium.server.mqtt.encoder.Encoder;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.net.NetSocket;
 import org.vertx.java.platform.Container;
 
@@ -21,15 +23,22 @@ public class MqttServerHandler implements Handler<NetSocket> {
     private final Encoder encoder = new Encoder();
     private final Vertx vertx;
     private final Container container;
+    // TTL of retained messages by topic prefix
+    private final JsonObject retainedTtl;
 
     public MqttServerHandler(Vertx vertx, Container container) {
         this.vertx = vertx;
         this.container = container;
+        this.retainedTtl = container.config().getObject("retainedTtl", new JsonObject());
         File file = new File(container.config().getString("directory","helium/mqtt"));
         file.getParentFile().mkdirs();
+        // without transactions, as nothing but the shutdown commits the store, which MapDB then locks
+        // against writes while compacting it
         this.db = DBMaker.newFileDB(file)
+                .transactionDisable()
                 .closeOnJvmShutdown()
                 .make();
+        CompactionScheduler.get().register("mqtt", db, Runnable::run);
 
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
@@ -38,7 +47,6 @@ public class MqttServerHandler implements Handler<NetSocket> {
                     if(!db.isClosed()) {
                         System.out.println("Shutdown MapDB Mqtt Endpoint Store");
                         db.commit();
-                        db.compact();
                         db.close();
                     }
                 }
@@ -50,6 +58,6 @@ public class MqttServerHandler implements Handler<NetSocket> {
 
     @Override
     public void handle(NetSocket socket) {
-        MqttEndpoint endpoint = new MqttEndpoint(socket, vertx, db);
+        MqttEndpoint endpoint = new MqttEndpoint(socket, vertx, db, retainedTtl);
     }
 }
@@ -0,0 +1,106 @@
+package io.helium.server.websocket;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import io.helium.persistence.mapdb.Node;
+import io.helium.persistence.queries.RangeQuery;
+
+import java.util.List;
+import java.util.NavigableSet;
+
+/**
+ * Children of a node a listener with a {@link RangeQuery} currently sees. Changes to children outside
+ * of the window are not sent to the listener. Only limited windows keep the names they contain, they
+ * follow the change logs as they are distributed, which may be before they are applied. Only a deleted
+ * child is replaced by reading the next child behind the edge.
+ */
+class ChildWindow {
+    private final RangeQuery query;
+    private final NavigableSet<String> names = Sets.newTreeSet();
+
+    ChildWindow(RangeQuery query) {
+        this.query = query;
+    }
+
+    RangeQuery query() {
+        return query;
+    }
+
+    boolean contains(String name) {
+        return query.isLimited() ? names.contains(name) : query.inRange(name);
+    }
+
+    /**
+     * @return whether adding name can change the window, a limited window which is full only
+     * changes for names within it
+     */
+    boolean admits(String name) {
+        if (!query.inRange(name)) {
+            return false;
+        }
+        if (!query.isLimited() || names.size() < query.limit()) {
+            return true;
+        }
+        return query.fromEnd() ? name.compareTo(names.first()) > 0 : name.compareTo(names.last()) < 0;
+    }
+
+    /**
+     * @return the names of the children of node within the window, ordered by name
+     */
+    List<String> read(Node node) {
+        List<String> current = node.keys(query);
+        if (query.isLimited()) {
+            names.clear();
+            names.addAll(current);
+        }
+        return current;
+    }
+
+    /**
+     * Adds name to the limited window if it falls within it
+     *
+     * @return whether name entered the window
+     */
+    boolean add(String name) {
+        return admits(name) && names.add(name);
+    }
+
+    /**
+     * @return the name at the far edge of the limited window, which left it because the window holds one
+     * name more than its limit, null if it doesn't
+     */
+    String overflow() {
+        if (names.size() <= query.limit()) {
+            return null;
+        }
+        return query.fromEnd() ? names.pollFirst() : names.pollLast();
+    }
+
+    /**
+     * @return whether name was in the limited window and left it
+     */
+    boolean remove(String name) {
+        return names.remove(name);
+    }
+
+    /**
+     * Fills the place of the deleted child in the limited window with the next child of node behind its
+     * far edge. The change log deleting it may not be applied yet, so deleted is skipped.
+     *
+     * @return the name which entered the window, null if no child is behind its edge
+     */
+    String refill(Node node, String deleted) {
+        List<String> behind = Lists.newArrayList();
+        for (String name : node.keys(query.withLimit(query.limit() + 1))) {
+            if (!name.equals(deleted) && !names.contains(name)) {
+                behind.add(name);
+            }
+        }
+        if (behind.isEmpty()) {
+            return null;
+        }
+        String name = query.fromEnd() ? behind.get(behind.size() - 1) : behind.get(0);
+        names.add(name);
+        return name;
+    }
+}
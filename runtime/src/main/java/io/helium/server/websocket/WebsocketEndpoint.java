@@ -19,6 +19,7 @@ package io.helium.server.websocket;
 import com.google.common.base.Strings;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import io.helium.authorization.Authorizator;
 import io.helium.authorization.Operation;
@@ -26,6 +27,7 @@ import io.helium.common.EndpointConstants;
 import io.helium.common.ExceptionWrapper;
 import io.helium.common.PasswordHelper;
 import io.helium.common.Path;
+import io.helium.common.PushId;
 import io.helium.event.HeliumEvent;
 import io.helium.event.HeliumEventType;
 import io.helium.event.builder.HeliumEventBuilder;
@@ -35,7 +37,9 @@ import io.helium.persistence.actions.Get;
 import io.helium.persistence.mapdb.MapDbService;
 import io.helium.persistence.mapdb.Node;
 import io.helium.persistence.mapdb.PersistenceExecutor;
+import io.helium.persistence.mapdb.ReadView;
 import io.helium.persistence.queries.QueryEvaluator;
+import io.helium.persistence.queries.RangeQuery;
 import io.helium.server.websocket.rpc.Rpc;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.Vertx;
@@ -47,12 +51,14 @@ import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.platform.Container;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 
 public class WebsocketEndpoint {
     private final Vertx vertx;
     private Multimap<String, String> attached_listeners = HashMultimap.create();
+    private Map<String, ChildWindow> windows = Maps.newHashMap();
     private String basePath;
     private Optional<JsonObject> auth = Optional.empty();
     private QueryEvaluator queryEvaluator;
@@ -94,9 +100,26 @@ public class WebsocketEndpoint {
 
     @Rpc.Method
     public void attachListener(@Rpc.Param("path") String path,
-                               @Rpc.Param("event_type") String eventType) {
+                               @Rpc.Param("event_type") String eventType,
+                               @Rpc.Param("query") JsonObject query) {
         container.logger().trace("attachListener");
-        addListener(new Path(HeliumEvent.extractPath(path)), eventType);
+        Path listened = new Path(HeliumEvent.extractPath(path));
+        RangeQuery rangeQuery = RangeQuery.of(query);
+        if (rangeQuery.orderByChild() != null) {
+            throw new IllegalArgumentException("Listeners only take ranges of children ordered by " + RangeQuery.KEY
+                    + ", use attachQuery for ranges ordered by a field");
+        }
+        // the events of a path are sent once, for all of its listeners
+        ChildWindow window = windows.get(listened.toString());
+        RangeQuery attached = window != null ? window.query() : RangeQuery.ALL;
+        if (attached_listeners.containsKey(listened.toString()) && !attached.equals(rangeQuery)) {
+            throw new IllegalArgumentException("The listeners of " + listened + " take the range " + attached
+                    + ", detach them before attaching with " + rangeQuery);
+        }
+        addListener(listened, eventType);
+        if (window == null && !rangeQuery.isAll()) {
+            windows.put(listened.toString(), new ChildWindow(rangeQuery));
+        }
         if ("child_added".equals(eventType)) {
             ChangeLog log = ChangeLog.of(new JsonArray());
             syncPath(Path.of(HeliumEvent.extractPath(path)));
@@ -115,6 +138,10 @@ public class WebsocketEndpoint {
         removeListener(new Path(HeliumEvent.extractPath(path)), eventType);
     }
 
+    /**
+     * query is either a JavaScript predicate on the value of a child or a {@link RangeQuery} in JSON,
+     * like {"orderBy": "status", "equalTo": "open"}, which is answered from the index of the field
+     */
     @Rpc.Method
     public void attachQuery(@Rpc.Param("path") String path, @Rpc.Param("query") String query) {
         container.logger().trace("attachQuery");
@@ -135,11 +162,19 @@ public class WebsocketEndpoint {
         vertx.eventBus().send(EndpointConstants.DISTRIBUTE_EVENT, new JsonObject().putString("path", path).putObject("payload", data));
     }
 
+    /**
+     * @param ttl milliseconds after which the pushed child expires, optional
+     * @return name of the pushed child, created here if the client didn't name it
+     */
     @Rpc.Method
-    public void push(@Rpc.Param("path") String path, @Rpc.Param("name") String name,
-                     @Rpc.Param("data") JsonObject data) {
+    public String push(@Rpc.Param("path") String path, @Rpc.Param("name") String name,
+                       @Rpc.Param("data") JsonObject data, @Rpc.Param("ttl") Number ttl) {
         container.logger().trace("push");
+        if (Strings.isNullOrEmpty(name)) {
+            name = PushId.get().next();
+        }
         HeliumEvent event = new HeliumEvent(HeliumEventType.PUSH, path + "/" + name, data);
+        withTtl(event, ttl);
         if (auth.isPresent())
             event.setAuth(auth.get());
 
@@ -147,7 +182,6 @@ public class WebsocketEndpoint {
             if (securityCheck) {
                 vertx.eventBus().send(Persistence.PUSH, event, (Message<JsonArray> changeLogMsg) -> {
                     if (changeLogMsg.body().size() > 0) {
-                        vertx.eventBus().publish(EndpointConstants.DISTRIBUTE_CHANGE_LOG, changeLogMsg.body());
                         vertx.eventBus().send(PersistenceExecutor.PERSIST_CHANGE_LOG, changeLogMsg.body());
                     }
                 });
@@ -156,13 +190,18 @@ public class WebsocketEndpoint {
                 container.logger().warn("not authorized: " + event);
             }
         });
+        return name;
     }
 
+    /**
+     * @param ttl milliseconds after which the node expires, optional
+     */
     @Rpc.Method
-    public void set(@Rpc.Param("path") String path, @Rpc.Param("data") Object data) {
+    public void set(@Rpc.Param("path") String path, @Rpc.Param("data") Object data, @Rpc.Param("ttl") Number ttl) {
         long start = System.currentTimeMillis();
         container.logger().trace("set");
         HeliumEvent event = new HeliumEvent(HeliumEventType.SET, path, data);
+        withTtl(event, ttl);
         if (auth.isPresent())
             event.setAuth(auth.get());
 
@@ -173,7 +212,6 @@ public class WebsocketEndpoint {
                     container.logger().info("Calculating of Changelog took: " + (System.currentTimeMillis() - start) + "ms");
                     JsonArray changeLog = changeLogMsg.body();
                     if (changeLog.size() > 0) {
-                        vertx.eventBus().send(EndpointConstants.DISTRIBUTE_CHANGE_LOG, changeLogMsg.body());
                         vertx.eventBus().publish(PersistenceExecutor.PERSIST_CHANGE_LOG, changeLogMsg.body());
                     }
                     changeLogMsg.reply();
@@ -186,9 +224,11 @@ public class WebsocketEndpoint {
     }
 
     @Rpc.Method
-    public void update(@Rpc.Param("path") String path, @Rpc.Param("data") JsonObject data) {
+    public void update(@Rpc.Param("path") String path, @Rpc.Param("data") JsonObject data,
+                       @Rpc.Param("ttl") Number ttl) {
         container.logger().trace("update");
         HeliumEvent event = new HeliumEvent(HeliumEventType.UPDATE, path, data);
+        withTtl(event, ttl);
         if (auth.isPresent())
             event.setAuth(auth.get());
 
@@ -196,7 +236,6 @@ public class WebsocketEndpoint {
             if (securityCheck) {
                 vertx.eventBus().send(Persistence.UPDATE, event, (Message<JsonArray> changeLogMsg) -> {
                     if (changeLogMsg.body().size() > 0) {
-                        vertx.eventBus().publish(EndpointConstants.DISTRIBUTE_CHANGE_LOG, changeLogMsg.body());
                         vertx.eventBus().publish(PersistenceExecutor.PERSIST_CHANGE_LOG, changeLogMsg.body());
                     }
                 });
@@ -209,19 +248,25 @@ public class WebsocketEndpoint {
 
     @Rpc.Method
     public void pushOnDisconnect(@Rpc.Param("path") String path, @Rpc.Param("name") String name,
-                                 @Rpc.Param("payload") JsonObject payload) {
+                                 @Rpc.Param("payload") JsonObject payload, @Rpc.Param("ttl") Number ttl) {
         container.logger().trace("pushOnDisconnect");
+        if (Strings.isNullOrEmpty(name)) {
+            name = PushId.get().next();
+        }
         HeliumEvent event = new HeliumEvent(HeliumEventType.PUSH, path + "/" + name,
                 payload);
+        withTtl(event, ttl);
         if (auth.isPresent())
             event.setAuth(auth.get());
         this.disconnectEvents.add(event);
     }
 
     @Rpc.Method
-    public void setOnDisconnect(@Rpc.Param("path") String path, @Rpc.Param("data") JsonObject data) {
+    public void setOnDisconnect(@Rpc.Param("path") String path, @Rpc.Param("data") JsonObject data,
+                                @Rpc.Param("ttl") Number ttl) {
         container.logger().trace("setOnDisconnect");
         HeliumEvent event = new HeliumEvent(HeliumEventType.SET, path, data);
+        withTtl(event, ttl);
         if (auth.isPresent())
             event.setAuth(auth.get());
         this.disconnectEvents.add(event);
@@ -301,7 +346,20 @@ public class WebsocketEndpoint {
             if (logE.getString("type").equals(ChildAdded.class.getSimpleName())) {
                 ChildAdded logEvent = ChildAdded.of(logE);
                 processQuery(logEvent);
-                if (hasListener(logEvent.path(), EndpointConstants.CHILD_ADDED)) {
+                ChildWindow window = windows.get(logEvent.path().toString());
+                if (window != null) {
+                    if (window.query().isLimited() ? window.add(logEvent.name()) : window.admits(logEvent.name())) {
+                        if (hasListener(logEvent.path(), EndpointConstants.CHILD_ADDED)) {
+                            fireChildAdded(logEvent.name(), logEvent.path(), logEvent.parent(),
+                                    logEvent.value(), logEvent.hasChildren(), logEvent.numChildren()
+                            );
+                        }
+                        String left = window.query().isLimited() ? window.overflow() : null;
+                        if (left != null) {
+                            fireLeftWindow(logEvent.path(), left);
+                        }
+                    }
+                } else if (hasListener(logEvent.path(), EndpointConstants.CHILD_ADDED)) {
                     fireChildAdded(logEvent.name(), logEvent.path(), logEvent.parent(),
                             logEvent.value(), logEvent.hasChildren(), logEvent.numChildren()
                     );
@@ -310,9 +368,9 @@ public class WebsocketEndpoint {
             if (logE.getString("type").equals(ChildChanged.class.getSimpleName())) {
                 ChildChanged logEvent = ChildChanged.of(logE);
                 processQuery(logEvent);
-                if (hasListener(logEvent.path(), EndpointConstants.CHILD_CHANGED)) {
+                if (hasListener(logEvent.path(), EndpointConstants.CHILD_CHANGED) && inWindow(logEvent.path(), logEvent.name())) {
                     fireChildChanged(logEvent.name(), logEvent.path(), logEvent.parent(),
-                            logEvent.value(), logEvent.hasChildren(), logEvent.numChildren()
+                            MapDbService.get().currentValue(logEvent.changedPath(), logEvent), logEvent.hasChildren(), logEvent.numChildren()
                     );
                 }
             }
@@ -321,13 +379,21 @@ public class WebsocketEndpoint {
                 processQuery(logEvent);
                 if (hasListener(logEvent.path(), EndpointConstants.VALUE)) {
                     fireValue(logEvent.name(), logEvent.path(), logEvent.parent(),
-                            logEvent.value());
+                            MapDbService.get().currentValue(logEvent.changedPath(), logEvent));
                 }
             }
             if (logE.getString("type").equals(ChildDeleted.class.getSimpleName())) {
                 ChildDeleted logEvent = ChildDeleted.of(logE);
                 processQuery(logEvent);
-                if (hasListener(logEvent.path(), EndpointConstants.CHILD_DELETED)) {
+                ChildWindow window = windows.get(logEvent.path().toString());
+                if (window != null && window.query().isLimited()) {
+                    if (window.remove(logEvent.name())) {
+                        if (hasListener(logEvent.path(), EndpointConstants.CHILD_DELETED)) {
+                            fireChildDeleted(logEvent.path(), logEvent.name(), logEvent.value());
+                        }
+                        refillWindow(window, logEvent.path(), logEvent.name());
+                    }
+                } else if (hasListener(logEvent.path(), EndpointConstants.CHILD_DELETED) && inWindow(logEvent.path(), logEvent.name())) {
                     fireChildDeleted(logEvent.path(), logEvent.name(), logEvent.value());
                 }
             }
@@ -335,6 +401,35 @@ public class WebsocketEndpoint {
         container.logger().trace("distribute " + (System.currentTimeMillis() - startTime) + "ms");
     }
 
+    private boolean inWindow(Path path, String name) {
+        ChildWindow window = windows.get(path.toString());
+        return window == null || window.contains(name);
+    }
+
+    /**
+     * Sends name, which was pushed out of a limited window by a child added before it, as deleted
+     */
+    private void fireLeftWindow(Path path, String name) {
+        if (hasListener(path, EndpointConstants.CHILD_DELETED)) {
+            Object value = MapDbService.get().of(path).get(name);
+            fireChildDeleted(path, name, value instanceof Node ? ((Node) value).toJsonObject() : value);
+        }
+    }
+
+    /**
+     * Sends the child which moved into a limited window in place of the deleted child as added
+     */
+    private void refillWindow(ChildWindow window, Path path, String deleted) {
+        if (!MapDbService.get().exists(path)) {
+            return;
+        }
+        Node node = MapDbService.get().of(path);
+        String entered = window.refill(node, deleted);
+        if (entered != null && hasListener(path, EndpointConstants.CHILD_ADDED)) {
+            fireChildAdded(node, entered, path);
+        }
+    }
+
     private void processQuery(ChangeLogEvent event) {
         Path nodePath = event.path();
         if (MapDbService.get().exists(nodePath)) {
@@ -537,7 +632,10 @@ public class WebsocketEndpoint {
     }
 
     public void removeListener(Path path, String type) {
-        attached_listeners.remove(path, type);
+        attached_listeners.remove(path.toString(), type);
+        if (!attached_listeners.containsKey(path.toString())) {
+            windows.remove(path.toString());
+        }
     }
 
     private boolean hasListener(Path path, String type) {
@@ -561,6 +659,12 @@ public class WebsocketEndpoint {
         return queryEvaluator.hasQuery(path);
     }
 
+    private static void withTtl(HeliumEvent event, Number ttl) {
+        if (ttl != null) {
+            event.putNumber(HeliumEvent.TTL, ttl);
+        }
+    }
+
     public void executeDisconnectEvents() {
         for (HeliumEvent event : disconnectEvents) {
             Authorizator.get().check(Operation.WRITE, auth, Path.of(event.getPath()), event.getPayload(), (Boolean event1) -> {
@@ -578,54 +682,66 @@ public class WebsocketEndpoint {
         socket.write(new Buffer(msg));
     }
 
+    /**
+     * Sends the children of path as they were after one change log, even while the next ones are
+     * applied
+     */
     public void syncPath(Path path) {
-        Node node;
-        if (MapDbService.get().exists(path)) {
-            node = MapDbService.get().of(path);
-        } else {
-            node = MapDbService.get().of(path.parent());
+        try (ReadView view = MapDbService.get().read()) {
+            Node node = view.exists(path) ? view.of(path) : view.of(path.parent());
+            ChildWindow window = windows.get(path.toString());
+            List<String> keys = window != null ? window.read(node) : node.keys();
+            keys.stream().filter(childNodeKey -> !Strings.isNullOrEmpty(childNodeKey)).forEach(childNodeKey ->
+                    fireChildAdded(node, childNodeKey, path));
         }
+    }
 
-        node.keys().stream().filter(childNodeKey -> !Strings.isNullOrEmpty(childNodeKey)).forEach(childNodeKey -> {
-            Object object = node.get(childNodeKey);
-            boolean hasChildren = (object instanceof Node) && ((Node) object).hasChildren();
-            int numChildren = (object instanceof Node) ? ((Node) object).length() : 0;
-            if (object != null) {
-                fireChildAdded(childNodeKey, path, path.parent(), object, hasChildren,
-                        numChildren);
-            }
-        });
+    private void fireChildAdded(Node node, String childNodeKey, Path path) {
+        Object object = node.get(childNodeKey);
+        boolean hasChildren = (object instanceof Node) && ((Node) object).hasChildren();
+        int numChildren = (object instanceof Node) ? ((Node) object).length() : 0;
+        if (object != null) {
+            fireChildAdded(childNodeKey, path, path.parent(), object, hasChildren,
+                    numChildren);
+        }
     }
 
 
     public void syncPathWithQuery(Path path, WebsocketEndpoint handler,
                                   QueryEvaluator queryEvaluator, String query) {
-        Node node;
-        if (MapDbService.get().exists(path)) {
-            node = MapDbService.get().of(path);
-        } else {
-            node = MapDbService.get().of(path.parent());
-        }
-
-        for (String childNodeKey : node.keys()) {
-            Object object = node.get(childNodeKey);
-            if (queryEvaluator.evaluateQueryOnValue(object, query)) {
-                if (object != null) {
-                    handler.fireQueryChildAdded(path, object);
+        try (ReadView view = MapDbService.get().read()) {
+            Node node = view.exists(path) ? view.of(path) : view.of(path.parent());
+            if (QueryEvaluator.isRangeQuery(query)) {
+                for (String childNodeKey : node.keys(RangeQuery.of(new JsonObject(query)))) {
+                    Object object = node.get(childNodeKey);
+                    if (object != null) {
+                        handler.fireQueryChildAdded(path, object);
+                    }
+                }
+                return;
+            }
+            for (String childNodeKey : node.keys()) {
+                Object object = node.get(childNodeKey);
+                if (queryEvaluator.evaluateQueryOnValue(object, query)) {
+                    if (object != null) {
+                        handler.fireQueryChildAdded(path, object);
+                    }
                 }
             }
         }
     }
 
     public void syncPropertyValue(Path path) {
-        Node node = MapDbService.get().of(path.parent());
-        String childNodeKey = path.lastElement();
-        if (node.has(path.lastElement())) {
-            Object object = node.get(path.lastElement());
-            fireValue(childNodeKey, path, path.parent(), object
-            );
-        } else {
-            fireValue(childNodeKey, path, path.parent(), "");
+        try (ReadView view = MapDbService.get().read()) {
+            Node node = view.of(path.parent());
+            String childNodeKey = path.lastElement();
+            if (node.has(path.lastElement())) {
+                Object object = node.get(path.lastElement());
+                fireValue(childNodeKey, path, path.parent(), object
+                );
+            } else {
+                fireValue(childNodeKey, path, path.parent(), "");
+            }
         }
     }
 
@@ -23,6 +23,45 @@ var __extends = this.__extends || function (d, b) {
 };
 	
 (function(window) {
+	// Names for pushed children, see io.helium.common.PushId: 8 characters of time followed by 12
+	// random ones, incremented within the same millisecond so names sort in the order of the pushes
+	var PushId = (function() {
+		var CHARS = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+		var lastTime = -1;
+		var lastRandom = [];
+		return {
+			generate: function() {
+				var time = new Date().getTime();
+				var i;
+				if (time <= lastTime) {
+					time = lastTime;
+					for (i = 11; i >= 0 && lastRandom[i] === 63; i--) {
+						lastRandom[i] = 0;
+					}
+					if (i >= 0) {
+						lastRandom[i]++;
+					} else {
+						time = ++lastTime;
+					}
+				} else {
+					lastTime = time;
+					for (i = 0; i < 12; i++) {
+						lastRandom[i] = Math.floor(Math.random() * 64);
+					}
+				}
+				var id = "";
+				for (i = 0; i < 8; i++) {
+					id = CHARS.charAt(time % 64) + id;
+					time = Math.floor(time / 64);
+				}
+				for (i = 0; i < 12; i++) {
+					id += CHARS.charAt(lastRandom[i]);
+				}
+				return id;
+			}
+		};
+	})();
+
 	var Snapshot = (function() {
 		function Snapshot(message) {
 			this.nodePayload = message.payload;
@@ -68,10 +107,11 @@ var __extends = this.__extends || function (d, b) {
 	    function HeliumRPC(uri) {
 	        _super.call(this, uri);
 	    }
-	    HeliumRPC.prototype.attachListener = function (path, event_type) {
+	    HeliumRPC.prototype.attachListener = function (path, event_type, query) {
 	        _super.prototype.sendRpc.call(this, 'attachListener', {
 	    		path: path,
-	    		event_type: event_type
+	    		event_type: event_type,
+	    		query: query
 	    	});
 	    };
 	    HeliumRPC.prototype.detachListener = function (path, event_type) {
@@ -98,23 +138,26 @@ var __extends = this.__extends || function (d, b) {
 	    		data: data
 	    	});
 	    };
-	    HeliumRPC.prototype.push = function (path, name, data) {
+	    HeliumRPC.prototype.push = function (path, name, data, ttl) {
 	        _super.prototype.sendRpc.call(this, 'push', {
 	    		path: path,
 	    		name: name,
-	    		data: data
+	    		data: data,
+	    		ttl: ttl
 	    	});
 	    };
-	    HeliumRPC.prototype.set = function (path, data) {
+	    HeliumRPC.prototype.set = function (path, data, ttl) {
 	        _super.prototype.sendRpc.call(this, 'set', {
 	    		path: path,
-	    		data: data
+	    		data: data,
+	    		ttl: ttl
 	    	});
 	    };
-	    HeliumRPC.prototype.update = function (path, data) {
+	    HeliumRPC.prototype.update = function (path, data, ttl) {
 	        _super.prototype.sendRpc.call(this, 'update', {
 	    		path: path,
-	    		data: data
+	    		data: data,
+	    		ttl: ttl
 	    	});
 	    };
 	    HeliumRPC.prototype.delete = function (path) {
@@ -128,17 +171,19 @@ var __extends = this.__extends || function (d, b) {
 	    		password: password
 	    	});
 	    };
-	    HeliumRPC.prototype.pushOnDisconnect = function (path, name, payload) {
+	    HeliumRPC.prototype.pushOnDisconnect = function (path, name, payload, ttl) {
 	        _super.prototype.sendRpc.call(this, 'pushOnDisconnect', {
 	    		path: path,
 	    		name: name,
-	    		payload: payload
+	    		payload: payload,
+	    		ttl: ttl
 	    	});
 	    };
-	    HeliumRPC.prototype.setOnDisconnect = function (path, data) {
+	    HeliumRPC.prototype.setOnDisconnect = function (path, data, ttl) {
 	        _super.prototype.sendRpc.call(this, 'setOnDisconnect', {
 	    		path: path,
-	    		data: data
+	    		data: data,
+	    		ttl: ttl
 	    	});
 	    };
 	    HeliumRPC.prototype.updateOnDisconnect = function (path, data) {
@@ -162,13 +207,13 @@ var __extends = this.__extends || function (d, b) {
 			this.path = path;
 		}
 
-		HeliumOnDisconnect.prototype.push = function(payload) {
-			var name = UUID.generate();
-			this.con.pushOnDisconnect(this.path, name, payload);
+		HeliumOnDisconnect.prototype.push = function(payload, ttl) {
+			var name = PushId.generate();
+			this.con.pushOnDisconnect(this.path, name, payload, ttl);
 		};
 
-		HeliumOnDisconnect.prototype.set = function(payload) {
-			this.con.setOnDisconnect(this.path, payload);
+		HeliumOnDisconnect.prototype.set = function(payload, ttl) {
+			this.con.setOnDisconnect(this.path, payload, ttl);
 		};
 
 		HeliumOnDisconnect.prototype.update = function(payload) {
@@ -224,9 +269,11 @@ var __extends = this.__extends || function (d, b) {
 		Helium.prototype.child = function(childname) {
 			return new Helium(this.path + "/" + childname);
 		};
-		Helium.prototype.on = function(event_type, callback) {
+		// query limits child events to a range of children by name, e.g.
+		// {orderBy: "$key", startAt: "a", endAt: "m", limitToFirst: 50} or {limitToLast: 20}
+		Helium.prototype.on = function(event_type, callback, query) {
 			this.events[event_type] = callback;
-			this.rpc.attachListener(this.path, event_type);
+			this.rpc.attachListener(this.path, event_type, query);
 		};
 		Helium.prototype.once = function(event_type, callback) {
 			this.events_once[event_type] = callback;
@@ -248,21 +295,21 @@ var __extends = this.__extends || function (d, b) {
 		Helium.prototype.send = function(data) {
 			this.rpc.send(this.path, data);
 		};
-		Helium.prototype.push = function(data) {
-			var name = UUID.generate();
-			this.rpc.push(this.path, data, name);
+		Helium.prototype.push = function(data, ttl) {
+			var name = PushId.generate();
+			this.rpc.push(this.path, name, data, ttl);
 			return new Helium(this.path + "/" + name);
 		};
-		Helium.prototype.set = function(data) {
-			this.rpc.set(this.path, data);
+		Helium.prototype.set = function(data, ttl) {
+			this.rpc.set(this.path, data, ttl);
 			if (data != null) {
 				return new Helium(this.path);
 			} else {
 				return null;
 			}
 		};
-		Helium.prototype.update = function(content) {
-			this.rpc.update(this.path, data);
+		Helium.prototype.update = function(content, ttl) {
+			this.rpc.update(this.path, content, ttl);
 			if (content != null) {
 				return new Helium(this.path);
 			} else {
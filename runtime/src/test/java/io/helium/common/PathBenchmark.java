@@ -0,0 +1,167 @@
+package io.helium.common;
+
+import com.google.common.base.Strings;
+
+import java.util.Objects;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Compares {@link Path} with the string based implementation it replaced, kept below as LegacyPath. Every
+ * operation runs over the same paths, like the ones change logs and listeners carry, for a few rounds to
+ * warm up and then for the measured rounds. The result of every operation is consumed, so it can't be
+ * optimized away.
+ *
+ * Run with the number of measured rounds as argument, 5 without:
+ * java -cp ... io.helium.common.PathBenchmark 5
+ */
+public class PathBenchmark {
+    private static final int PATHS = 10000;
+    private static final int OPERATIONS = 1000000;
+    private static final int WARMUP_ROUNDS = 3;
+
+    private final String[] strings = new String[PATHS];
+    private final String[] names = new String[PATHS];
+    private final Path[] paths = new Path[PATHS];
+    private final LegacyPath[] legacyPaths = new LegacyPath[PATHS];
+    private long consumed = 0;
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        PathBenchmark benchmark = new PathBenchmark();
+        System.out.println(String.format("%-12s %14s %14s %8s", "operation", "legacy ops/s", "path ops/s", "speedup"));
+        benchmark.compareParsing("parse", rounds, Path::of, LegacyPath::of);
+        benchmark.compareAppending("append", rounds, (path, name) -> path.append(name).hashCode(),
+                (path, name) -> path.append(name).hashCode());
+        benchmark.compare("parent", rounds, path -> path.parent().hashCode(), path -> path.parent().hashCode());
+        benchmark.compare("lastElement", rounds, path -> path.lastElement().length(), path -> path.lastElement().length());
+        benchmark.compare("toString", rounds, path -> path.toString().length(), path -> path.toString().length());
+        benchmark.compare("hashCode", rounds, Path::hashCode, LegacyPath::hashCode);
+        benchmark.compare("toArray", rounds, path -> path.toArray().length, path -> path.toArray().length);
+        System.out.println("consumed " + benchmark.consumed);
+    }
+
+    private PathBenchmark() {
+        Random random = new Random(42);
+        String[] roots = {"users", "messages", "presence", "rooms", "rules"};
+        for (int i = 0; i < PATHS; i++) {
+            StringBuilder path = new StringBuilder("/").append(roots[random.nextInt(roots.length)]);
+            int depth = 1 + random.nextInt(5);
+            for (int level = 1; level < depth; level++) {
+                path.append("/").append(level == 1 ? "user" + random.nextInt(1000) : "field" + random.nextInt(20));
+            }
+            strings[i] = path.toString();
+            names[i] = "child" + random.nextInt(100);
+            paths[i] = Path.of(strings[i]);
+            legacyPaths[i] = LegacyPath.of(strings[i]);
+        }
+    }
+
+    private void compareParsing(String operation, int rounds, Function<String, Path> path, Function<String, LegacyPath> legacy) {
+        measure(operation, rounds, i -> path.apply(strings[i]).hashCode(), i -> legacy.apply(strings[i]).hashCode());
+    }
+
+    private void compare(String operation, int rounds, ToIntFunction<Path> path, ToIntFunction<LegacyPath> legacy) {
+        measure(operation, rounds, i -> path.applyAsInt(paths[i]), i -> legacy.applyAsInt(legacyPaths[i]));
+    }
+
+    private void compareAppending(String operation, int rounds, Appender<Path> path, Appender<LegacyPath> legacy) {
+        measure(operation, rounds, i -> path.append(paths[i], names[i]), i -> legacy.append(legacyPaths[i], names[i]));
+    }
+
+    private void measure(String operation, int rounds, IndexOperation path, IndexOperation legacy) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            run(legacy);
+            run(path);
+        }
+        long legacyNanos = 0;
+        long pathNanos = 0;
+        for (int i = 0; i < rounds; i++) {
+            legacyNanos += run(legacy);
+            pathNanos += run(path);
+        }
+        double legacyRate = OPERATIONS * rounds * 1e9 / legacyNanos;
+        double pathRate = OPERATIONS * rounds * 1e9 / pathNanos;
+        System.out.println(String.format("%-12s %14.0f %14.0f %7.1fx", operation, legacyRate, pathRate, pathRate / legacyRate));
+    }
+
+    /**
+     * @return nanoseconds taken
+     */
+    private long run(IndexOperation operation) {
+        long start = System.nanoTime();
+        long result = 0;
+        for (int i = 0; i < OPERATIONS; i++) {
+            result += operation.apply(i % PATHS);
+        }
+        consumed += result;
+        return System.nanoTime() - start;
+    }
+
+    private interface IndexOperation {
+        int apply(int index);
+    }
+
+    private interface Appender<T> {
+        int append(T path, String name);
+    }
+
+    /**
+     * {@link Path} as it was before, rebuilding its string form for every operation
+     */
+    private static final class LegacyPath {
+        private String[] elements;
+
+        private LegacyPath(String path) {
+            String workPath = path.replaceAll("//", "/");
+            if (!Strings.isNullOrEmpty(workPath)) {
+                this.elements = workPath.startsWith("/") ? workPath.substring(1).split("/") : workPath.split("/");
+            }
+            if (elements == null) {
+                this.elements = new String[]{};
+            }
+        }
+
+        private static LegacyPath of(String path) {
+            return new LegacyPath(path);
+        }
+
+        private String lastElement() {
+            if (elements.length == 0) {
+                return null;
+            }
+            return elements[elements.length - 1];
+        }
+
+        private LegacyPath parent() {
+            String output = "";
+            for (int i = 0; i < elements.length - 1; i++) {
+                output += "/" + elements[i];
+            }
+            return new LegacyPath(output);
+        }
+
+        private LegacyPath append(String element) {
+            return new LegacyPath(toString() + "/" + element);
+        }
+
+        private String[] toArray() {
+            return elements;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(toString());
+        }
+
+        @Override
+        public String toString() {
+            String output = "";
+            for (String element : elements) {
+                output += "/" + element;
+            }
+            return output;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.Lists;
+import io.helium.common.Path;
+import io.helium.event.changelog.ChangeLog;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reads of accepted change logs, before they are applied, have to match the reads after they were
+ */
+public class AcceptedWritesTest {
+    private static final Path ROOT = Path.of("/accepted");
+
+    private final StoreFixture.RandomWrites writes = new StoreFixture.RandomWrites(7);
+
+    @Test
+    public void readsOfAcceptedChangeLogsMatchTheAppliedState() {
+        MapDbService service = StoreFixture.get();
+        for (int round = 0; round < 50; round++) {
+            JsonObject before = service.of(ROOT).toJsonObject();
+            List<ChangeLog> accepted = Lists.newArrayList();
+            try (ReadView old = service.read()) {
+                for (int i = writes.count(3); i > 0; i--) {
+                    ChangeLog changeLog = writes.changeLog(ROOT, writes.count(4));
+                    StoreFixture.accept(changeLog);
+                    accepted.add(changeLog);
+                }
+                JsonObject live = service.of(ROOT).toJsonObject();
+                JsonObject fresh;
+                try (ReadView view = service.read()) {
+                    fresh = view.of(ROOT).toJsonObject();
+                }
+                assertEquals(before, old.of(ROOT).toJsonObject());
+                StoreFixture.apply(accepted.toArray(new ChangeLog[accepted.size()]));
+                JsonObject applied = service.of(ROOT).toJsonObject();
+                assertEquals(applied, live);
+                assertEquals(applied, fresh);
+            }
+        }
+    }
+}
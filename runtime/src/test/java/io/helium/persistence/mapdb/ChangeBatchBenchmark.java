@@ -0,0 +1,97 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import io.helium.common.Path;
+import io.helium.event.changelog.ChangeLog;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ * Compares applying change logs one by one, with a commit after each of them, to applying them in
+ * batches like {@link PersistenceExecutor} does, with superseded writes dropped and one commit per batch.
+ * The change logs are skewed towards few users, like presence and counter updates of active users are.
+ *
+ * Run with the batch size as argument, 256 without:
+ * java -cp ... io.helium.persistence.mapdb.ChangeBatchBenchmark 256
+ */
+public class ChangeBatchBenchmark {
+    private static final int CHANGE_LOGS = 20000;
+    private static final int USERS = 2000;
+
+    private final Random random = new Random(42);
+
+    public static void main(String[] args) {
+        int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        File directory = Files.createTempDir();
+        MapDbService.configure(new JsonObject().putString("directory", new File(directory, "nodes").getPath()));
+        MapDbService service = MapDbService.get();
+        System.out.println(String.format("%-10s %8s %14s %12s %12s", "batching", "size", "changelogs/s", "writes", "commits"));
+        ChangeBatchBenchmark benchmark = new ChangeBatchBenchmark();
+        // warm up
+        benchmark.run(service, benchmark.changeLogs("warmup"), batchSize);
+        print("off", 1, benchmark.run(service, benchmark.changeLogs("unbatched"), 1));
+        print("on", batchSize, benchmark.run(service, benchmark.changeLogs("batched"), batchSize));
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        System.exit(0);
+    }
+
+    private static void print(String batching, int batchSize, long[] result) {
+        System.out.println(String.format("%-10s %8d %14.0f %12d %12d", batching, batchSize,
+                CHANGE_LOGS * 1e9 / result[0], result[1], result[2]));
+    }
+
+    /**
+     * @return nanoseconds taken, writes applied and commits
+     */
+    private long[] run(MapDbService service, List<ChangeLog> changeLogs, int batchSize) {
+        long writes = 0;
+        long commits = 0;
+        long start = System.nanoTime();
+        for (List<ChangeLog> changeLogBatch : Lists.partition(changeLogs, batchSize)) {
+            ChangeBatch batch = new ChangeBatch();
+            changeLogBatch.forEach(batch::add);
+            writes += batch.size();
+            service.publish(batch.apply(service), commits++);
+        }
+        return new long[]{System.nanoTime() - start, writes, commits};
+    }
+
+    /**
+     * Change logs like the ones the endpoints send: 70% value updates, 20% merged objects and 10% deletes
+     */
+    private List<ChangeLog> changeLogs(String name) {
+        Path users = Path.of("/" + name);
+        List<ChangeLog> changeLogs = Lists.newArrayListWithCapacity(CHANGE_LOGS);
+        for (int i = 0; i < CHANGE_LOGS; i++) {
+            ChangeLog changeLog = new ChangeLog(new JsonArray());
+            Path user = users.append("user" + random.nextInt(random.nextInt(USERS) + 1));
+            int operation = random.nextInt(10);
+            if (operation < 7) {
+                changeLog.addChildChangedLogEntry("online", user, user.parent(), random.nextBoolean(), 0);
+                changeLog.addChildChangedLogEntry("seen", user, user.parent(), i, 0);
+            }
+            else if (operation < 9) {
+                JsonObject session = new JsonObject().putString("device", "device" + random.nextInt(4))
+                        .putNumber("started", i);
+                changeLog.addChildAddedLogEntry("session", user, user.parent(), session, 2);
+            }
+            else {
+                changeLog.addChildDeletedLogEntry(user, "session", null);
+            }
+            changeLogs.add(changeLog);
+        }
+        return changeLogs;
+    }
+}
@@ -0,0 +1,78 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.Lists;
+import io.helium.common.Path;
+import io.helium.event.changelog.ChangeLog;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChangeBatchTest {
+    private final StoreFixture.RandomWrites writes = new StoreFixture.RandomWrites(16);
+
+    @Test
+    public void aReplaceDropsTheEarlierWritesBelowIt() {
+        Path path = Path.of("/batches/superseded");
+        ChangeLog[] changeLogs = {
+                set(path.append("a"), "x", 1),
+                set(path.append("a"), "y", new JsonObject().putNumber("z", 1)),
+                set(path, "b", new JsonObject().putNumber("x", 1)),
+                set(path, "a", "value"),
+                set(path.append("b"), "x", 2)};
+        ChangeBatch batch = new ChangeBatch();
+        for (ChangeLog changeLog : changeLogs) {
+            batch.add(changeLog);
+        }
+        assertEquals(5, batch.changeLogs());
+        // a/x and a/y are replaced by a, the merge into b stays
+        assertEquals(3, batch.size());
+        StoreFixture.apply(changeLogs);
+        assertEquals(new JsonObject().putString("a", "value").putObject("b", new JsonObject().putNumber("x", 2)),
+                StoreFixture.get().of(path).toJsonObject());
+    }
+
+    @Test
+    public void aDeleteKeepsTheParentTheDroppedWritesCreated() {
+        Path path = Path.of("/batches/deleted");
+        StoreFixture.apply(set(path, "a", 1));
+        StoreFixture.apply(
+                set(path.append("a"), "b", new JsonObject().putNumber("x", 1)),
+                set(path.append("a"), "b", null));
+        assertEquals(new JsonObject().putObject("a", new JsonObject()), StoreFixture.get().of(path).toJsonObject());
+    }
+
+    @Test
+    public void aBatchWritesWhatItsChangeLogsWriteOneByOne() {
+        MapDbService service = StoreFixture.get();
+        Path batched = Path.of("/batches/batched");
+        Path single = Path.of("/batches/single");
+        for (int round = 0; round < 20; round++) {
+            List<ChangeLog> changeLogs = Lists.newArrayList();
+            for (int i = 0; i < 10; i++) {
+                StoreFixture.Write write = writes.next();
+                changeLogs.add(write.changeLog(batched));
+                StoreFixture.apply(write.changeLog(single));
+            }
+            StoreFixture.apply(changeLogs.toArray(new ChangeLog[changeLogs.size()]));
+            assertEquals(service.of(single).toJsonObject(), service.of(batched).toJsonObject());
+        }
+    }
+
+    /**
+     * @return change log setting the child name of path to value, deleting it for null
+     */
+    private static ChangeLog set(Path path, String name, Object value) {
+        ChangeLog changeLog = new ChangeLog(new JsonArray());
+        if (value == null) {
+            changeLog.addChildDeletedLogEntry(path, name, null);
+        }
+        else {
+            changeLog.addChildAddedLogEntry(name, path, path.parent(), value, 0);
+        }
+        return changeLog;
+    }
+}
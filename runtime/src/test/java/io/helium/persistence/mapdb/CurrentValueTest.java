@@ -0,0 +1,51 @@
+package io.helium.persistence.mapdb;
+
+import io.helium.common.Path;
+import io.helium.event.changelog.ChangeLog;
+import io.helium.event.changelog.ValueChanged;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.assertEquals;
+
+public class CurrentValueTest {
+    private static final Path PATH = Path.of("/deltas/a");
+
+    @Test
+    public void aDeltaIsReadAsOfItsChangeLog() {
+        MapDbService service = StoreFixture.get();
+        ChangeLog seeded = new ChangeLog(new JsonArray());
+        seeded.addChildAddedLogEntry("c", PATH, PATH.parent(), 1, 0);
+        StoreFixture.apply(seeded);
+
+        ChangeLog written = new ChangeLog(new JsonArray());
+        written.addChildAddedLogEntry("x", PATH.append("b"), PATH, 1, 0);
+        written.addValueChangedDeltaLogEntry(PATH.lastElement(), PATH, PATH.parent(),
+                new JsonObject().putObject("b", new JsonObject().putNumber("x", 1)));
+        ChangeLog deleted = new ChangeLog(new JsonArray());
+        deleted.addChildDeletedLogEntry(PATH, "b", null);
+        deleted.addValueChangedDeltaLogEntry(PATH.lastElement(), PATH, PATH.parent(),
+                new JsonObject().putValue("b", null));
+        ChangeLog rewritten = new ChangeLog(new JsonArray());
+        rewritten.addChildAddedLogEntry("z", PATH.append("b"), PATH, 1, 0);
+        rewritten.addValueChangedDeltaLogEntry(PATH.lastElement(), PATH, PATH.parent(),
+                new JsonObject().putObject("b", new JsonObject().putNumber("z", 1)));
+        StoreFixture.accept(written);
+        StoreFixture.accept(deleted);
+        StoreFixture.accept(rewritten);
+
+        ValueChanged event = ValueChanged.of(written.get(1));
+        JsonObject before = new JsonObject().putNumber("c", 1);
+        assertEquals(before.copy().putObject("b", new JsonObject().putNumber("x", 1)),
+                service.currentValue(event.changedPath(), event));
+        assertEquals(before, service.currentValue(event.changedPath(), ValueChanged.of(deleted.get(1))));
+
+        JsonObject after = before.copy().putObject("b", new JsonObject().putNumber("z", 1));
+        assertEquals(after, service.currentValue(event.changedPath(), ValueChanged.of(rewritten.get(1))));
+
+        // superseded once a later change log is published, the last version holds the later writes
+        StoreFixture.apply(written, deleted, rewritten);
+        assertEquals(after, service.currentValue(event.changedPath(), event));
+    }
+}
@@ -0,0 +1,76 @@
+package io.helium.persistence.mapdb;
+
+import io.helium.common.Path;
+import org.junit.Test;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+import static org.junit.Assert.assertEquals;
+
+public class NodeCountsTest {
+    private static final Path ROOT = Path.of("/counts");
+
+    private final StoreFixture.RandomWrites writes = new StoreFixture.RandomWrites(42);
+
+    @Test
+    public void countsFollowRandomWrites() {
+        for (int i = 1; i <= 200; i++) {
+            StoreFixture.apply(writes.changeLog(ROOT, 10));
+            if (i % 20 == 0) {
+                assertCounts(StoreFixture.get().of(ROOT));
+            }
+        }
+    }
+
+    @Test
+    public void rebuiltCountsSkipOrphansAndHiddenEntries() {
+        DB db = DBMaker.newMemoryDB().make();
+        StorageEngine nodes = new MemoryEngine();
+        // left behind by a crash between the commits of the nodes and the store
+        nodes.put(key("/a"), Node.OBJECT);
+        nodes.put(key("/a/k/x"), 1);
+        nodes.put(key("/_"), Node.OBJECT);
+        nodes.put(key("/_/m"), Node.OBJECT);
+        nodes.put(key("/_/m/n"), 1);
+        nodes.put(key("/d/e"), Node.OBJECT);
+        nodes.put(key("/d/e/f"), 1);
+        nodes.commit();
+        NodeTombstones tombstones = NodeTombstones.open(db);
+        tombstones.add(key("/d"));
+        NodeCounts counts = NodeCounts.rebuild(db, nodes, tombstones);
+        assertEquals(2, counts.children(NodeKey.ROOT));
+        assertEquals(4, counts.descendants(NodeKey.ROOT));
+        assertEquals(0, counts.children(key("/a")));
+        assertEquals(1, counts.children(key("/_")));
+        assertEquals(2, counts.descendants(key("/_")));
+        assertEquals(1, counts.children(key("/_/m")));
+        assertEquals(0, counts.children(key("/d/e")));
+        db.close();
+    }
+
+    private static String key(String path) {
+        return NodeKey.of(Path.of(path));
+    }
+
+    /**
+     * Compares the counts of node and its descendants with the children read from the store
+     *
+     * @return number of descendants of node
+     */
+    private static long assertCounts(Node node) {
+        long objects = 0;
+        long descendants = 0;
+        for (String name : node.keys()) {
+            Object child = node.get(name);
+            descendants++;
+            if (child instanceof Node) {
+                objects++;
+                descendants += assertCounts((Node) child);
+            }
+        }
+        assertEquals(node.getPathToNode().toString(), node.keys().size(), node.length());
+        assertEquals(node.getPathToNode().toString(), objects, Node.childCount(node));
+        assertEquals(node.getPathToNode().toString(), descendants, node.descendantCount());
+        return descendants;
+    }
+}
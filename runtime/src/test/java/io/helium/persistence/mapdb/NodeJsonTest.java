@@ -0,0 +1,40 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.util.concurrent.Futures;
+import io.helium.common.Path;
+import io.helium.event.changelog.ChangeLog;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+
+public class NodeJsonTest {
+
+    @Test
+    public void unreachableEntriesAreLeftOut() {
+        Path path = Path.of("/json/orphans");
+        ChangeLog changeLog = new ChangeLog(new JsonArray());
+        changeLog.addChildAddedLogEntry("a", path, path.parent(), new JsonObject()
+                .putObject("b", new JsonObject().putNumber("c", 1)), 0);
+        StoreFixture.apply(changeLog);
+        // entries whose parent node is missing, as a crash between the commits of the store can leave them
+        String a = NodeKey.of(path.append("a"));
+        NodePartition partition = StoreFixture.get().partition(a);
+        Futures.getUnchecked(partition.submit(() -> {
+            partition.nodes().put(NodeKey.child(NodeKey.child(a, "x"), "y"), 2);
+            partition.nodes().put(NodeKey.child(NodeKey.child(NodeKey.child(a, "b"), "d"), "e"), 3);
+        }));
+        StoreFixture.publish();
+
+        Node node = StoreFixture.get().of(path);
+        JsonObject expected = new JsonObject().putObject("a", new JsonObject()
+                .putObject("b", new JsonObject().putNumber("c", 1)));
+        assertEquals(expected, node.toJsonObject());
+        StringWriter written = new StringWriter();
+        node.write(written, 0, 0);
+        assertEquals(expected, new JsonObject(written.toString()));
+    }
+}
@@ -0,0 +1,55 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.ImmutableList;
+import io.helium.common.Path;
+import io.helium.event.changelog.ChangeLog;
+import io.helium.persistence.queries.RangeQuery;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.assertEquals;
+
+public class NodeQueryTest {
+
+    @Test
+    public void rangesByNameMergeThePendingWrites() {
+        Path path = Path.of("/queries/byName");
+        ChangeLog stored = new ChangeLog(new JsonArray());
+        for (String name : ImmutableList.of("a", "b", "c", "d", "e")) {
+            stored.addChildAddedLogEntry(name, path, path.parent(), 1, 0);
+        }
+        StoreFixture.apply(stored);
+        ChangeLog pending = new ChangeLog(new JsonArray());
+        pending.addChildDeletedLogEntry(path, "b", 1);
+        pending.addChildAddedLogEntry("ab", path, path.parent(), 1, 0);
+        StoreFixture.accept(pending);
+
+        Node node = StoreFixture.get().of(path);
+        assertEquals(ImmutableList.of("a", "ab", "c"), node.keys(RangeQuery.of(query("limitToFirst", 3))));
+        assertEquals(ImmutableList.of("c", "d", "e"), node.keys(RangeQuery.of(query("limitToLast", 3))));
+        assertEquals(ImmutableList.of("ab", "c"), node.keys(RangeQuery.of(query("startAt", "ab").putString("endAt", "c"))));
+    }
+
+    @Test
+    public void rangesByChildMergeThePendingWrites() {
+        Path path = Path.of("/queries/byChild");
+        ChangeLog stored = new ChangeLog(new JsonArray());
+        for (int i = 0; i < 5; i++) {
+            stored.addChildAddedLogEntry("c" + i, path, path.parent(), new JsonObject().putNumber("rank", i), 0);
+        }
+        StoreFixture.apply(stored);
+        ChangeLog pending = new ChangeLog(new JsonArray());
+        pending.addChildAddedLogEntry("c4", path, path.parent(), new JsonObject().putNumber("rank", -1), 0);
+        pending.addChildDeletedLogEntry(path, "c0", new JsonObject().putNumber("rank", 0));
+        StoreFixture.accept(pending);
+
+        Node node = StoreFixture.get().of(path);
+        assertEquals(ImmutableList.of("c4", "c1"), node.keys(RangeQuery.of(query("limitToFirst", 2).putString("orderBy", "rank"))));
+        assertEquals(ImmutableList.of("c3"), node.keys(RangeQuery.of(query("limitToLast", 1).putString("orderBy", "rank"))));
+    }
+
+    private static JsonObject query(String name, Object value) {
+        return new JsonObject().putValue(name, value);
+    }
+}
@@ -0,0 +1,82 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import io.helium.common.Path;
+import io.helium.event.changelog.ChangeLog;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NodeTombstonesTest {
+    private static final Path PARENT = Path.of("/tombstones");
+
+    @Test
+    public void aDeletedSubTreeIsHiddenUntilItIsReclaimed() {
+        MapDbService service = StoreFixture.get();
+        String key = NodeKey.of(PARENT.append("reclaimed"));
+        NodePartition partition = service.partition(key);
+        StoreFixture.apply(set("reclaimed", subTree()));
+        try (ReadView before = service.read()) {
+            StoreFixture.apply(delete("reclaimed"));
+            assertFalse(service.exists(PARENT.append("reclaimed")));
+            assertEquals(0, service.of(PARENT).length());
+            assertTrue(partition.tombstones().contains(key));
+            assertEquals(200, stored(partition, key));
+
+            while (partition.tombstones().contains(key)) {
+                StoreFixture.reclaim(40);
+            }
+            assertEquals(0, stored(partition, key));
+            assertEquals(subTree(), before.of(PARENT.append("reclaimed")).toJsonObject());
+        }
+    }
+
+    @Test
+    public void aWriteBelowATombstoneDoesNotBringBackTheDeletedNodes() {
+        MapDbService service = StoreFixture.get();
+        Path path = PARENT.append("rewritten");
+        StoreFixture.apply(set("rewritten", subTree()));
+        StoreFixture.apply(delete("rewritten"));
+        ChangeLog changeLog = new ChangeLog(new JsonArray());
+        changeLog.addChildAddedLogEntry("c0", path, PARENT, new JsonObject().putNumber("x", -1), 0);
+        StoreFixture.apply(changeLog);
+
+        assertEquals(ImmutableList.of("c0"), service.of(path).keys());
+        assertEquals(new JsonObject().putObject("c0", new JsonObject().putNumber("x", -1)),
+                service.of(path).toJsonObject());
+        assertEquals(2, service.of(path).descendantCount());
+        assertEquals(2, stored(service.partition(NodeKey.of(path)), NodeKey.of(path)));
+    }
+
+    /**
+     * @return 50 children with 3 descendants each
+     */
+    private static JsonObject subTree() {
+        JsonObject value = new JsonObject();
+        for (int i = 0; i < 50; i++) {
+            value.putObject("c" + i, new JsonObject().putNumber("x", i).putObject("y", new JsonObject().putNumber("z", i)));
+        }
+        return value;
+    }
+
+    private static long stored(NodePartition partition, String key) {
+        return Iterators.size(partition.nodes().range(NodeKey.subTreeStart(key), NodeKey.subTreeEnd(key)));
+    }
+
+    private static ChangeLog set(String name, Object value) {
+        ChangeLog changeLog = new ChangeLog(new JsonArray());
+        changeLog.addChildAddedLogEntry(name, PARENT, PARENT.parent(), value, 0);
+        return changeLog;
+    }
+
+    private static ChangeLog delete(String name) {
+        ChangeLog changeLog = new ChangeLog(new JsonArray());
+        changeLog.addChildDeletedLogEntry(PARENT, name, null);
+        return changeLog;
+    }
+}
@@ -0,0 +1,97 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import io.helium.common.Path;
+import io.helium.event.changelog.ChangeLog;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PendingWritesTest {
+    private final PendingWrites writes = new PendingWrites(null);
+
+    @Test
+    public void readsSeeTheChangeLogsAcceptedWhenTheyStarted() {
+        writes.accept(set("/a", "b", 1), 1);
+        writes.accept(set("/a", "b", 2), 2);
+        assertEquals(2L, writes.accepted());
+        assertEquals(1, writes.find(key("/a/b"), 1).value());
+        assertEquals(2, writes.find(key("/a/b"), 2).value());
+        assertNull(writes.find(key("/a/b"), 0));
+        assertNull(writes.find(key("/a"), 0));
+    }
+
+    @Test
+    public void aChangeLogIsSeenWhole() {
+        ChangeLog changeLog = set("/a", "b", 1);
+        changeLog.addChildAddedLogEntry("c", Path.of("/a"), Path.of("/"), 2, 0);
+        writes.accept(changeLog, 1);
+        assertEquals(ImmutableList.of("b", "c"), writes.children(key("/a"), Collections.<String>emptyList(), 1));
+        assertEquals(Collections.emptyList(), writes.children(key("/a"), Collections.<String>emptyList(), 0));
+    }
+
+    @Test
+    public void aDeleteHidesTheStoreAndOlderWritesOnly() {
+        writes.accept(set("/a", "b", 1), 1);
+        writes.accept(delete("/", "a"), 2);
+        writes.accept(set("/a", "c", 3), 3);
+        List<String> stored = ImmutableList.of("x");
+        assertEquals(ImmutableList.of("b", "x"), writes.children(key("/a"), stored, 1));
+        assertEquals(Collections.emptyList(), writes.children(key("/a"), stored, 2));
+        assertEquals(ImmutableList.of("c"), writes.children(key("/a"), stored, 3));
+        assertNull(writes.find(key("/a/b"), 3).value());
+        assertEquals(1, writes.find(key("/a/b"), 1).value());
+        assertNull(writes.find(key("/a/x"), 3).value());
+        assertEquals(3, writes.find(key("/a/c"), 3).value());
+    }
+
+    @Test
+    public void subTreeMergesThePendingWrites() {
+        writes.accept(set("/a", "b", 1), 1);
+        writes.accept(set("/a/c", "d", 2), 2);
+        List<Map.Entry<String, Object>> stored = ImmutableList.<Map.Entry<String, Object>>of(
+                entry("/a/b", 0), entry("/a/e", 0));
+        assertEquals(ImmutableList.of(entry("/a/b", 1), entry("/a/c", Node.OBJECT), entry("/a/c/d", 2), entry("/a/e", 0)),
+                Lists.newArrayList(writes.subTree(key("/a"), stored.iterator(), 2)));
+        assertEquals(ImmutableList.of(entry("/a/b", 1), entry("/a/e", 0)),
+                Lists.newArrayList(writes.subTree(key("/a"), stored.iterator(), 1)));
+    }
+
+    @Test
+    public void aReplacedNodeHidesItsStoredSubTree() {
+        writes.accept(set("/a", "b", "value"), 1);
+        List<Map.Entry<String, Object>> stored = ImmutableList.<Map.Entry<String, Object>>of(
+                entry("/a/b", Node.OBJECT), entry("/a/b/c", 0), entry("/a/d", 0));
+        assertEquals(ImmutableList.of(entry("/a/b", "value"), entry("/a/d", 0)),
+                Lists.newArrayList(writes.subTree(key("/a"), stored.iterator(), 1)));
+    }
+
+    private static ChangeLog set(String path, String name, Object value) {
+        ChangeLog changeLog = new ChangeLog(new JsonArray());
+        changeLog.addChildAddedLogEntry(name, Path.of(path), Path.of(path).parent(), value, 0);
+        return changeLog;
+    }
+
+    private static ChangeLog delete(String path, String name) {
+        ChangeLog changeLog = new ChangeLog(new JsonArray());
+        changeLog.addChildDeletedLogEntry(Path.of(path), name, new JsonObject());
+        return changeLog;
+    }
+
+    private static String key(String path) {
+        return NodeKey.of(Path.of(path));
+    }
+
+    private static Map.Entry<String, Object> entry(String path, Object value) {
+        return Maps.immutableEntry(key(path), value);
+    }
+}
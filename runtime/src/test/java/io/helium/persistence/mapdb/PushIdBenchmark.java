@@ -0,0 +1,100 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.io.Files;
+import io.helium.common.PushId;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ *
+ * Compares names of pushed children created by {@link PushId} with random UUIDs. Messages are pushed
+ * into one node of a fresh store for every kind of name, written like change logs write them and
+ * committed as often as journal checkpoints under load. The rate is reported for every quarter of the
+ * pushes, so a rate dropping while the node grows shows up.
+ *
+ * Run with the store profile to use as argument, the default profile without:
+ * java -cp ... io.helium.persistence.mapdb.PushIdBenchmark raf
+ */
+public class PushIdBenchmark {
+    private static final int PUSHES = 400000;
+    private static final int COMMIT_INTERVAL = 4096;
+    private static final String MESSAGES = NodeKey.child(NodeKey.ROOT, "messages");
+
+    private BTreeMap<String, Object> nodes;
+    private DB db;
+    private int uncommitted = 0;
+
+    public static void main(String[] args) throws Exception {
+        StoreProfile profile = StoreProfile.of(args.length > 0 ? args[0] : StoreProfile.DEFAULT);
+        System.out.println(String.format("%-6s %12s %12s %12s %12s %12s", "names", "1st pushes/s", "2nd pushes/s",
+                "3rd pushes/s", "4th pushes/s", "size (KB)"));
+        new PushIdBenchmark().run(profile, "uuid", () -> UUID.randomUUID().toString().replaceAll("-", ""));
+        new PushIdBenchmark().run(profile, "push", () -> PushId.get().next());
+    }
+
+    private void run(StoreProfile profile, String label, Supplier<String> names) {
+        File directory = Files.createTempDir();
+        db = profile.maker(new File(directory, "nodes")).make();
+        nodes = db.createTreeMap("tree")
+                .nodeSize(profile.nodeSize("tree"))
+                .keySerializer(NodeKeySerializer.INSTANCE)
+                .valueSerializer(NodeValueSerializer.INSTANCE)
+                .make();
+        try {
+            StringBuilder rates = new StringBuilder();
+            for (int quarter = 0; quarter < 4; quarter++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < PUSHES / 4; i++) {
+                    push(names.get(), quarter * PUSHES / 4 + i);
+                }
+                rates.append(String.format(" %12.0f", PUSHES / 4 * 1e9 / (System.nanoTime() - start)));
+            }
+            db.commit();
+            System.out.println(String.format("%-6s%s %12d", label, rates, size(directory) / 1024));
+        }
+        finally {
+            db.close();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * Writes a message like {@link Node#put(String, Object)} does for a pushed object
+     */
+    private void push(String name, int message) {
+        if (!Node.isObject(nodes.get(MESSAGES))) {
+            nodes.put(MESSAGES, Node.OBJECT);
+        }
+        String key = NodeKey.child(MESSAGES, name);
+        nodes.put(key, Node.OBJECT);
+        nodes.put(NodeKey.child(key, "user"), "user" + (message % 1000));
+        nodes.put(NodeKey.child(key, "text"), "Message number " + message);
+        nodes.put(NodeKey.child(key, "time"), System.currentTimeMillis());
+        uncommitted += 4;
+        if (uncommitted >= COMMIT_INTERVAL) {
+            db.commit();
+            uncommitted = 0;
+        }
+    }
+
+    private static long size(File directory) {
+        long size = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+}
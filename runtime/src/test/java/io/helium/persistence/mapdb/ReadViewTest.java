@@ -0,0 +1,61 @@
+package io.helium.persistence.mapdb;
+
+import io.helium.common.Path;
+import io.helium.event.changelog.ChangeLog;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReadViewTest {
+
+    @Test
+    public void aViewKeepsTheVersionItWasAcquiredWith() {
+        StoreFixture.apply(set("/views/isolated", "a", 1));
+        MapDbService service = StoreFixture.get();
+        try (ReadView view = service.read()) {
+            StoreFixture.apply(set("/views/isolated", "a", 2));
+            StoreFixture.apply(set("/views/isolated", "b", 3));
+            assertEquals(1, view.of(Path.of("/views/isolated")).get("a"));
+            assertFalse(view.of(Path.of("/views/isolated")).has("b"));
+            assertTrue(view.isolated());
+        }
+        try (ReadView view = service.read()) {
+            assertEquals(2, view.of(Path.of("/views/isolated")).get("a"));
+            assertEquals(3, view.of(Path.of("/views/isolated")).get("b"));
+        }
+    }
+
+    @Test
+    public void aViewSeesTheChangeLogsAcceptedBeforeIt() {
+        StoreFixture.apply(set("/views/pending", "a", 1));
+        MapDbService service = StoreFixture.get();
+        StoreFixture.accept(set("/views/pending", "a", 2));
+        try (ReadView view = service.read()) {
+            StoreFixture.accept(set("/views/pending", "a", 3));
+            assertEquals(2, view.of(Path.of("/views/pending")).get("a"));
+        }
+        assertEquals(3, service.of(Path.of("/views/pending")).get("a"));
+    }
+
+    @Test
+    public void closedSnapshotsAreDropped() {
+        MapDbService service = StoreFixture.get();
+        NodePartition partition = service.partition(NodeKey.of(Path.of("/views/snapshots")));
+        for (int i = 0; i < 100; i++) {
+            try (ReadView view = service.read()) {
+                StoreFixture.apply(set("/views/snapshots", "a", i));
+                assertEquals(i > 0 ? Integer.valueOf(i - 1) : null, view.of(Path.of("/views/snapshots")).opt("a"));
+            }
+        }
+        assertTrue(partition.snapshots() + " snapshots are kept", partition.snapshots() <= 2);
+    }
+
+    private static ChangeLog set(String path, String name, Object value) {
+        ChangeLog changeLog = new ChangeLog(new JsonArray());
+        changeLog.addChildAddedLogEntry(name, Path.of(path), Path.of(path).parent(), value, 0);
+        return changeLog;
+    }
+}
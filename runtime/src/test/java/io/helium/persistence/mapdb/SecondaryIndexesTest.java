@@ -0,0 +1,106 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.Lists;
+import io.helium.common.Path;
+import io.helium.event.changelog.ChangeLog;
+import io.helium.persistence.queries.RangeQuery;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SecondaryIndexesTest {
+    private static final Path TASKS = Path.of("/tasks");
+    private static final String[] STATUS = {"open", "closed", "blocked"};
+
+    private final Random random = new Random(13);
+
+    @Test
+    public void indexedQueriesMatchAScanOfTheChildren() {
+        MapDbService service = StoreFixture.get();
+        String key = NodeKey.of(TASKS);
+        StoreFixture.apply(rule(new JsonArray().addString("status")));
+        assertTrue(service.partition(key).indexes().isIndexed(key, "status"));
+        assertFalse(service.partition(key).indexes().isIndexed(key, "priority"));
+        for (int round = 0; round < 40; round++) {
+            if (round == 20) {
+                StoreFixture.apply(rule(new JsonArray().addString("status").addString("priority")));
+                assertTrue(service.partition(key).indexes().isIndexed(key, "priority"));
+            }
+            ChangeLog changeLog = new ChangeLog(new JsonArray());
+            for (int i = 0; i < 20; i++) {
+                addRandomWrite(changeLog);
+            }
+            StoreFixture.apply(changeLog);
+            for (int i = 0; i < 10; i++) {
+                RangeQuery query = randomQuery();
+                assertEquals(query.toString(), scan(service.of(TASKS), query), service.of(TASKS).keys(query));
+            }
+        }
+    }
+
+    private static ChangeLog rule(JsonArray fields) {
+        ChangeLog changeLog = new ChangeLog(new JsonArray());
+        changeLog.addChildAddedLogEntry(TASKS.lastElement(), Path.of("/rules"), Path.of("/"),
+                new JsonObject().putArray(SecondaryIndexes.INDEX_ON, fields), 0);
+        return changeLog;
+    }
+
+    private void addRandomWrite(ChangeLog changeLog) {
+        String name = "task" + random.nextInt(50);
+        switch (random.nextInt(4)) {
+            case 0:
+                changeLog.addChildDeletedLogEntry(TASKS, name, null);
+                break;
+            case 1:
+                changeLog.addChildAddedLogEntry(name, TASKS, TASKS.parent(), "not an object", 0);
+                break;
+            default:
+                JsonObject task = new JsonObject().putString("status", STATUS[random.nextInt(STATUS.length)]);
+                if (random.nextBoolean()) {
+                    task.putNumber("priority", random.nextInt(10));
+                }
+                changeLog.addChildAddedLogEntry(name, TASKS, TASKS.parent(), task, 0);
+        }
+    }
+
+    private RangeQuery randomQuery() {
+        JsonObject params = new JsonObject().putString("orderBy", random.nextBoolean() ? "status" : "priority");
+        if (params.getString("orderBy").equals("status")) {
+            params.putString("equalTo", STATUS[random.nextInt(STATUS.length)]);
+        }
+        else {
+            params.putNumber("startAt", random.nextInt(5)).putNumber("endAt", 5 + random.nextInt(5));
+        }
+        if (random.nextBoolean()) {
+            params.putNumber(random.nextBoolean() ? "limitToFirst" : "limitToLast", 1 + random.nextInt(5));
+        }
+        return RangeQuery.of(params);
+    }
+
+    /**
+     * @return the names within query, from the values of all children
+     */
+    private static List<String> scan(Node node, RangeQuery query) {
+        List<String> names = Lists.newArrayList();
+        for (String name : node.keys()) {
+            Object child = node.get(name);
+            if (child instanceof Node && query.inRange(((Node) child).get(query.orderByChild()))) {
+                names.add(name);
+            }
+        }
+        names.sort((a, b) -> {
+            int order = RangeQuery.compare(((Node) node.get(a)).get(query.orderByChild()),
+                    ((Node) node.get(b)).get(query.orderByChild()));
+            return order != 0 ? order : a.compareTo(b);
+        });
+        int limit = query.isLimited() ? Math.min(query.limit(), names.size()) : names.size();
+        return query.fromEnd() ? names.subList(names.size() - limit, names.size()) : names.subList(0, limit);
+    }
+}
@@ -0,0 +1,135 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
+import io.helium.common.Path;
+import io.helium.event.changelog.ChangeLog;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Measures the latency of writes while the store is snapshotted in the background, like
+ * {@link PersistenceExecutor} does for a store in memory. The tree is filled with documents first, then
+ * batches of cursor moves, the writes of a drawing app, are applied and published one after another, while
+ * a snapshot of the whole tree is exported every SNAPSHOT_INTERVAL milliseconds. Latencies of batches
+ * applied while a snapshot is written are reported separately.
+ *
+ * Run with the storage engine as argument, memory without, once per engine:
+ * java -cp ... io.helium.persistence.mapdb.SnapshotBenchmark mapdb
+ */
+public class SnapshotBenchmark {
+    private static final int DOCUMENTS = 20000;
+    private static final int CURSORS = 500;
+    private static final int BATCHES = 20000;
+    private static final int BATCH_SIZE = 16;
+    private static final long SNAPSHOT_INTERVAL = 500;
+
+    private final Random random = new Random(42);
+
+    public static void main(String[] args) throws Exception {
+        String engine = args.length > 0 ? args[0] : StorageEngine.MEMORY;
+        File directory = Files.createTempDir();
+        MapDbService.configure(new JsonObject()
+                .putString("directory", new File(directory, "nodes").getPath())
+                .putString("engine", engine));
+        MapDbService service = MapDbService.get();
+        new SnapshotBenchmark().run(engine, service, directory);
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        System.exit(0);
+    }
+
+    private void run(String engine, MapDbService service, File directory) throws InterruptedException {
+        long sequence = 0;
+        for (int document = 0; document < DOCUMENTS; document += BATCH_SIZE) {
+            ChangeBatch batch = new ChangeBatch();
+            for (int i = document; i < document + BATCH_SIZE; i++) {
+                batch.add(document(i));
+            }
+            service.publish(batch.apply(service), ++sequence);
+        }
+
+        File snapshot = new File(directory, "nodes" + SnapshotExporter.EXTENSION);
+        List<Long> idle = Lists.newArrayList();
+        List<Long> snapshotting = Lists.newArrayList();
+        AtomicLong snapshots = new AtomicLong();
+        AtomicLong snapshotNanos = new AtomicLong();
+        long lastSnapshot = System.currentTimeMillis();
+        for (int round = 0; round < BATCHES; round++) {
+            if (System.currentTimeMillis() - lastSnapshot >= SNAPSHOT_INTERVAL && !SnapshotExporter.get().isRunning()) {
+                long start = System.nanoTime();
+                SnapshotExporter.get().start(snapshot, Path.of("/"), BulkLoader.Format.BINARY, written -> {
+                    snapshotNanos.addAndGet(System.nanoTime() - start);
+                    snapshots.incrementAndGet();
+                });
+                lastSnapshot = System.currentTimeMillis();
+            }
+            boolean running = SnapshotExporter.get().isRunning();
+            ChangeBatch batch = new ChangeBatch();
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                batch.add(cursorMove());
+            }
+            long start = System.nanoTime();
+            service.publish(batch.apply(service), ++sequence);
+            (running ? snapshotting : idle).add(System.nanoTime() - start);
+        }
+        while (SnapshotExporter.get().isRunning()) {
+            Thread.sleep(10);
+        }
+
+        System.out.println(String.format("%-8s %-12s %8s %10s %10s %10s", "engine", "batches", "count", "p50 (ms)",
+                "p99 (ms)", "max (ms)"));
+        print(engine, "idle", idle);
+        print(engine, "snapshot", snapshotting);
+        System.out.println(String.format("%-8s %d snapshots of %d nodes, %.1fms on average", engine, snapshots.get(),
+                service.partitions().get(0).counts().descendants(NodeKey.ROOT),
+                snapshots.get() == 0 ? 0 : snapshotNanos.get() / 1e6 / snapshots.get()));
+    }
+
+    private static void print(String engine, String batches, List<Long> latencies) {
+        long[] sorted = Longs.toArray(latencies);
+        Arrays.sort(sorted);
+        System.out.println(String.format("%-8s %-12s %8d %10.3f %10.3f %10.3f", engine, batches, sorted.length,
+                percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 1)));
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(sorted.length * percentile))] / 1e6;
+    }
+
+    private ChangeLog document(int document) {
+        Path documents = Path.of("/documents");
+        ChangeLog changeLog = new ChangeLog(new JsonArray());
+        JsonObject value = new JsonObject()
+                .putString("title", "Document " + document)
+                .putNumber("created", document)
+                .putObject("style", new JsonObject().putString("color", "#" + Integer.toHexString(document))
+                        .putNumber("width", document % 7));
+        changeLog.addChildAddedLogEntry("document" + document, documents, documents.parent(), value, 3);
+        return changeLog;
+    }
+
+    private ChangeLog cursorMove() {
+        Path cursor = Path.of("/cursors/cursor" + random.nextInt(CURSORS));
+        ChangeLog changeLog = new ChangeLog(new JsonArray());
+        changeLog.addChildChangedLogEntry("x", cursor, cursor.parent(), random.nextInt(1920), 0);
+        changeLog.addChildChangedLogEntry("y", cursor, cursor.parent(), random.nextInt(1080), 0);
+        return changeLog;
+    }
+}
@@ -0,0 +1,133 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import io.helium.common.Path;
+import io.helium.event.changelog.ChangeLog;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ *
+ * Measures how long it takes to open a store of a given size, until the rules can be read. The store is
+ * written by one JVM, split into the default partition holding the rules and two partitions holding
+ * documents with an index on them, and then opened by fresh JVMs, so nothing is cached in the heap.
+ *
+ * Run with the size of the store in megabytes and the storage engine as arguments, 1024 and mapdb
+ * without, for a 10 GB store:
+ * java -cp ... io.helium.persistence.mapdb.StartupBenchmark 10240 mapdb
+ */
+public class StartupBenchmark {
+    private static final int OPENS = 3;
+    private static final int BATCH_SIZE = 256;
+    private static final int VALUE_SIZE = 1024;
+    private static final String[] PARTITIONS = {"documents", "archive"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && (args[0].equals("write") || args[0].equals("open"))) {
+            MapDbService.configure(config(new File(args[1]), args[2]));
+            if (args[0].equals("write")) {
+                write(new File(args[1]), Long.parseLong(args[3]) << 20);
+            }
+            else {
+                open();
+            }
+            System.exit(0);
+        }
+        long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+        String engine = args.length > 1 ? args[1] : StorageEngine.MAPDB;
+        File directory = Files.createTempDir();
+        try {
+            fork("write", directory.getPath(), engine, String.valueOf(megabytes));
+            for (int i = 0; i < OPENS; i++) {
+                fork("open", directory.getPath(), engine);
+            }
+        }
+        finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    private static JsonObject config(File directory, String engine) {
+        return new JsonObject()
+                .putString("directory", new File(directory, "nodes").getPath())
+                .putString("engine", engine)
+                .putArray("partitions", new JsonArray(PARTITIONS));
+    }
+
+    private static void fork(String... args) throws Exception {
+        List<String> command = Lists.newArrayList(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), StartupBenchmark.class.getName());
+        command.addAll(Lists.newArrayList(args));
+        int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+        if (status != 0) {
+            throw new IllegalStateException(args[0] + " exited with " + status);
+        }
+    }
+
+    /**
+     * Writes documents of about VALUE_SIZE bytes in batches, until the files of the store hold size bytes
+     */
+    private static void write(File directory, long size) {
+        MapDbService service = MapDbService.get();
+        ChangeBatch rules = new ChangeBatch();
+        ChangeLog rule = new ChangeLog(new JsonArray());
+        for (String partition : PARTITIONS) {
+            rule.addChildAddedLogEntry(partition, Path.of("/rules"), Path.of("/"),
+                    new JsonObject().putString(SecondaryIndexes.INDEX_ON, "created"), 0);
+        }
+        rules.add(rule);
+        long sequence = 1;
+        service.publish(rules.apply(service), sequence);
+        long start = System.currentTimeMillis();
+        String padding = Strings.repeat("x", VALUE_SIZE);
+        long documents = 0;
+        while (size(directory) < size) {
+            ChangeBatch batch = new ChangeBatch();
+            ChangeLog changeLog = new ChangeLog(new JsonArray());
+            for (int i = 0; i < BATCH_SIZE; i++, documents++) {
+                Path parent = Path.of("/" + PARTITIONS[(int) (documents % PARTITIONS.length)]);
+                changeLog.addChildAddedLogEntry("document" + documents, parent, parent.parent(), new JsonObject()
+                        .putNumber("created", documents)
+                        .putString("body", padding), 0);
+            }
+            batch.add(changeLog);
+            service.publish(batch.apply(service), ++sequence);
+        }
+        System.out.println(String.format("Wrote %d documents, %d MB in %ds", documents, size(directory) >> 20,
+                (System.currentTimeMillis() - start) / 1000));
+    }
+
+    private static long size(File directory) {
+        long size = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private static void open() {
+        long start = System.nanoTime();
+        MapDbService service = MapDbService.get();
+        long opened = System.nanoTime();
+        try (ReadView view = service.read()) {
+            view.of(Path.of("/rules")).toJsonObject();
+        }
+        long read = System.nanoTime();
+        System.out.println(String.format("opened in %.0fms, rules read after %.0fms", (opened - start) / 1e6,
+                (read - start) / 1e6));
+    }
+}
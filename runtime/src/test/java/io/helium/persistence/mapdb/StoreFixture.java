@@ -0,0 +1,161 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.io.Files;
+import io.helium.common.Path;
+import io.helium.event.changelog.ChangeLog;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * The node store shared by the tests of a JVM, held in memory. Tests write below paths of their own.
+ */
+final class StoreFixture {
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static boolean configured;
+
+    private StoreFixture() {
+    }
+
+    static synchronized MapDbService get() {
+        if (!configured) {
+            File directory = Files.createTempDir();
+            directory.deleteOnExit();
+            MapDbService.configure(new JsonObject()
+                    .putString("directory", new File(directory, "nodes").getPath())
+                    .putString("engine", StorageEngine.MEMORY));
+            configured = true;
+        }
+        return MapDbService.get();
+    }
+
+    /**
+     * Applies the change logs as one batch and publishes them
+     */
+    static void apply(ChangeLog... changeLogs) {
+        MapDbService service = get();
+        ChangeBatch batch = new ChangeBatch();
+        for (ChangeLog changeLog : changeLogs) {
+            batch.add(changeLog);
+        }
+        service.publish(batch.apply(service), SEQUENCE.incrementAndGet());
+    }
+
+    /**
+     * Publishes every partition, after entries were written to their nodes directly
+     */
+    static void publish() {
+        get().publish(SEQUENCE.incrementAndGet());
+    }
+
+    /**
+     * Removes up to limit entries hidden by tombstones from every partition and publishes them
+     */
+    static void reclaim(int limit) {
+        MapDbService service = get();
+        service.publish(service.reclaim(limit), SEQUENCE.incrementAndGet());
+    }
+
+    /**
+     * Accepts changeLog, which is merged into the reads as a pending write until it is applied with the
+     * next batch, and numbers its delta events
+     */
+    static void accept(ChangeLog changeLog) {
+        long sequence = SEQUENCE.incrementAndGet();
+        changeLog.sequenced(sequence);
+        get().pendingWrites().accept(changeLog, sequence);
+    }
+
+    /**
+     * Random writes like the ones of change logs, each of them setting a value, merging an object or
+     * deleting a child named a, b or c of a node up to two levels below the root written to
+     */
+    static final class RandomWrites {
+        private static final String[] NAMES = {"a", "b", "c"};
+
+        private final Random random;
+
+        RandomWrites(long seed) {
+            this.random = new Random(seed);
+        }
+
+        /**
+         * @return random number from 1 to max
+         */
+        int count(int max) {
+            return random.nextInt(max) + 1;
+        }
+
+        Write next() {
+            Path parent = Path.of("/");
+            for (int depth = random.nextInt(3); depth > 0; depth--) {
+                parent = parent.append(name());
+            }
+            switch (random.nextInt(3)) {
+                case 0:
+                    return new Write(parent, name(), random.nextInt(100));
+                case 1:
+                    return new Write(parent, name(), new JsonObject().putNumber(name(), random.nextInt(100))
+                            .putObject(name(), new JsonObject().putNumber("z", random.nextInt(100))));
+                default:
+                    return new Write(parent, name(), null);
+            }
+        }
+
+        /**
+         * @return change log of the given number of random writes below root
+         */
+        ChangeLog changeLog(Path root, int writes) {
+            ChangeLog changeLog = new ChangeLog(new JsonArray());
+            for (int i = 0; i < writes; i++) {
+                next().addTo(changeLog, root);
+            }
+            return changeLog;
+        }
+
+        private String name() {
+            return NAMES[random.nextInt(NAMES.length)];
+        }
+    }
+
+    /**
+     * Write of a child of the node at a path relative to the root written to
+     */
+    static final class Write {
+        private final Path parent;
+        private final String name;
+        private final Object value;
+
+        /**
+         * @param value the new value, an object merged into the child, null to delete it
+         */
+        private Write(Path parent, String name, Object value) {
+            this.parent = parent;
+            this.name = name;
+            this.value = value;
+        }
+
+        void addTo(ChangeLog changeLog, Path root) {
+            Path path = root.append(parent);
+            if (value == null) {
+                changeLog.addChildDeletedLogEntry(path, name, null);
+            }
+            else {
+                changeLog.addChildAddedLogEntry(name, path, path.parent(), value, 0);
+            }
+        }
+
+        /**
+         * @return change log of this write below root
+         */
+        ChangeLog changeLog(Path root) {
+            ChangeLog changeLog = new ChangeLog(new JsonArray());
+            addTo(changeLog, root);
+            return changeLog;
+        }
+    }
+}
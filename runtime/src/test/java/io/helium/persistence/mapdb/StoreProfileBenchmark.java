@@ -0,0 +1,165 @@
+package io.helium.persistence.mapdb;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.mapdb.DB;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ *
+ * Compares the {@link StoreProfile}s and {@link StorageEngine}s on the access pattern of the node store.
+ * Every profile or engine gets a fresh store, into which users are written like change logs write them,
+ * followed by a mix of value reads, child listings and updates and by subtree scans like the ones
+ * sending a subtree to a client. Commits are as frequent as journal checkpoints under load.
+ *
+ * Run with the profiles and engines other than mapdb to compare as arguments, all of them without:
+ * java -cp ... io.helium.persistence.mapdb.StoreProfileBenchmark default mmap memory log
+ */
+public class StoreProfileBenchmark {
+    private static final int USERS = 50000;
+    private static final int OPERATIONS = 200000;
+    private static final int SCANS = 500;
+    private static final int SCAN_USERS = 100;
+    private static final int COMMIT_INTERVAL = 4096;
+
+    private final Random random = new Random(42);
+    private StorageEngine nodes;
+    private int uncommitted = 0;
+
+    public static void main(String[] args) throws Exception {
+        List<String> names = Lists.newArrayList(StoreProfile.names());
+        names.add(StorageEngine.MEMORY);
+        names.add(StorageEngine.LOG);
+        if (args.length > 0) {
+            names = Lists.newArrayList(args);
+        }
+        System.out.println(String.format("%-10s %12s %12s %12s %12s", "profile", "writes/s", "mixed ops/s",
+                "scanned/s", "size (KB)"));
+        for (String name : names) {
+            boolean engine = name.equals(StorageEngine.MEMORY) || name.equals(StorageEngine.LOG);
+            new StoreProfileBenchmark().run(name, engine ? new JsonObject().putString("engine", name)
+                    : new JsonObject().putString("profile", name));
+        }
+    }
+
+    private void run(String name, JsonObject config) {
+        File directory = Files.createTempDir();
+        File file = new File(directory, "nodes");
+        StoreProfile profile = StoreProfile.of(config);
+        DB db = profile.maker(file).make();
+        nodes = StorageEngine.of(config, db, profile, file);
+        try {
+            double writes = rate(USERS * 4, this::load);
+            double mixed = rate(OPERATIONS, this::mixed);
+            long scanned = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < SCANS; i++) {
+                scanned += scan();
+            }
+            double scans = scanned * 1e9 / (System.nanoTime() - start);
+            nodes.commit();
+            System.out.println(String.format("%-10s %12.0f %12.0f %12.0f %12d", name, writes, mixed,
+                    scans, size(directory) / 1024));
+        }
+        finally {
+            nodes.close();
+            db.close();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File created : files) {
+                    created.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    private static double rate(int operations, Runnable benchmark) {
+        long start = System.nanoTime();
+        benchmark.run();
+        return operations * 1e9 / (System.nanoTime() - start);
+    }
+
+    private void load() {
+        for (int user = 0; user < USERS; user++) {
+            set(user, "name", "Name " + user);
+            set(user, "age", user % 90);
+            set(user, "city", "City" + (user % 100));
+            set(user, "tags", new JsonArray().add("tag" + (user % 7)).add(user % 3));
+        }
+    }
+
+    /**
+     * 70% reads of a value, 20% child listings and 10% updates
+     */
+    private void mixed() {
+        for (int i = 0; i < OPERATIONS; i++) {
+            int user = random.nextInt(USERS);
+            int operation = random.nextInt(10);
+            if (operation < 7) {
+                nodes.get(NodeKey.child(userKey(user), "name"));
+            }
+            else if (operation < 9) {
+                String key = userKey(user);
+                Iterators.size(nodes.range(NodeKey.subTreeStart(key), NodeKey.subTreeEnd(key)));
+            }
+            else {
+                set(user, "age", random.nextInt(90));
+            }
+        }
+    }
+
+    /**
+     * Reads the entries of SCAN_USERS users in key order
+     */
+    private int scan() {
+        int scanned = 0;
+        Iterator<Map.Entry<String, Object>> entries = nodes.range(userKey(random.nextInt(USERS)), null);
+        while (entries.hasNext() && scanned < SCAN_USERS * 5) {
+            entries.next();
+            scanned++;
+        }
+        return scanned;
+    }
+
+    /**
+     * Writes a value like {@link Node#put(String, Object)} does, including the checks for its ancestors
+     */
+    private void set(int user, String name, Object value) {
+        String key = userKey(user);
+        for (String ancestor = key; !ancestor.isEmpty(); ancestor = NodeKey.parent(ancestor)) {
+            if (Node.isObject(nodes.get(ancestor))) {
+                break;
+            }
+            nodes.put(ancestor, Node.OBJECT);
+        }
+        nodes.put(NodeKey.child(key, name), value);
+        if (++uncommitted >= COMMIT_INTERVAL) {
+            nodes.commit();
+            uncommitted = 0;
+        }
+    }
+
+    private static String userKey(int user) {
+        return NodeKey.child(NodeKey.child(NodeKey.ROOT, "users"), "user" + user);
+    }
+
+    private static long size(File directory) {
+        long size = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+}